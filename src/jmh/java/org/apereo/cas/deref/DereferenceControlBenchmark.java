@@ -0,0 +1,56 @@
+package org.apereo.cas.deref;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding of the dereference request control for small and large specifications. Run with
+ * <code>-prof gc</code> to report the allocation rate next to the throughput.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DereferenceControlBenchmark {
+
+    /** derefAttrs x attrsPerDeref. */
+    @Param({"1x2", "4x8", "32x32"})
+    public String spec;
+
+    private HashMap<String, String> dereference;
+
+    private DereferenceControl control;
+
+    @Setup
+    public void setup() {
+        final String[] size = spec.split("x");
+        dereference = DereferencePayloads.spec(Integer.parseInt(size[0]), Integer.parseInt(size[1]));
+        control = new DereferenceControl(dereference, false);
+    }
+
+    /** Cost of building the control, paid once per DAO. */
+    @Benchmark
+    public byte[] build() {
+        return new DereferenceControl(dereference, false).encode();
+    }
+
+    /** Cost paid by every request once the control is built. */
+    @Benchmark
+    public byte[] encode() {
+        return control.encode();
+    }
+}
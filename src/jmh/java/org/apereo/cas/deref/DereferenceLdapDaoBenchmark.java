@@ -0,0 +1,82 @@
+package org.apereo.cas.deref;
+
+import org.apereo.services.persondir.IPersonAttributes;
+import org.ldaptive.FilterTemplate;
+import org.ldaptive.LdapEntry;
+import org.ldaptive.ResultCode;
+import org.ldaptive.SearchRequest;
+import org.ldaptive.SearchResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Conversion of a merged response to people by
+ * {@link DereferenceLdapDao#convertResponseToPeople(SearchResponse, DereferenceQuery)}, alone and followed by a read
+ * of every attribute, as when a service releases all of them, with and without pooling the values through a
+ * {@link DereferenceInterner}. Run with <code>-prof gc</code> to report the allocation rate next to the throughput.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DereferenceLdapDaoBenchmark {
+
+    @Param({"10", "60"})
+    public int attributes;
+
+    private final DereferenceLdapDao dao = new DereferenceLdapDao();
+
+    private final DereferenceInterner interner = new DereferenceInterner(100000, false);
+
+    private LdapEntry entry;
+
+    private SearchResponse response;
+
+    private DereferenceQuery query;
+
+    @Setup
+    public void setup() {
+        entry = DereferencePayloads.entry("uid=user,dc=example,dc=org", attributes);
+        response = SearchResponse.builder().resultCode(ResultCode.SUCCESS).entry(entry).build();
+        final FilterTemplate filter = new FilterTemplate("(uid=user)");
+        query = new DereferenceQuery(filter, "user", null, DereferenceRoute.DEREF, new SearchRequest());
+    }
+
+    @Benchmark
+    public List<IPersonAttributes> convertResponseToPeople() {
+        return dao.convertResponseToPeople(response, query);
+    }
+
+    @Benchmark
+    public void convertAndReadAll(final Blackhole bh) {
+        for (IPersonAttributes person : dao.convertResponseToPeople(response, query)) {
+            for (Map.Entry<String, List<Object>> e : person.getAttributes().entrySet()) {
+                bh.consume(e.getValue());
+            }
+        }
+    }
+
+    @Benchmark
+    public void convertPooledAndReadAll(final Blackhole bh) {
+        final IPersonAttributes person = DereferencePersonAttributes.withName("user", entry, interner);
+        for (Map.Entry<String, List<Object>> e : person.getAttributes().entrySet()) {
+            bh.consume(e.getValue());
+        }
+    }
+}
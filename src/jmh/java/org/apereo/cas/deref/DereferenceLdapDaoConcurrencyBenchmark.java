@@ -0,0 +1,119 @@
+package org.apereo.cas.deref;
+
+import org.apereo.services.persondir.IPersonAttributes;
+import org.ldaptive.FilterTemplate;
+import org.ldaptive.LdapEntry;
+import org.ldaptive.ResultCode;
+import org.ldaptive.SearchResponse;
+import org.ldaptive.asn1.DefaultDERBuffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Concurrent lookups against a single DAO instance, as CAS runs them on logins. The directory is replaced by a
+ * response built in memory, carrying a deref response control, so every lookup runs the per-call pipeline of the
+ * DAO: query, merge of the dereferenced values and conversion to people. The same lookup is measured with 1, 2, 4
+ * and 8 threads; with no state shared between lookups the throughput grows with the threads up to the number of
+ * cores.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DereferenceLdapDaoConcurrencyBenchmark {
+
+    @Param({"10", "60"})
+    public int attributes;
+
+    @Param({"10", "200"})
+    public int values;
+
+    private final InMemoryDao dao = new InMemoryDao();
+
+    @Setup
+    public void setup() throws Exception {
+        final HashMap<String, String> dereference = new HashMap<>();
+        dereference.put("member", "cn,mail");
+        final HashMap<String, String> extended = new HashMap<>();
+        extended.put("member", "cn");
+        dao.setDereference(dereference);
+        dao.setDereferenceExtended(extended);
+        dao.setBaseDN("dc=example,dc=org");
+        dao.setSearchFilter("(uid={0})");
+        dao.attributes = attributes;
+        dao.payload = DereferencePayloads.response(values);
+        dao.afterPropertiesSet();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public List<IPersonAttributes> lookup1Thread() {
+        return lookup();
+    }
+
+    @Benchmark
+    @Threads(2)
+    public List<IPersonAttributes> lookup2Threads() {
+        return lookup();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public List<IPersonAttributes> lookup4Threads() {
+        return lookup();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public List<IPersonAttributes> lookup8Threads() {
+        return lookup();
+    }
+
+    private List<IPersonAttributes> lookup() {
+        final String user = "user" + ThreadLocalRandom.current().nextInt(1000);
+        return dao.getPeopleForQuery(new FilterTemplate("(uid=" + user + ")"), user);
+    }
+
+    /**
+     * DAO answering every search with one entry and its deref response control, as the directory would.
+     */
+    private static final class InMemoryDao extends DereferenceLdapDao {
+
+        private int attributes;
+
+        private byte[] payload;
+
+        /** Shared by every thread, as the one of the DAO is. */
+        private final DereferenceResultHandler handler =
+                new DereferenceResultHandler(DereferencePayloads.extended());
+
+        @Override
+        protected List<IPersonAttributes> searchForPeople(final DereferenceQuery query) {
+            final LdapEntry entry = DereferencePayloads.entry(
+                    "uid=" + query.getUserName() + ",ou=people,dc=example,dc=org", attributes);
+            final DereferenceResponseControl control = new DereferenceResponseControl();
+            control.decode(new DefaultDERBuffer(payload));
+            entry.addControls(control);
+            final SearchResponse response = SearchResponse.builder()
+                    .resultCode(ResultCode.SUCCESS).entry(entry).build();
+            return convertResponseToPeople(handler.apply(response), query);
+        }
+    }
+}
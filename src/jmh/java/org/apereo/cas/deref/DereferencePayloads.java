@@ -0,0 +1,92 @@
+package org.apereo.cas.deref;
+
+import org.ldaptive.LdapAttribute;
+import org.ldaptive.LdapEntry;
+import org.ldaptive.asn1.ConstructedDEREncoder;
+import org.ldaptive.asn1.ContextDERTag;
+import org.ldaptive.asn1.DEREncoder;
+import org.ldaptive.asn1.OctetStringType;
+import org.ldaptive.asn1.UniversalDERTag;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Synthetic inputs shared by the benchmarks.
+ */
+final class DereferencePayloads {
+
+    private DereferencePayloads() {
+    }
+
+    /**
+     * Builds a dereference specification with the given number of dereference attributes, each dereferencing
+     * the given number of attributes.
+     */
+    static LinkedHashMap<String, String> spec(final int derefAttrs, final int attrsPerDeref) {
+        final LinkedHashMap<String, String> spec = new LinkedHashMap<>();
+        for (int i = 0; i < derefAttrs; i++) {
+            final StringBuilder attrs = new StringBuilder();
+            for (int j = 0; j < attrsPerDeref; j++) {
+                if (j > 0) {
+                    attrs.append(',');
+                }
+                attrs.append("attr").append(j);
+            }
+            spec.put("deref" + i, attrs.toString());
+        }
+        return spec;
+    }
+
+    /**
+     * Encodes a deref response control value holding the given number of dereferenced values, spread over
+     * <code>member</code> entries with a <code>cn</code> and a <code>mail</code> value each.
+     */
+    static byte[] response(final int values) {
+        final int entries = Math.max(1, values / 2);
+        final DEREncoder[] derefRes = new DEREncoder[entries];
+        for (int i = 0; i < entries; i++) {
+            final String dn = "uid=user" + i + ",ou=people,dc=example,dc=org";
+            final DEREncoder cn = partialAttribute("cn", "user" + i);
+            final DEREncoder[] attrs = values == 1 || i * 2 + 1 >= values
+                    ? new DEREncoder[] {cn}
+                    : new DEREncoder[] {cn, partialAttribute("mail", "user" + i + "@example.org")};
+            derefRes[i] = new ConstructedDEREncoder(
+                    UniversalDERTag.SEQ,
+                    new OctetStringType("member"),
+                    new OctetStringType(dn),
+                    new ConstructedDEREncoder(new ContextDERTag(0, true), attrs));
+        }
+        return new ConstructedDEREncoder(UniversalDERTag.SEQ, derefRes).encode();
+    }
+
+    /**
+     * Builds an entry with the given number of attributes of three values each.
+     */
+    static LdapEntry entry(final String dn, final int attributes) {
+        final LdapEntry entry = new LdapEntry();
+        entry.setDn(dn);
+        for (int i = 0; i < attributes; i++) {
+            entry.addAttributes(new LdapAttribute("attr" + i, "a" + i, "b" + i, "c" + i));
+        }
+        return entry;
+    }
+
+    /**
+     * Compiled specification matching {@link #response(int)}, with <code>cn</code> also returned extended.
+     */
+    static DereferenceSpec extended() {
+        final Map<String, String> dereference = new LinkedHashMap<>();
+        dereference.put("member", "cn,mail");
+        final Map<String, String> extended = new LinkedHashMap<>();
+        extended.put("member", "cn");
+        return DereferenceSpec.compile(dereference, extended);
+    }
+
+    private static DEREncoder partialAttribute(final String name, final String value) {
+        return new ConstructedDEREncoder(
+                UniversalDERTag.SEQ,
+                new OctetStringType(name),
+                new ConstructedDEREncoder(UniversalDERTag.SET, new OctetStringType(value)));
+    }
+}
@@ -0,0 +1,60 @@
+package org.apereo.cas.deref;
+
+import org.ldaptive.asn1.DefaultDERBuffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding of synthetic dereference response controls, walked as received then decoded with no limits. Run with
+ * <code>-prof gc</code> to report the allocation rate next to the throughput.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DereferenceResponseControlBenchmark {
+
+    @Param({"1", "100", "10000"})
+    public int values;
+
+    private byte[] payload;
+
+    private DereferenceSpec extended;
+
+    @Setup
+    public void setup() {
+        payload = DereferencePayloads.response(values);
+        extended = DereferencePayloads.extended();
+    }
+
+    @Benchmark
+    public Map<String, List<Object>> decode() {
+        final DereferenceResponseControl control = new DereferenceResponseControl();
+        control.decode(new DefaultDERBuffer(payload));
+        control.decode(DereferenceLimits.UNLIMITED);
+        return control.getDereferenceAttrs();
+    }
+
+    @Benchmark
+    public Map<String, List<Object>> decodeExtended() {
+        final DereferenceResponseControl control = new DereferenceResponseControl();
+        control.decode(new DefaultDERBuffer(payload));
+        control.decode(DereferenceLimits.UNLIMITED);
+        return control.getDereferenceAttrs(extended);
+    }
+}
@@ -0,0 +1,61 @@
+package org.apereo.cas.deref;
+
+import org.ldaptive.LdapEntry;
+import org.ldaptive.SearchResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Merging of search result entries by {@link DereferenceResultHandler}. The handler instance is shared by every
+ * benchmark thread as it is in the DAO, so running with <code>-t 1,2,4,8</code> shows how the merge scales with
+ * threads. Run with <code>-prof gc</code> to report the allocation rate next to the throughput.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DereferenceResultHandlerBenchmark {
+
+    @Param({"1", "10", "100"})
+    public int entries;
+
+    @Param({"10", "60"})
+    public int attributes;
+
+    private final DereferenceResultHandler handler = new DereferenceResultHandler(DereferencePayloads.extended());
+
+    /** The handler merges into the first entry, so every invocation gets fresh entries. */
+    @State(Scope.Thread)
+    public static class Response {
+
+        SearchResponse response;
+
+        @Setup(Level.Invocation)
+        public void setup(final DereferenceResultHandlerBenchmark benchmark) {
+            final LdapEntry[] result = new LdapEntry[benchmark.entries];
+            for (int i = 0; i < result.length; i++) {
+                result[i] = DereferencePayloads.entry("uid=user" + i + ",dc=example,dc=org", benchmark.attributes);
+            }
+            response = SearchResponse.builder().entry(result).build();
+        }
+    }
+
+    @Benchmark
+    public SearchResponse dereference(final Response response) {
+        return handler.apply(response.response);
+    }
+}
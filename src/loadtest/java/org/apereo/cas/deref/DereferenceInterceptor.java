@@ -0,0 +1,84 @@
+package org.apereo.cas.deref;
+
+import com.unboundid.asn1.ASN1Element;
+import com.unboundid.asn1.ASN1OctetString;
+import com.unboundid.asn1.ASN1Sequence;
+import com.unboundid.asn1.ASN1Set;
+import com.unboundid.ldap.listener.InMemoryDirectoryServer;
+import com.unboundid.ldap.listener.interceptor.InMemoryInterceptedSearchEntry;
+import com.unboundid.ldap.listener.interceptor.InMemoryOperationInterceptor;
+import com.unboundid.ldap.sdk.Attribute;
+import com.unboundid.ldap.sdk.Control;
+import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.ldap.sdk.SearchResultEntry;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Adds OpenLDAP deref overlay behaviour to an UnboundID in-memory directory: every entry returned to a search
+ * carrying the dereference request control gets a dereference response control built from the entries its DN
+ * values point to.
+ */
+class DereferenceInterceptor extends InMemoryOperationInterceptor {
+
+    private static final byte ATTR_LIST_TAG = (byte) 0xA0;
+
+    private volatile InMemoryDirectoryServer server;
+
+    void setServer(final InMemoryDirectoryServer server) {
+        this.server = server;
+    }
+
+    @Override
+    public void processSearchEntry(final InMemoryInterceptedSearchEntry entry) {
+        final Control request = entry.getRequest().getControl(DereferenceControl.OID);
+        if (request == null || !request.hasValue()) {
+            return;
+        }
+        try {
+            final List<ASN1Element> derefRes = new ArrayList<>();
+            for (ASN1Element spec : ASN1Sequence.decodeAsSequence(request.getValue().getValue()).elements()) {
+                final ASN1Element[] specElements = ASN1Sequence.decodeAsSequence(spec).elements();
+                final String derefAttr = ASN1OctetString.decodeAsOctetString(specElements[0]).stringValue();
+                final ASN1Element[] attrElements = ASN1Sequence.decodeAsSequence(specElements[1]).elements();
+                final String[] attrs = new String[attrElements.length];
+                for (int i = 0; i < attrs.length; i++) {
+                    attrs[i] = ASN1OctetString.decodeAsOctetString(attrElements[i]).stringValue();
+                }
+
+                final Attribute dns = entry.getSearchEntry().getAttribute(derefAttr);
+                if (dns == null) {
+                    continue;
+                }
+                for (String dn : dns.getValues()) {
+                    derefRes.add(derefRes(derefAttr, dn, server.getEntry(dn, attrs)));
+                }
+            }
+            final Control response = new Control(DereferenceControl.OID, false,
+                    new ASN1OctetString(new ASN1Sequence(derefRes).encode()));
+            final SearchResultEntry result = entry.getSearchEntry();
+            entry.setSearchEntry(new Entry(result.getDN(), result.getAttributes()), response);
+        } catch (Exception e) {
+            throw new IllegalStateException("Could not build dereference response for " + entry, e);
+        }
+    }
+
+    private static ASN1Element derefRes(final String derefAttr, final String dn, final Entry target) {
+        if (target == null || target.getAttributes().isEmpty()) {
+            return new ASN1Sequence(new ASN1OctetString(derefAttr), new ASN1OctetString(dn));
+        }
+        final List<ASN1Element> attributes = new ArrayList<>();
+        for (Attribute attr : target.getAttributes()) {
+            final List<ASN1Element> values = new ArrayList<>();
+            for (byte[] value : attr.getValueByteArrays()) {
+                values.add(new ASN1OctetString(value));
+            }
+            attributes.add(new ASN1Sequence(new ASN1OctetString(attr.getName()), new ASN1Set(values)));
+        }
+        return new ASN1Sequence(
+                new ASN1OctetString(derefAttr),
+                new ASN1OctetString(dn),
+                new ASN1Sequence(ATTR_LIST_TAG, attributes));
+    }
+}
@@ -0,0 +1,186 @@
+package org.apereo.cas.deref;
+
+import com.unboundid.ldap.listener.InMemoryDirectoryServer;
+import com.unboundid.ldap.listener.InMemoryDirectoryServerConfig;
+import com.unboundid.ldap.listener.InMemoryListenerConfig;
+import com.unboundid.ldap.sdk.Entry;
+import org.ldaptive.ConnectionConfig;
+import org.ldaptive.PooledConnectionFactory;
+
+import javax.naming.directory.SearchControls;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Self-contained load generator for {@link DereferenceLdapDao}. Starts an in-memory directory that answers the
+ * dereference control, seeds it with users and groups, and drives <code>getPerson</code> from concurrent threads.
+ * Reports throughput, latency percentiles and the allocation rate of the load threads. Needs no network access.
+ *
+ * <pre>
+ * java org.apereo.cas.deref.DereferenceLoadTest users=10000 groups=500 groupsPerUser=20 threads=16 warmup=10 duration=60
+ * </pre>
+ */
+public final class DereferenceLoadTest {
+
+    private static final String BASE_DN = "dc=example,dc=org";
+
+    private DereferenceLoadTest() {
+    }
+
+    public static void main(final String[] args) throws Exception {
+        final Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            final String[] option = arg.split("=", 2);
+            options.put(option[0], option[1]);
+        }
+        final int users = Integer.parseInt(options.getOrDefault("users", "10000"));
+        final int groups = Integer.parseInt(options.getOrDefault("groups", "500"));
+        final int groupsPerUser = Integer.parseInt(options.getOrDefault("groupsPerUser", "20"));
+        final int threads = Integer.parseInt(options.getOrDefault("threads", "16"));
+        final int warmup = Integer.parseInt(options.getOrDefault("warmup", "10"));
+        final int duration = Integer.parseInt(options.getOrDefault("duration", "60"));
+
+        final DereferenceInterceptor interceptor = new DereferenceInterceptor();
+        final InMemoryDirectoryServerConfig config = new InMemoryDirectoryServerConfig(BASE_DN);
+        config.setListenerConfigs(InMemoryListenerConfig.createLDAPConfig("default", 0));
+        config.setSchema(null);
+        config.addInMemoryOperationInterceptor(interceptor);
+        final InMemoryDirectoryServer server = new InMemoryDirectoryServer(config);
+        interceptor.setServer(server);
+        seed(server, users, groups, groupsPerUser);
+        server.startListening();
+
+        final PooledConnectionFactory connectionFactory = new PooledConnectionFactory(
+                ConnectionConfig.builder().url("ldap://localhost:" + server.getListenPort()).build());
+        connectionFactory.setMinPoolSize(threads);
+        connectionFactory.setMaxPoolSize(threads);
+        connectionFactory.initialize();
+
+        final DereferenceLdapDao dao = new DereferenceLdapDao();
+        final SearchControls searchControls = new SearchControls();
+        searchControls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+        final HashMap<String, String> dereference = new HashMap<>();
+        dereference.put("memberOf", "cn,description");
+        dao.setConnectionFactory(connectionFactory);
+        dao.setBaseDN(BASE_DN);
+        dao.setSearchFilter("(uid={0})");
+        dao.setSearchControls(searchControls);
+        dao.setDereference(dereference);
+        dao.afterPropertiesSet();
+
+        System.out.printf("users=%d groups=%d groupsPerUser=%d threads=%d%n", users, groups, groupsPerUser, threads);
+        run(dao, users, threads, warmup, false);
+        run(dao, users, threads, duration, true);
+
+        dao.destroy();
+        connectionFactory.close();
+        server.shutDown(true);
+    }
+
+    private static void seed(final InMemoryDirectoryServer server, final int users, final int groups,
+                             final int groupsPerUser) throws Exception {
+        server.add("dn: " + BASE_DN, "objectClass: top", "objectClass: domain", "dc: example");
+        server.add("dn: ou=groups," + BASE_DN, "objectClass: organizationalUnit", "ou: groups");
+        server.add("dn: ou=people," + BASE_DN, "objectClass: organizationalUnit", "ou: people");
+        for (int g = 0; g < groups; g++) {
+            server.add("dn: cn=group" + g + ",ou=groups," + BASE_DN, "objectClass: groupOfNames",
+                    "cn: group" + g, "description: Group number " + g);
+        }
+        for (int u = 0; u < users; u++) {
+            final Entry user = new Entry("uid=user" + u + ",ou=people," + BASE_DN);
+            user.addAttribute("objectClass", "inetOrgPerson");
+            user.addAttribute("uid", "user" + u);
+            user.addAttribute("cn", "User " + u);
+            user.addAttribute("sn", "User");
+            user.addAttribute("mail", "user" + u + "@example.org");
+            final String[] memberOf = new String[Math.min(groupsPerUser, groups)];
+            for (int i = 0; i < memberOf.length; i++) {
+                memberOf[i] = "cn=group" + ((u + i) % groups) + ",ou=groups," + BASE_DN;
+            }
+            user.addAttribute("memberOf", memberOf);
+            server.add(user);
+        }
+    }
+
+    private static void run(final DereferenceLdapDao dao, final int users, final int threads, final int seconds,
+                            final boolean report) throws InterruptedException {
+        final com.sun.management.ThreadMXBean threadBean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        final long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        final List<long[]> latencies = new ArrayList<>();
+        final int[] counts = new int[threads];
+        final AtomicLong allocated = new AtomicLong();
+        final AtomicLong errors = new AtomicLong();
+        final CountDownLatch done = new CountDownLatch(threads);
+
+        for (int t = 0; t < threads; t++) {
+            final int index = t;
+            final long[][] samples = {new long[1 << 16]};
+            latencies.add(null);
+            final Thread thread = new Thread(() -> {
+                final long allocatedBefore = threadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+                int count = 0;
+                while (System.nanoTime() < end) {
+                    final String uid = "user" + ThreadLocalRandom.current().nextInt(users);
+                    final long start = System.nanoTime();
+                    try {
+                        if (dao.getPerson(uid) == null) {
+                            errors.incrementAndGet();
+                        }
+                    } catch (RuntimeException e) {
+                        errors.incrementAndGet();
+                    }
+                    if (count == samples[0].length) {
+                        samples[0] = Arrays.copyOf(samples[0], count * 2);
+                    }
+                    samples[0][count++] = System.nanoTime() - start;
+                }
+                allocated.addAndGet(threadBean.getThreadAllocatedBytes(Thread.currentThread().getId()) - allocatedBefore);
+                synchronized (latencies) {
+                    latencies.set(index, Arrays.copyOf(samples[0], count));
+                    counts[index] = count;
+                }
+                done.countDown();
+            }, "deref-load-" + t);
+            thread.start();
+        }
+        done.await();
+        if (!report) {
+            return;
+        }
+
+        int total = 0;
+        for (int count : counts) {
+            total += count;
+        }
+        final long[] all = new long[total];
+        int offset = 0;
+        for (long[] sample : latencies) {
+            System.arraycopy(sample, 0, all, offset, sample.length);
+            offset += sample.length;
+        }
+        Arrays.sort(all);
+        System.out.printf("operations=%d errors=%d throughput=%.1f ops/s%n",
+                total, errors.get(), total / (double) seconds);
+        System.out.printf("latency p50=%.3f ms p99=%.3f ms p999=%.3f ms max=%.3f ms%n",
+                percentile(all, 0.50), percentile(all, 0.99), percentile(all, 0.999), percentile(all, 1.0));
+        System.out.printf("allocation rate=%.1f MB/s, %.1f KB/op%n",
+                allocated.get() / (double) seconds / (1024 * 1024), allocated.get() / (double) total / 1024);
+    }
+
+    private static double percentile(final long[] sorted, final double percentile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        final int index = (int) Math.min(sorted.length - 1, Math.ceil(percentile * sorted.length) - 1);
+        return sorted[Math.max(0, index)] / 1_000_000.0;
+    }
+}
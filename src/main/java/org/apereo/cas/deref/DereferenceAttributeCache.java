@@ -0,0 +1,227 @@
+package org.apereo.cas.deref;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apereo.services.persondir.IPersonAttributes;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded in-process cache of person attributes returned by {@link DereferenceLdapDao}, keyed by the formatted
+ * search filter plus the dereference specification. Entries are evicted in LRU order once the cache is full and
+ * expire after a configurable time to live. Lookups that found nobody are cached too, with their own (usually
+ * shorter) time to live.
+ *
+ * Expired entries can be kept for a grace period, during which they are not returned by {@link #get(String)} but
+ * remain available through {@link #getStale(String)}, e.g. to answer while the directory is unavailable.
+ *
+ * The cache is split into independently locked segments so concurrent logins for different users rarely contend.
+ */
+@Slf4j
+public class DereferenceAttributeCache {
+
+    private static final int DEFAULT_SEGMENTS = 16;
+
+    private final Segment[] segments;
+    private final long ttlNanos;
+    private final long negativeTtlNanos;
+    private final long staleTtlNanos;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder expirations = new LongAdder();
+
+    /**
+     * Creates a new cache.
+     *
+     * @param maxSize     maximum number of cached queries
+     * @param ttl         time to live of queries that returned people
+     * @param negativeTtl time to live of queries that returned nobody, zero disables negative caching
+     */
+    public DereferenceAttributeCache(final int maxSize, final Duration ttl, final Duration negativeTtl) {
+        this(maxSize, ttl, negativeTtl, Duration.ZERO);
+    }
+
+    /**
+     * Creates a new cache keeping expired people for a grace period.
+     *
+     * @param maxSize     maximum number of cached queries
+     * @param ttl         time to live of queries that returned people
+     * @param negativeTtl time to live of queries that returned nobody, zero disables negative caching
+     * @param staleTtl    time expired people are kept for {@link #getStale(String)}
+     */
+    public DereferenceAttributeCache(final int maxSize, final Duration ttl, final Duration negativeTtl,
+                                     final Duration staleTtl) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize must be greater than zero");
+        }
+        final int segmentCount = Math.min(DEFAULT_SEGMENTS, maxSize);
+        this.segments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            // spread the remainder so the segment capacities add up to maxSize
+            segments[i] = new Segment(maxSize / segmentCount + (i < maxSize % segmentCount ? 1 : 0));
+        }
+        this.ttlNanos = ttl.toNanos();
+        this.negativeTtlNanos = negativeTtl.toNanos();
+        this.staleTtlNanos = staleTtl.toNanos();
+    }
+
+    /**
+     * Returns the cached people for the given key.
+     *
+     * @param key query key
+     * @return cached people, an empty list for a cached negative result, or null on a miss
+     */
+    public List<IPersonAttributes> get(final String key) {
+        final Segment segment = segmentFor(key);
+        final CachedPeople cached;
+        synchronized (segment) {
+            cached = segment.get(key);
+            final long now = System.nanoTime();
+            if (cached != null && cached.expiresAt - now <= 0) {
+                if (cached.staleUntil - now <= 0) {
+                    segment.remove(key);
+                    expirations.increment();
+                }
+                misses.increment();
+                return null;
+            }
+        }
+        if (cached == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return cached.people;
+    }
+
+    /**
+     * Returns the cached people for the given key, even if they expired, as long as they are within their grace
+     * period.
+     *
+     * @param key query key
+     * @return cached people, possibly expired, or null
+     */
+    public List<IPersonAttributes> getStale(final String key) {
+        final Segment segment = segmentFor(key);
+        synchronized (segment) {
+            final CachedPeople cached = segment.get(key);
+            return cached != null && cached.staleUntil - System.nanoTime() > 0 ? cached.people : null;
+        }
+    }
+
+    /**
+     * Caches the people returned for the given key. The list is copied, so later changes of the caller's list do
+     * not reach the cache.
+     *
+     * @param key    query key
+     * @param people people returned by the directory, may be empty
+     */
+    public void put(final String key, final List<IPersonAttributes> people) {
+        final long ttl = people.isEmpty() ? negativeTtlNanos : ttlNanos;
+        if (ttl <= 0) {
+            return;
+        }
+        final long expiresAt = System.nanoTime() + ttl;
+        final CachedPeople cached = new CachedPeople(List.copyOf(people), expiresAt,
+                people.isEmpty() ? expiresAt : expiresAt + staleTtlNanos);
+        final Segment segment = segmentFor(key);
+        synchronized (segment) {
+            segment.put(key, cached);
+        }
+    }
+
+    /**
+     * Removes every cached entry.
+     */
+    public void clear() {
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+    }
+
+    /**
+     * @return number of cached queries
+     */
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    public long getExpirationCount() {
+        return expirations.sum();
+    }
+
+    @Override
+    public String toString() {
+        return new StringBuilder("[").append(getClass().getName()).append("@").append(hashCode())
+                .append("::size=").append(size())
+                .append(", hits=").append(getHitCount())
+                .append(", misses=").append(getMissCount())
+                .append(", evictions=").append(getEvictionCount())
+                .append(", expirations=").append(getExpirationCount()).append("]").toString();
+    }
+
+    private Segment segmentFor(final String key) {
+        final int h = key.hashCode();
+        return segments[((h ^ (h >>> 16)) & 0x7fffffff) % segments.length];
+    }
+
+    private static final class CachedPeople {
+        private final List<IPersonAttributes> people;
+        private final long expiresAt;
+        private final long staleUntil;
+
+        private CachedPeople(final List<IPersonAttributes> people, final long expiresAt, final long staleUntil) {
+            this.people = people;
+            this.expiresAt = expiresAt;
+            this.staleUntil = staleUntil;
+        }
+    }
+
+    /** Access ordered map, so the eldest entry is the least recently used one. */
+    private final class Segment extends LinkedHashMap<String, CachedPeople> {
+
+        private static final long serialVersionUID = 4730624958170473385L;
+
+        private final int capacity;
+
+        private Segment(final int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, CachedPeople> eldest) {
+            if (size() > capacity) {
+                evictions.increment();
+                LOGGER.trace("Evicting cached dereference query [{}]", eldest.getKey());
+                return true;
+            }
+            return false;
+        }
+    }
+}
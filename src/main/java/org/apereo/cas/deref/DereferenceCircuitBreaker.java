@@ -0,0 +1,173 @@
+package org.apereo.cas.deref;
+
+import lombok.extern.slf4j.Slf4j;
+import org.ldaptive.Connection;
+import org.ldaptive.ConnectionConfig;
+import org.ldaptive.ConnectionFactory;
+import org.ldaptive.LdapException;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Circuit breaker of one directory server, wrapping the connection factory of that server. After a number of
+ * consecutive failed or timed out searches the breaker opens and searches skip the server, so callers fail fast
+ * instead of waiting for a server that is not answering. Once the open duration elapsed, a single probe search is
+ * let through: the breaker closes if it succeeds and opens again if it fails. A probe whose outcome is never
+ * reported, e.g. a cancelled hedge, is replaced by another one after the open duration.
+ *
+ * Outcomes are reported by the caller, see {@link #recordSuccess()} and {@link #recordFailure()}.
+ */
+@Slf4j
+public class DereferenceCircuitBreaker implements ConnectionFactory {
+
+    /** State of the breaker. */
+    public enum State {
+        /** Searches go through. */
+        CLOSED,
+
+        /** Searches are rejected. */
+        OPEN,
+
+        /** A probe search is in flight, other searches are rejected. */
+        HALF_OPEN
+    }
+
+    private final String name;
+    private final ConnectionFactory connectionFactory;
+    private final int failureThreshold;
+    private final long openNanos;
+
+    private State state = State.CLOSED;
+    private int failures;
+    private long changedAt = System.nanoTime();
+
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder opened = new LongAdder();
+
+    /**
+     * Creates a new, closed breaker.
+     *
+     * @param name              name of the server, e.g. its URL
+     * @param connectionFactory connection factory of the server
+     * @param failureThreshold  consecutive failures opening the breaker
+     * @param openDuration      time searches skip the server before a probe is let through
+     */
+    public DereferenceCircuitBreaker(final String name, final ConnectionFactory connectionFactory,
+                                     final int failureThreshold, final Duration openDuration) {
+        if (failureThreshold <= 0) {
+            throw new IllegalArgumentException("failureThreshold must be greater than zero");
+        }
+        this.name = name;
+        this.connectionFactory = connectionFactory;
+        this.failureThreshold = failureThreshold;
+        this.openNanos = openDuration.toNanos();
+    }
+
+    /**
+     * Returns whether a search may be sent to the server. When a probe is due, the caller becomes the probe and
+     * must report its outcome.
+     *
+     * @return whether the search may be sent
+     */
+    public synchronized boolean allowRequest() {
+        if (state == State.CLOSED) {
+            return true;
+        }
+        final long now = System.nanoTime();
+        if (now - changedAt >= openNanos) {
+            if (state == State.OPEN) {
+                LOGGER.info("Probing [{}] after {} ms", name, Duration.ofNanos(now - changedAt).toMillis());
+            }
+            state = State.HALF_OPEN;
+            changedAt = now;
+            return true;
+        }
+        rejected.increment();
+        return false;
+    }
+
+    /**
+     * Returns whether a search would be let through right now, without becoming the probe.
+     *
+     * @return whether the breaker is closed or a probe is due
+     */
+    public synchronized boolean isAvailable() {
+        return state == State.CLOSED || System.nanoTime() - changedAt >= openNanos;
+    }
+
+    /**
+     * Reports a successful search, closing the breaker.
+     */
+    public synchronized void recordSuccess() {
+        failures = 0;
+        if (state != State.CLOSED) {
+            LOGGER.info("[{}] answers again, closing its circuit breaker", name);
+            state = State.CLOSED;
+            changedAt = System.nanoTime();
+        }
+    }
+
+    /**
+     * Reports a failed or timed out search, opening the breaker after enough consecutive failures or on a failed
+     * probe.
+     */
+    public synchronized void recordFailure() {
+        if (state == State.OPEN) {
+            return;
+        }
+        if (state == State.HALF_OPEN || ++failures >= failureThreshold) {
+            LOGGER.warn("Opening the circuit breaker of [{}] for {} ms after {} failure(s)", name,
+                    Duration.ofNanos(openNanos).toMillis(), state == State.HALF_OPEN ? 1 : failures);
+            state = State.OPEN;
+            changedAt = System.nanoTime();
+            failures = 0;
+            opened.increment();
+        }
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return number of searches rejected while the breaker was not closed
+     */
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    /**
+     * @return number of times the breaker opened
+     */
+    public long getOpenedCount() {
+        return opened.sum();
+    }
+
+    @Override
+    public Connection getConnection() throws LdapException {
+        return connectionFactory.getConnection();
+    }
+
+    @Override
+    public ConnectionConfig getConnectionConfig() {
+        return connectionFactory.getConnectionConfig();
+    }
+
+    @Override
+    public void close() {
+        connectionFactory.close();
+    }
+
+    @Override
+    public String toString() {
+        return new StringBuilder("[").append(getClass().getName()).append("@").append(hashCode())
+                .append("::name=").append(name)
+                .append(", state=").append(getState())
+                .append(", failureThreshold=").append(failureThreshold).append("]").toString();
+    }
+}
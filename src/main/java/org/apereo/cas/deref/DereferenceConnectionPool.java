@@ -0,0 +1,228 @@
+package org.apereo.cas.deref;
+
+import lombok.extern.slf4j.Slf4j;
+import org.ldaptive.Connection;
+import org.ldaptive.ConnectionConfig;
+import org.ldaptive.ConnectionFactory;
+import org.ldaptive.FilterTemplate;
+import org.ldaptive.LdapException;
+import org.ldaptive.PooledConnectionFactory;
+import org.ldaptive.SearchConnectionValidator;
+import org.ldaptive.SearchRequest;
+import org.ldaptive.SearchScope;
+import org.ldaptive.pool.IdlePruneStrategy;
+import org.ldaptive.pool.PoolException;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Connection pool owned by {@link DereferenceLdapDao}. The minimum number of connections is opened, and bound by
+ * the initializers of the connection config, when the pool is initialized, so the first logins after a deploy do
+ * not pay for connection establishment and TLS handshakes. Idle connections are validated in the background with
+ * a RootDSE search.
+ *
+ * The pool grows on demand up to its maximum size while queries overlap and idle connections are pruned back to
+ * the minimum once the load drops, so its size follows the observed concurrency. The time spent waiting for a
+ * connection, the connections in use and the peak concurrency are exposed for monitoring; a pool that keeps
+ * running at its maximum is logged.
+ */
+@Slf4j
+public class DereferenceConnectionPool implements ConnectionFactory {
+
+    private final PooledConnectionFactory pool;
+    private final int minSize;
+    private final int maxSize;
+    private final DereferenceMetrics metrics;
+
+    private final AtomicInteger waiting = new AtomicInteger();
+    private final AtomicInteger peakActive = new AtomicInteger();
+    private final LongAdder checkouts = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+    private final LongAdder saturated = new LongAdder();
+    private final LongAdder exhausted = new LongAdder();
+
+    /**
+     * Creates a new pool, {@link #initialize()} opens its connections.
+     *
+     * @param config         connection config, its initializers bind every new connection
+     * @param minSize        connections opened up front and kept when idle
+     * @param maxSize        maximum number of connections
+     * @param validatePeriod interval between background validations of idle connections
+     * @param idleTime       time after which idle connections above the minimum are closed
+     * @param blockWaitTime  maximum time a query waits for a connection
+     * @param metrics        metrics receiving the connection wait times
+     */
+    public DereferenceConnectionPool(final ConnectionConfig config, final int minSize, final int maxSize,
+                                     final Duration validatePeriod, final Duration idleTime,
+                                     final Duration blockWaitTime, final DereferenceMetrics metrics) {
+        if (minSize < 0 || maxSize <= 0 || minSize > maxSize) {
+            throw new IllegalArgumentException("Invalid pool size " + minSize + ".." + maxSize);
+        }
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.metrics = metrics != null ? metrics : DereferenceMetrics.NOOP;
+
+        final SearchRequest validation = new SearchRequest();
+        validation.setBaseDn("");
+        validation.setSearchScope(SearchScope.OBJECT);
+        validation.setFilter(new FilterTemplate("(objectClass=*)"));
+        validation.setReturnAttributes("1.1");
+
+        this.pool = new PooledConnectionFactory(config);
+        pool.setName("deref-pool");
+        pool.setMinPoolSize(minSize);
+        pool.setMaxPoolSize(maxSize);
+        pool.setValidatePeriodically(true);
+        pool.setValidator(new SearchConnectionValidator(validatePeriod, Duration.ofSeconds(5), validation));
+        pool.setPruneStrategy(new IdlePruneStrategy(validatePeriod, idleTime));
+        pool.setBlockWaitTime(blockWaitTime);
+    }
+
+    /**
+     * Sets whether {@link #initialize()} fails when the minimum number of connections cannot be opened. When not
+     * set, the pool starts with the connections it could open and opens the others on demand. Defaults to true.
+     *
+     * @param failFastInitialize whether initialization fails on an unreachable server
+     */
+    public void setFailFastInitialize(final boolean failFastInitialize) {
+        pool.setFailFastInitialize(failFastInitialize);
+    }
+
+    /**
+     * Sets the name of the pool, which tells the pools of several DAOs apart in logs and meters.
+     *
+     * @param name pool name
+     */
+    public void setName(final String name) {
+        pool.setName(name);
+    }
+
+    public String getName() {
+        return pool.getName();
+    }
+
+    /**
+     * Opens and binds the minimum number of connections.
+     */
+    public void initialize() {
+        final long start = System.nanoTime();
+        pool.initialize();
+        final int opened = pool.availableCount();
+        if (opened < minSize) {
+            LOGGER.warn("Pool [{}] opened {} of {} connection(s), the others are opened on demand", getName(),
+                    opened, minSize);
+        } else {
+            LOGGER.info("Pool [{}] opened {} connection(s) in {} ms", getName(), opened,
+                    Duration.ofNanos(System.nanoTime() - start).toMillis());
+        }
+    }
+
+    @Override
+    public Connection getConnection() throws LdapException {
+        checkouts.increment();
+        waiting.incrementAndGet();
+        final long start = System.nanoTime();
+        try {
+            final Connection connection = pool.getConnection();
+            final int active = pool.activeCount();
+            peakActive.accumulateAndGet(active, Math::max);
+            if (active >= maxSize) {
+                saturated.increment();
+                LOGGER.debug("Connection pool is running at its maximum size of {}", maxSize);
+            }
+            return connection;
+        } catch (PoolException e) {
+            exhausted.increment();
+            LOGGER.warn("No connection available within the block wait time, {} queries waiting", waiting.get());
+            throw e;
+        } finally {
+            final long wait = System.nanoTime() - start;
+            waiting.decrementAndGet();
+            waitNanos.add(wait);
+            metrics.connectionWait(wait);
+        }
+    }
+
+    @Override
+    public ConnectionConfig getConnectionConfig() {
+        return pool.getConnectionConfig();
+    }
+
+    @Override
+    public void close() {
+        pool.close();
+    }
+
+    /**
+     * @return connections checked out
+     */
+    public int getActiveCount() {
+        return pool.activeCount();
+    }
+
+    /**
+     * @return open connections waiting in the pool
+     */
+    public int getAvailableCount() {
+        return pool.availableCount();
+    }
+
+    /**
+     * @return queries waiting for a connection
+     */
+    public int getWaitingCount() {
+        return waiting.get();
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * @return connections checked out relative to the maximum size, between 0 and 1
+     */
+    public double getUtilization() {
+        return pool.activeCount() / (double) maxSize;
+    }
+
+    /**
+     * @return highest number of connections checked out at the same time
+     */
+    public int getPeakActiveCount() {
+        return peakActive.get();
+    }
+
+    /**
+     * @return mean time spent waiting for a connection, in nanoseconds
+     */
+    public double getMeanWaitTime() {
+        final long count = checkouts.sum();
+        return count == 0 ? 0 : waitNanos.sum() / (double) count;
+    }
+
+    /**
+     * @return number of checkouts that found the pool at its maximum size
+     */
+    public long getSaturatedCount() {
+        return saturated.sum();
+    }
+
+    /**
+     * @return number of checkouts that gave up waiting for a connection
+     */
+    public long getExhaustedCount() {
+        return exhausted.sum();
+    }
+
+    @Override
+    public String toString() {
+        return new StringBuilder("[").append(getClass().getName()).append("@").append(hashCode())
+                .append("::name=").append(getName())
+                .append(", active=").append(getActiveCount())
+                .append(", available=").append(getAvailableCount())
+                .append(", maxSize=").append(maxSize)
+                .append(", peakActive=").append(getPeakActiveCount()).append("]").toString();
+    }
+}
@@ -1,120 +1,131 @@
 package org.apereo.cas.deref;
 
-import com.sun.jndi.ldap.Ber;
-import com.sun.jndi.ldap.BerEncoder;
-import lombok.extern.slf4j.Slf4j;
-import lombok.val;
+import org.ldaptive.LdapUtils;
+import org.ldaptive.asn1.ConstructedDEREncoder;
+import org.ldaptive.asn1.DEREncoder;
+import org.ldaptive.asn1.OctetStringType;
+import org.ldaptive.asn1.UniversalDERTag;
 import org.ldaptive.control.AbstractControl;
 import org.ldaptive.control.RequestControl;
-import org.springframework.ldap.control.AbstractRequestControlDirContextProcessor;
 
-import javax.naming.NamingException;
-import javax.naming.directory.DirContext;
-import javax.naming.directory.SearchControls;
-import javax.naming.ldap.Control;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
 
 /**
  * Dereference control for openLdap servers to perform the dereference operation of an object.
  * See https://datatracker.ietf.org/doc/html/draft-masarati-ldap-deref-00
  *
+ * The control is immutable: the control value is encoded once at construction time and the same bytes are
+ * returned by every call to {@link #encode()}, so a single instance can be attached to any number of concurrent
+ * search requests.
+ *
  * @author  Anna Kavvada
  */
-
-@Slf4j
-public class DereferenceControl extends AbstractRequestControlDirContextProcessor implements RequestControl{
-
-    private static final long serialVersionUID = -8256507599052732117L;
+public class DereferenceControl extends AbstractControl implements RequestControl {
 
     public static final String OID = "1.3.6.1.4.1.4203.666.5.16";
-    private final boolean critical;
-    private HashMap<String,String> dereference;
-    private byte[] berVal;
 
-    public DereferenceControl(){
-        this.critical = false;
-    }
+    private static final int HASH_CODE_SEED = 853;
 
-    @Override
-    public Control createRequestControl() {
-        val dereferenceRequestControl = new DereferenceRequestControl(dereference, critical);
-        return dereferenceRequestControl.createRequestControl();
+    private final DereferenceSpec spec;
+    private final byte[] berVal;
+
+    /**
+     * Creates a new dereference control.
+     *
+     * @param  dereference  map of derefAttrName to comma separated attrNames
+     * @param  critical     whether this control is critical
+     */
+    public DereferenceControl(Map<String, String> dereference, boolean critical) {
+        //this error, unless addressed, blows up during ber encoding.
+        this(DereferenceSpec.compile(dereference, null), critical);
     }
 
-    public DereferenceControl(HashMap<String, String> deref_val, boolean critical) throws NullPointerException{
-        //super(OID, critical);
-        this.critical = critical;
-        this.dereference=deref_val;
+    /**
+     * Creates a new dereference control from a compiled specification.
+     *
+     * @param  spec      compiled dereference specification
+     * @param  critical  whether this control is critical
+     */
+    public DereferenceControl(DereferenceSpec spec, boolean critical) {
+        super(OID, critical);
 
-        //this error, unless addressed, blows up during ber encoding.
-        if( dereference == null )
+        if( spec == null )
         {
             throw new NullPointerException("DerefReqControl(): Null dereference attribute argument");
         }
+        this.spec = spec;
 
         /*
          * Ber format: {{derefAttrName{attrName1,attrName2,...}}{derefAttrName2{attrNameX,attrNameY...}}...}
          */
-        BerEncoder ber = new BerEncoder(1);
-        try
+        final DEREncoder[] specEncoders = new DEREncoder[spec.getDereference().size()];
+        int i = 0;
+        for( Map.Entry<String,List<String>> entry : spec.getDereference().entrySet() )
         {
-            ber.beginSeq(Ber.ASN_SEQUENCE | Ber.ASN_CONSTRUCTOR);
-            for( Map.Entry<String,String> entry : dereference.entrySet() )
+            final List<String> tmpAttrs = entry.getValue();
+            final DEREncoder[] attrEncoders = new DEREncoder[tmpAttrs.size()];
+            for( int j=0;j<tmpAttrs.size();j++)
             {
-                String curDerefAttrName = entry.getKey();
-                String attrs_to_deref = entry.getValue();
-
-                ber.beginSeq(Ber.ASN_SEQUENCE | Ber.ASN_CONSTRUCTOR);
-                ber.encodeString(curDerefAttrName, Ber.ASN_SIMPLE_STRING , true); //encodeUTF8 = true
-                ber.beginSeq(Ber.ASN_SEQUENCE | Ber.ASN_CONSTRUCTOR);
-
-                String[] tmpAttrs = attrs_to_deref.split(",");
-                for(int j=0;j<tmpAttrs.length;j++)
-                {
-                    ber.encodeString(tmpAttrs[j], Ber.ASN_SIMPLE_STRING, true); //encodeUTF8 = true
-                }
-                ber.endSeq();
-                ber.endSeq();
+                attrEncoders[j] = new OctetStringType(tmpAttrs.get(j));
             }
-            ber.endSeq();
-        }
-        catch (Exception ex)
-        {
-            LOGGER.error("Ber encoding error",ex);
+            specEncoders[i++] = new ConstructedDEREncoder(
+                    UniversalDERTag.SEQ,
+                    new OctetStringType(entry.getKey()),
+                    new ConstructedDEREncoder(UniversalDERTag.SEQ, attrEncoders));
         }
-        this.berVal=ber.getBuf();
+        this.berVal = new ConstructedDEREncoder(UniversalDERTag.SEQ, specEncoders).encode();
     }
 
+    /**
+     * @return the compiled dereference specification this control was encoded from
+     */
+    public DereferenceSpec getSpec() {
+        return spec;
+    }
 
     @Override
-    public int hashCode() {
-        return 0;
+    public boolean hasValue() {
+        return true;
     }
 
+    /**
+     * Returns the pre-encoded control value. The array is shared between all requests using this control and
+     * must not be modified.
+     *
+     * @return ber encoded control value
+     */
     @Override
     public byte[] encode() {
-        return new byte[0];
+        return berVal;
     }
 
     @Override
-    public boolean hasValue() {
+    public boolean equals(final Object o) {
+        if (o == this) {
+            return true;
+        }
+        if (o instanceof DereferenceControl) {
+            final DereferenceControl v = (DereferenceControl) o;
+            return getCriticality() == v.getCriticality() && Arrays.equals(berVal, v.berVal);
+        }
         return false;
     }
 
+    /**
+     * Equal controls send the same value; specs differing only in what the client does with the values, e.g.
+     * binary attributes, encode alike.
+     */
     @Override
-    public String getOID() {
-        return null;
-    }
-
-    @Override
-    public boolean getCriticality() {
-        return false;
+    public int hashCode() {
+        return LdapUtils.computeHashCode(HASH_CODE_SEED, getOID(), getCriticality(), Arrays.hashCode(berVal));
     }
 
     @Override
-    public void postProcess(DirContext ctx) throws NamingException {
-
+    public String toString() {
+        return new StringBuilder("[").append(getClass().getName()).append("@").append(hashCode())
+                .append("::criticality=").append(getCriticality())
+                .append(", dereference=").append(spec).append("]").toString();
     }
 }
-
@@ -0,0 +1,136 @@
+package org.apereo.cas.deref;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compact DN: its first RDN and its parent DN. Parents are pooled by {@link DereferenceInterner}, so the DNs of the
+ * entries under one branch, e.g. <code>ou=groups,dc=example,dc=org</code>, share a single copy of it and each DN
+ * only holds its own RDN. The string form is rebuilt when asked for and not kept.
+ *
+ * RDNs are split on commas not escaped by a backslash and compared as received, without normalization.
+ */
+public final class DereferenceDn implements CharSequence, Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String rdn;
+    private final DereferenceDn parent;
+    private final int hash;
+    private final int length;
+
+    private DereferenceDn(final String rdn, final DereferenceDn parent) {
+        this.rdn = rdn;
+        this.parent = parent;
+        this.hash = 31 * rdn.hashCode() + (parent != null ? parent.hash : 0);
+        this.length = parent != null ? rdn.length() + 1 + parent.length : rdn.length();
+    }
+
+    /**
+     * Parses a DN, pooling its RDNs and every parent DN.
+     *
+     * @param dn       DN in its string form
+     * @param interner pool of the RDNs and DNs
+     * @return pooled compact DN
+     */
+    static DereferenceDn parse(final String dn, final DereferenceInterner interner) {
+        final List<String> rdns = split(dn);
+        DereferenceDn parsed = null;
+        for (int i = rdns.size() - 1; i >= 0; i--) {
+            parsed = interner.intern(new DereferenceDn(interner.intern(rdns.get(i)), parsed));
+        }
+        return parsed;
+    }
+
+    /*
+     * Splits a DN on the commas not escaped by a backslash. An empty DN is a single empty RDN.
+     */
+    private static List<String> split(final String dn) {
+        final List<String> rdns = new ArrayList<>();
+        int start = 0;
+        for (int i = 0; i < dn.length(); i++) {
+            final char c = dn.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (c == ',') {
+                rdns.add(dn.substring(start, i));
+                start = i + 1;
+            }
+        }
+        rdns.add(dn.substring(start));
+        return rdns;
+    }
+
+    /**
+     * @return first RDN of the DN
+     */
+    public String getRdn() {
+        return rdn;
+    }
+
+    /**
+     * @return parent DN, or null for a DN of a single RDN
+     */
+    public DereferenceDn getParent() {
+        return parent;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(final int index) {
+        DereferenceDn dn = this;
+        int i = index;
+        while (dn != null) {
+            if (i < dn.rdn.length()) {
+                return dn.rdn.charAt(i);
+            }
+            if (i == dn.rdn.length() && dn.parent != null) {
+                return ',';
+            }
+            i -= dn.rdn.length() + 1;
+            dn = dn.parent;
+        }
+        throw new IndexOutOfBoundsException("Index " + index + " out of bounds for length " + length);
+    }
+
+    @Override
+    public CharSequence subSequence(final int start, final int end) {
+        return toString().subSequence(start, end);
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (o == this) {
+            return true;
+        }
+        if (o instanceof DereferenceDn) {
+            final DereferenceDn v = (DereferenceDn) o;
+            //pooled parents are compared by identity first
+            return hash == v.hash && rdn.equals(v.rdn)
+                    && (parent == v.parent || parent != null && parent.equals(v.parent));
+        }
+        return false;
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder(length);
+        for (DereferenceDn dn = this; dn != null; dn = dn.parent) {
+            if (dn != this) {
+                sb.append(',');
+            }
+            sb.append(dn.rdn);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,188 @@
+package org.apereo.cas.deref;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Short lived memo of the attributes read from intermediate entries of multi-hop dereference paths, shared by all
+ * queries so that a DN reached from many users, e.g. a department or a parent group, is fetched once per time to
+ * live. Reads in flight are memoised too, so queries reaching the same DN at the same time wait for a single
+ * read. Bounded in LRU order per stripe, each stripe locked on its own. DNs are compared ignoring case.
+ */
+public class DereferenceDnMemo {
+
+    /** Stripes of the memo, each locked on its own. */
+    private static final int STRIPES = 16;
+
+    private final Map<String, Memo>[] stripes;
+    private final long ttlNanos;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Creates a new memo.
+     *
+     * @param maxSize maximum number of memoised DNs
+     * @param ttl     how long the attributes of a DN are reused
+     */
+    @SuppressWarnings("unchecked")
+    public DereferenceDnMemo(final int maxSize, final Duration ttl) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize must be greater than zero");
+        }
+        final int maxStripeSize = Math.max(1, maxSize / STRIPES);
+        this.stripes = new Map[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(final Map.Entry<String, Memo> eldest) {
+                    return size() > maxStripeSize;
+                }
+            };
+        }
+        this.ttlNanos = ttl.toNanos();
+    }
+
+    /**
+     * @param dn entry DN
+     * @return attributes of the entry by lower case name, empty if the entry could not be read, or null on a miss;
+     * the future is not completed yet while the entry is being read
+     */
+    public CompletableFuture<Map<String, List<Object>>> get(final String dn) {
+        final String key = key(dn);
+        final Map<String, Memo> stripe = stripe(key);
+        synchronized (stripe) {
+            final CompletableFuture<Map<String, List<Object>>> attributes = live(stripe, key);
+            if (attributes != null) {
+                hits.increment();
+                return attributes;
+            }
+        }
+        misses.increment();
+        return null;
+    }
+
+    /**
+     * Memoises the read of an entry about to start, unless the entry is memoised already.
+     *
+     * @param dn      entry DN
+     * @param reading future the caller completes with the attributes read, empty if the entry could not be read
+     * @return attributes memoised for the entry, read or being read, or null if the caller is to read it
+     */
+    public CompletableFuture<Map<String, List<Object>>> putIfAbsent(
+            final String dn, final CompletableFuture<Map<String, List<Object>>> reading) {
+        final String key = key(dn);
+        final Map<String, Memo> stripe = stripe(key);
+        synchronized (stripe) {
+            final CompletableFuture<Map<String, List<Object>>> attributes = live(stripe, key);
+            if (attributes != null) {
+                hits.increment();
+                return attributes;
+            }
+            misses.increment();
+            if (ttlNanos > 0) {
+                stripe.put(key, new Memo(reading, System.nanoTime() + ttlNanos));
+            }
+            return null;
+        }
+    }
+
+    /**
+     * @param dn         entry DN
+     * @param attributes attributes of the entry by lower case name, empty if the entry could not be read
+     */
+    public void put(final String dn, final Map<String, List<Object>> attributes) {
+        if (ttlNanos <= 0) {
+            return;
+        }
+        final String key = key(dn);
+        final Memo memo = new Memo(CompletableFuture.completedFuture(attributes), System.nanoTime() + ttlNanos);
+        final Map<String, Memo> stripe = stripe(key);
+        synchronized (stripe) {
+            stripe.put(key, memo);
+        }
+    }
+
+    /**
+     * Forgets a read, e.g. one that failed, so the next query tries again. A newer read of the DN is kept.
+     *
+     * @param dn      entry DN
+     * @param reading future given to {@link #putIfAbsent(String, CompletableFuture)}
+     */
+    public void remove(final String dn, final CompletableFuture<Map<String, List<Object>>> reading) {
+        final String key = key(dn);
+        final Map<String, Memo> stripe = stripe(key);
+        synchronized (stripe) {
+            final Memo memo = stripe.get(key);
+            if (memo != null && memo.attributes == reading) {
+                stripe.remove(key);
+            }
+        }
+    }
+
+    public void clear() {
+        for (Map<String, Memo> stripe : stripes) {
+            synchronized (stripe) {
+                stripe.clear();
+            }
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (Map<String, Memo> stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.size();
+            }
+        }
+        return size;
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    static String key(final String dn) {
+        return dn.toLowerCase(Locale.ROOT);
+    }
+
+    private Map<String, Memo> stripe(final String key) {
+        return stripes[Math.floorMod(key.hashCode(), STRIPES)];
+    }
+
+    /*
+     * Memoised attributes of the key if not expired, dropping them otherwise. Called holding the stripe's lock.
+     */
+    private static CompletableFuture<Map<String, List<Object>>> live(final Map<String, Memo> stripe,
+                                                                    final String key) {
+        final Memo memo = stripe.get(key);
+        if (memo == null) {
+            return null;
+        }
+        if (memo.expiresAt - System.nanoTime() > 0) {
+            return memo.attributes;
+        }
+        stripe.remove(key);
+        return null;
+    }
+
+    private static final class Memo {
+        private final CompletableFuture<Map<String, List<Object>>> attributes;
+        private final long expiresAt;
+
+        private Memo(final CompletableFuture<Map<String, List<Object>>> attributes, final long expiresAt) {
+            this.attributes = attributes;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
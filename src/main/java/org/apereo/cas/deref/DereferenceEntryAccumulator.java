@@ -0,0 +1,312 @@
+package org.apereo.cas.deref;
+
+import org.ldaptive.LdapAttribute;
+import org.ldaptive.LdapEntry;
+import org.ldaptive.Result;
+import org.ldaptive.SearchResponse;
+import org.ldaptive.control.ResponseControl;
+import org.ldaptive.handler.LdapEntryHandler;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Per-search entry handler folding each entry and its deref response control into a single merged entry as the
+ * entry arrives from the connection, or, for searches matching several people, keeping each folded entry apart.
+ * Entries are not handed back to ldaptive, so the search response does not accumulate them and the memory held by
+ * a search is the merged result plus the entry being processed.
+ *
+ * Entries that came back without a deref response while secondary searches are enabled are kept aside until they
+ * have been dereferenced, see {@link #getPending()} and {@link #complete(LdapEntry, DereferenceResponseControl)}.
+ * Entries of a query resolving some attributes by secondary searches, see {@link DereferenceStrategy}, get the
+ * values of the control folded in and wait for the other attributes, see {@link #getPartial()}. Waiting does not
+ * change the result: every entry takes its place in the order of arrival when it is received, and is merged, or
+ * kept apart, in that place. The merged entry is the first entry received with the others merged into it in turn,
+ * so its DN and the order of its values do not depend on which entries waited; entries received after one that
+ * waits are held until it is completed.
+ *
+ * When a maximum number of merged entries is set, entries past it are dropped as they arrive and their number is
+ * flagged on the merged entry, see {@link DereferenceLimits#TRUNCATED_ENTRIES_ATTRIBUTE}.
+ *
+ * One instance serves one search and must not be shared.
+ */
+public class DereferenceEntryAccumulator implements LdapEntryHandler {
+
+    private final DereferenceResultHandler handler;
+    private final DereferenceMetrics metrics;
+    private final DereferenceRoute route;
+    private final boolean controlExpected;
+    private final boolean merge;
+    private final Set<String> secondaryNames;
+    private final int maxMergedEntries;
+
+    private final List<LdapEntry> pending = new ArrayList<>();
+    private final List<LdapEntry> partial = new ArrayList<>();
+    private final Map<String, Integer> valueCounts = new HashMap<>();
+    private final List<LdapEntry> entries = new ArrayList<>();
+    /** Entries to merge in order of arrival, null once merged. */
+    private final List<LdapEntry> slots = new ArrayList<>();
+    private final Map<LdapEntry, Integer> slotOf = new IdentityHashMap<>();
+    private final BitSet ready = new BitSet();
+    /** First slot not merged yet. */
+    private int mergedSlots;
+    private LdapEntry mergedEntry;
+    private int entryCount;
+    private int valueCount;
+    private int droppedEntries;
+
+    /**
+     * Creates a new accumulator.
+     *
+     * @param handler         handler folding deref values into entries
+     * @param metrics         metrics receiving per-entry measurements
+     * @param route           how the dereference attributes of the search are resolved
+     * @param controlExpected whether the search carried the deref control
+     */
+    public DereferenceEntryAccumulator(final DereferenceResultHandler handler, final DereferenceMetrics metrics,
+                                       final DereferenceRoute route, final boolean controlExpected) {
+        this(handler, metrics, route, controlExpected, true);
+    }
+
+    /**
+     * Creates a new accumulator.
+     *
+     * @param handler         handler folding deref values into entries
+     * @param metrics         metrics receiving per-entry measurements
+     * @param route           how the dereference attributes of the search are resolved
+     * @param controlExpected whether the search carried the deref control
+     * @param merge           whether entries are merged into one, or kept apart
+     */
+    public DereferenceEntryAccumulator(final DereferenceResultHandler handler, final DereferenceMetrics metrics,
+                                       final DereferenceRoute route, final boolean controlExpected,
+                                       final boolean merge) {
+        this(handler, metrics, route, controlExpected, merge, Collections.emptySet());
+    }
+
+    /**
+     * Creates a new accumulator.
+     *
+     * @param handler         handler folding deref values into entries
+     * @param metrics         metrics receiving per-entry measurements
+     * @param route           how the dereference attributes of the search are resolved
+     * @param controlExpected whether the search carried the deref control
+     * @param merge           whether entries are merged into one, or kept apart
+     * @param secondaryNames  attributes resolved by secondary searches even when the control comes back
+     */
+    public DereferenceEntryAccumulator(final DereferenceResultHandler handler, final DereferenceMetrics metrics,
+                                       final DereferenceRoute route, final boolean controlExpected,
+                                       final boolean merge, final Set<String> secondaryNames) {
+        this(handler, metrics, route, controlExpected, merge, secondaryNames, 0);
+    }
+
+    /**
+     * Creates a new accumulator.
+     *
+     * @param handler          handler folding deref values into entries
+     * @param metrics          metrics receiving per-entry measurements
+     * @param route            how the dereference attributes of the search are resolved
+     * @param controlExpected  whether the search carried the deref control
+     * @param merge            whether entries are merged into one, or kept apart
+     * @param secondaryNames   attributes resolved by secondary searches even when the control comes back
+     * @param maxMergedEntries maximum number of entries merged, later entries are dropped; zero for no cap
+     */
+    public DereferenceEntryAccumulator(final DereferenceResultHandler handler, final DereferenceMetrics metrics,
+                                       final DereferenceRoute route, final boolean controlExpected,
+                                       final boolean merge, final Set<String> secondaryNames,
+                                       final int maxMergedEntries) {
+        this.maxMergedEntries = merge ? maxMergedEntries : 0;
+        this.handler = handler;
+        this.metrics = metrics;
+        this.route = route;
+        this.controlExpected = controlExpected;
+        this.merge = merge;
+        this.secondaryNames = secondaryNames;
+    }
+
+    @Override
+    public synchronized LdapEntry apply(final LdapEntry entry) {
+        entryCount++;
+        if (maxMergedEntries > 0 && entryCount > maxMergedEntries) {
+            //dropped before its deref values are folded, so it holds no memory past this call
+            if (droppedEntries++ == 0) {
+                metrics.truncated();
+            }
+            return null;
+        }
+        //placed in order of arrival, entries waiting for secondary searches are completed in place
+        if (merge) {
+            slotOf.put(entry, slots.size());
+            slots.add(entry);
+        } else {
+            entries.add(entry);
+        }
+        final ResponseControl ctrl = entry.getControl(DereferenceResponseControl.OID);
+        if (ctrl instanceof DereferenceResponseControl) {
+            final DereferenceResponseControl respCtrl = (DereferenceResponseControl) ctrl;
+            //decoded here, with the limits of the DAO running the search
+            handler.decode(respCtrl);
+            metrics.controlReturned();
+            metrics.record(DereferenceMetrics.Phase.DECODE, respCtrl.getDecodeTime());
+            if (respCtrl.isDecodeFailed()) {
+                metrics.decodeFailure();
+            }
+            if (respCtrl.isTruncated()) {
+                metrics.truncated();
+            }
+            respCtrl.getValueCounts().forEach((name, count) -> valueCounts.merge(name, count, Integer::sum));
+            if (secondaryNames.isEmpty()) {
+                complete(entry, respCtrl);
+            } else {
+                handler.dereferenceEntry(entry, respCtrl);
+                valueCount += respCtrl.getValueCount();
+                partial.add(entry);
+            }
+            return null;
+        }
+
+        if (controlExpected && route != DereferenceRoute.SECONDARY) {
+            metrics.controlMissing();
+        }
+        if (route != DereferenceRoute.DEREF) {
+            pending.add(entry);
+        } else if (!secondaryNames.isEmpty()) {
+            partial.add(entry);
+        } else {
+            merge(entry);
+        }
+        return null;
+    }
+
+    /**
+     * Folds the given dereferenced values into the entry and merges it into the result.
+     *
+     * @param entry    search result entry received by this accumulator, see {@link #getPending()}
+     * @param respCtrl dereferenced values of the entry
+     */
+    public synchronized void complete(final LdapEntry entry, final DereferenceResponseControl respCtrl) {
+        handler.dereferenceEntry(entry, respCtrl);
+        valueCount += respCtrl.getValueCount();
+        merge(entry);
+    }
+
+    /**
+     * @return entries waiting for secondary searches
+     */
+    public synchronized List<LdapEntry> getPending() {
+        return new ArrayList<>(pending);
+    }
+
+    /**
+     * @return entries waiting for secondary searches of the attributes not sent in the control
+     */
+    public synchronized List<LdapEntry> getPartial() {
+        return new ArrayList<>(partial);
+    }
+
+    /**
+     * @return attributes resolved by secondary searches even when the control comes back
+     */
+    public Set<String> getSecondaryNames() {
+        return secondaryNames;
+    }
+
+    /**
+     * @return values returned in deref controls so far, by attribute holding the dereferenced DNs
+     */
+    public synchronized Map<String, Integer> getValueCounts() {
+        return new HashMap<>(valueCounts);
+    }
+
+    /**
+     * @return number of entries received
+     */
+    public synchronized int getEntryCount() {
+        return entryCount;
+    }
+
+    /**
+     * @return number of dereferenced values folded so far
+     */
+    public synchronized int getValueCount() {
+        return valueCount;
+    }
+
+    /**
+     * @return number of entries dropped past the maximum number of merged entries
+     */
+    public synchronized int getDroppedEntryCount() {
+        return droppedEntries;
+    }
+
+    /**
+     * @return merged entry, or null if no entry was merged or entries are kept apart
+     */
+    public synchronized LdapEntry getMergedEntry() {
+        return mergedEntry;
+    }
+
+    /**
+     * @return folded entries, the merged entry alone when entries are merged
+     */
+    public synchronized List<LdapEntry> getEntries() {
+        if (merge) {
+            return mergedEntry != null ? List.of(mergedEntry) : List.of();
+        }
+        return new ArrayList<>(entries);
+    }
+
+    /**
+     * Builds the response of the search from its result and the merged entry.
+     *
+     * @param result result of the search
+     * @return response holding the merged entry, if any, or the entries kept apart
+     */
+    public synchronized SearchResponse toResponse(final Result result) {
+        final SearchResponse.Builder builder = SearchResponse.builder()
+                .resultCode(result.getResultCode())
+                .matchedDN(result.getMatchedDN())
+                .diagnosticMessage(result.getDiagnosticMessage());
+        if (mergedEntry != null) {
+            if (droppedEntries > 0) {
+                mergedEntry.addAttributes(new LdapAttribute(
+                        DereferenceLimits.TRUNCATED_ENTRIES_ATTRIBUTE, String.valueOf(droppedEntries)));
+            }
+            builder.entry(mergedEntry);
+        }
+        if (!entries.isEmpty()) {
+            builder.entry(entries.toArray(new LdapEntry[0]));
+        }
+        return builder.build();
+    }
+
+    /*
+     * Marks the entry ready and merges every ready entry whose earlier entries are all merged.
+     */
+    private void merge(final LdapEntry entry) {
+        if (!merge) {
+            //already placed on arrival
+            return;
+        }
+        ready.set(slotOf.remove(entry));
+        while (mergedSlots < slots.size() && ready.get(mergedSlots)) {
+            final LdapEntry next = slots.set(mergedSlots++, null);
+            if (mergedEntry == null) {
+                mergedEntry = next;
+            } else {
+                DereferenceResultHandler.merge(mergedEntry, next);
+            }
+        }
+        if (mergedSlots == slots.size()) {
+            //nothing waits, the merged slots are released
+            slots.clear();
+            ready.clear();
+            mergedSlots = 0;
+        }
+    }
+}
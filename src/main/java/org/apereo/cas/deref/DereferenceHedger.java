@@ -0,0 +1,414 @@
+package org.apereo.cas.deref;
+
+import lombok.extern.slf4j.Slf4j;
+import org.ldaptive.ConnectionFactory;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Hedges searches across replicas to cut tail latency. Every search goes to the next available replica in turn;
+ * when it has not completed within the hedge delay the same request is sent to the following replica and the first
+ * successful response wins. The losing search is cancelled, which abandons it on its server.
+ *
+ * A search that failed is always retried once on the following replica, whatever the budget, and its replica is
+ * skipped for a while when choosing where searches go first, as are replicas the availability check turns down,
+ * e.g. those whose circuit breaker is open.
+ *
+ * The hedge delay is a percentile of the recent latencies of the first searches, kept between a minimum and a
+ * maximum, so only the slowest searches are hedged. Hedges are also capped by a budget, a fraction of all searches,
+ * so a replica slowing down for everybody does not double the load on the others. Retries after a failure are not
+ * charged against the budget.
+ */
+@Slf4j
+public class DereferenceHedger {
+
+    /** Number of recent latencies the delay is computed from. */
+    private static final int SAMPLES = 1024;
+
+    /** Number of new latencies between two computations of the delay. */
+    private static final int RECOMPUTE_INTERVAL = 64;
+
+    /** Hedges that may be sent in a burst once the budget has built up. */
+    private static final double MAX_TOKENS = 10;
+
+    /** Time a replica whose search failed is skipped when choosing where a search goes first. */
+    private static final long UNHEALTHY_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    private final List<ConnectionFactory> replicas;
+    private final Predicate<ConnectionFactory> available;
+    private final AtomicLongArray failedUntil;
+    private final double percentile;
+    private final long minDelayNanos;
+    private final long maxDelayNanos;
+    private final double budget;
+    private final DereferenceMetrics metrics;
+
+    private final long[] latencies = new long[SAMPLES];
+    private int sampleCount;
+    private double tokens;
+    private volatile long delayNanos;
+
+    private final AtomicInteger rotation = new AtomicInteger();
+    private final LongAdder searches = new LongAdder();
+    private final LongAdder hedges = new LongAdder();
+    private final LongAdder hedgeWins = new LongAdder();
+    private final LongAdder overBudget = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+
+    /**
+     * Creates a new hedger.
+     *
+     * @param replicas   connection factories of the replicas, at least two
+     * @param percentile percentile of the recent latencies after which a search is hedged, e.g. 0.95
+     * @param minDelay   minimum hedge delay
+     * @param maxDelay   maximum hedge delay, used until enough latencies are known
+     * @param budget     maximum fraction of searches hedged, e.g. 0.05
+     * @param metrics    metrics receiving the hedges sent and won
+     */
+    public DereferenceHedger(final List<ConnectionFactory> replicas, final double percentile,
+                             final Duration minDelay, final Duration maxDelay, final double budget,
+                             final DereferenceMetrics metrics) {
+        this(replicas, replica -> true, percentile, minDelay, maxDelay, budget, metrics);
+    }
+
+    /**
+     * Creates a new hedger skipping the replicas the given check turns down.
+     *
+     * @param replicas   connection factories of the replicas, at least two
+     * @param available  whether a replica may be sent a search, e.g. its circuit breaker is not open
+     * @param percentile percentile of the recent latencies after which a search is hedged, e.g. 0.95
+     * @param minDelay   minimum hedge delay
+     * @param maxDelay   maximum hedge delay, used until enough latencies are known
+     * @param budget     maximum fraction of searches hedged, e.g. 0.05
+     * @param metrics    metrics receiving the hedges sent and won
+     */
+    public DereferenceHedger(final List<ConnectionFactory> replicas, final Predicate<ConnectionFactory> available,
+                             final double percentile, final Duration minDelay, final Duration maxDelay,
+                             final double budget, final DereferenceMetrics metrics) {
+        if (replicas.size() < 2) {
+            throw new IllegalArgumentException("Hedging needs at least two replicas");
+        }
+        if (percentile <= 0 || percentile >= 1) {
+            throw new IllegalArgumentException("Invalid hedge percentile " + percentile);
+        }
+        if (budget < 0 || budget > 1) {
+            throw new IllegalArgumentException("Invalid hedge budget " + budget);
+        }
+        if (minDelay.compareTo(maxDelay) > 0) {
+            throw new IllegalArgumentException("Hedge delay " + minDelay + " is above maximum " + maxDelay);
+        }
+        this.replicas = new ArrayList<>(replicas);
+        this.available = available;
+        this.failedUntil = new AtomicLongArray(replicas.size());
+        this.percentile = percentile;
+        this.minDelayNanos = minDelay.toNanos();
+        this.maxDelayNanos = maxDelay.toNanos();
+        this.budget = budget;
+        this.metrics = metrics != null ? metrics : DereferenceMetrics.NOOP;
+        this.delayNanos = maxDelayNanos;
+    }
+
+    /**
+     * Runs a search, hedged on another replica if it is slow and retried on another replica if it fails. The
+     * searches must abandon their operation when their future is cancelled. The caller never waits longer than the
+     * given timeout, hedge and retry included; the searches still running then are cancelled.
+     *
+     * @param search  starts the search on the given connection factory
+     * @param timeout time the caller waits for a result at most
+     * @param <R>     search result
+     * @return result of the first search to succeed
+     */
+    public <R> R execute(final Function<ConnectionFactory, CompletableFuture<R>> search, final Duration timeout) {
+        final long deadline = System.nanoTime() + timeout.toNanos();
+        searches.increment();
+        synchronized (latencies) {
+            tokens = Math.min(MAX_TOKENS, tokens + budget);
+        }
+        final int index = firstReplica();
+        final long start = System.nanoTime();
+        final CompletableFuture<R> primary = send(search, index);
+        primary.whenComplete((r, e) -> {
+            if (e == null) {
+                sample(System.nanoTime() - start);
+            }
+        });
+
+        try {
+            return primary.get(Math.min(delayNanos, remaining(deadline)), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            if (remaining(deadline) <= 0) {
+                primary.cancel(true);
+                throw timedOut(e);
+            }
+            if (!acquireToken()) {
+                overBudget.increment();
+                try {
+                    return await(primary, deadline);
+                } catch (RuntimeException ex) {
+                    if (Thread.currentThread().isInterrupted() || remaining(deadline) <= 0) {
+                        throw ex;
+                    }
+                    return retry(search, index, ex, deadline);
+                }
+            }
+        } catch (InterruptedException e) {
+            primary.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for a search", e);
+        } catch (ExecutionException e) {
+            //a search failing fast, e.g. on a server that is down, is retried right away and free of charge
+            return retry(search, index, unwrap(e), deadline);
+        }
+
+        hedges.increment();
+        metrics.hedgeSent();
+        final int hedgeIndex = nextReplica(index);
+        final CompletableFuture<R> hedge = send(search, hedgeIndex);
+        LOGGER.debug("Search did not succeed within {} ms, hedged on replica {}",
+                TimeUnit.NANOSECONDS.toMillis(delayNanos), hedgeIndex);
+
+        final CompletableFuture<CompletableFuture<R>> winner = new CompletableFuture<>();
+        final AtomicInteger failures = new AtomicInteger();
+        for (CompletableFuture<R> attempt : Arrays.asList(primary, hedge)) {
+            attempt.whenComplete((r, e) -> {
+                if (e == null) {
+                    winner.complete(attempt);
+                } else if (failures.incrementAndGet() == 2) {
+                    winner.completeExceptionally(e);
+                }
+            });
+        }
+
+        final CompletableFuture<R> won;
+        try {
+            won = winner.get(remaining(deadline), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            primary.cancel(true);
+            hedge.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for a hedged search", e);
+        } catch (TimeoutException e) {
+            primary.cancel(true);
+            hedge.cancel(true);
+            throw timedOut(e);
+        } catch (ExecutionException e) {
+            throw unwrap(e);
+        }
+        if (won == hedge) {
+            hedgeWins.increment();
+            metrics.hedgeWon();
+            if (primary.cancel(true)) {
+                //the abandoned search took at least this long, keep it in the latencies
+                sample(System.nanoTime() - start);
+            }
+        } else {
+            hedge.cancel(true);
+        }
+        return won.join();
+    }
+
+    /*
+     * Retries a failed search once on the replica following the one it failed on, unless the time is up.
+     */
+    private <R> R retry(final Function<ConnectionFactory, CompletableFuture<R>> search, final int failed,
+                        final RuntimeException cause, final long deadline) {
+        if (remaining(deadline) <= 0) {
+            throw cause;
+        }
+        final int index = nextReplica(failed);
+        retries.increment();
+        LOGGER.debug("Search failed on replica {}, retried on replica {}", failed, index, cause);
+        try {
+            return await(send(search, index), deadline);
+        } catch (RuntimeException e) {
+            e.addSuppressed(cause);
+            throw e;
+        }
+    }
+
+    /*
+     * Sends the search to a replica, keeping track of the replicas whose searches fail. Cancelled searches, e.g.
+     * hedges that lost, say nothing about their replica.
+     */
+    private <R> CompletableFuture<R> send(final Function<ConnectionFactory, CompletableFuture<R>> search,
+                                          final int index) {
+        final CompletableFuture<R> future = search.apply(replicas.get(index));
+        future.whenComplete((r, e) -> {
+            if (e == null) {
+                failedUntil.set(index, 0);
+            } else if (!future.isCancelled()) {
+                failedUntil.set(index, System.nanoTime() + UNHEALTHY_NANOS);
+            }
+        });
+        return future;
+    }
+
+    /*
+     * @return next replica in turn that is healthy, or simply the next one in turn when none is
+     */
+    private int firstReplica() {
+        final int first = Math.floorMod(rotation.getAndIncrement(), replicas.size());
+        for (int i = 0; i < replicas.size(); i++) {
+            final int index = (first + i) % replicas.size();
+            if (isHealthy(index)) {
+                return index;
+            }
+        }
+        return first;
+    }
+
+    /*
+     * @return first healthy replica after the given one, or simply the one after it when none is
+     */
+    private int nextReplica(final int index) {
+        for (int i = 1; i < replicas.size(); i++) {
+            final int next = (index + i) % replicas.size();
+            if (isHealthy(next)) {
+                return next;
+            }
+        }
+        return (index + 1) % replicas.size();
+    }
+
+    private boolean isHealthy(final int index) {
+        final long until = failedUntil.get(index);
+        return (until == 0 || until - System.nanoTime() <= 0) && available.test(replicas.get(index));
+    }
+
+    private boolean acquireToken() {
+        synchronized (latencies) {
+            if (tokens < 1) {
+                return false;
+            }
+            tokens--;
+            return true;
+        }
+    }
+
+    private void sample(final long nanos) {
+        final long[] sorted;
+        synchronized (latencies) {
+            latencies[sampleCount % SAMPLES] = nanos;
+            sampleCount++;
+            if (sampleCount % RECOMPUTE_INTERVAL != 0) {
+                return;
+            }
+            sorted = Arrays.copyOf(latencies, Math.min(sampleCount, SAMPLES));
+        }
+        Arrays.sort(sorted);
+        final long delay = sorted[(int) Math.min(sorted.length - 1, Math.floor(sorted.length * percentile))];
+        delayNanos = Math.max(minDelayNanos, Math.min(maxDelayNanos, delay));
+    }
+
+    private static <R> R await(final CompletableFuture<R> future, final long deadline) {
+        try {
+            return future.get(remaining(deadline), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for a search", e);
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            throw timedOut(e);
+        } catch (ExecutionException e) {
+            throw unwrap(e);
+        }
+    }
+
+    private static long remaining(final long deadline) {
+        return Math.max(0, deadline - System.nanoTime());
+    }
+
+    private static IllegalStateException timedOut(final TimeoutException e) {
+        return new IllegalStateException("Search timed out", e);
+    }
+
+    private static RuntimeException unwrap(final ExecutionException e) {
+        if (e.getCause() instanceof RuntimeException) {
+            return (RuntimeException) e.getCause();
+        }
+        if (e.getCause() instanceof Error) {
+            throw (Error) e.getCause();
+        }
+        return new IllegalStateException("Search failed", e.getCause());
+    }
+
+    /**
+     * Closes the connection factories of the replicas.
+     */
+    public void close() {
+        for (ConnectionFactory replica : replicas) {
+            replica.close();
+        }
+    }
+
+    /**
+     * @return current hedge delay
+     */
+    public Duration getDelay() {
+        return Duration.ofNanos(delayNanos);
+    }
+
+    public long getSearchCount() {
+        return searches.sum();
+    }
+
+    public long getHedgeCount() {
+        return hedges.sum();
+    }
+
+    public long getHedgeWinCount() {
+        return hedgeWins.sum();
+    }
+
+    /**
+     * @return number of failed searches retried on another replica
+     */
+    public long getRetryCount() {
+        return retries.sum();
+    }
+
+    /**
+     * @return number of slow searches not hedged because the budget was spent
+     */
+    public long getOverBudgetCount() {
+        return overBudget.sum();
+    }
+
+    /**
+     * @return fraction of searches hedged
+     */
+    public double getHedgeRate() {
+        final long count = searches.sum();
+        return count == 0 ? 0 : hedges.sum() / (double) count;
+    }
+
+    /**
+     * @return fraction of hedges that completed before the search they hedged
+     */
+    public double getWinRate() {
+        final long count = hedges.sum();
+        return count == 0 ? 0 : hedgeWins.sum() / (double) count;
+    }
+
+    @Override
+    public String toString() {
+        return new StringBuilder("[").append(getClass().getName()).append("@").append(hashCode())
+                .append("::replicas=").append(replicas.size())
+                .append(", percentile=").append(percentile)
+                .append(", budget=").append(budget)
+                .append(", delay=").append(getDelay()).append("]").toString();
+    }
+}
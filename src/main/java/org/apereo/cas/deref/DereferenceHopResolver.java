@@ -0,0 +1,273 @@
+package org.apereo.cas.deref;
+
+import lombok.extern.slf4j.Slf4j;
+import org.ldaptive.ConnectionFactory;
+import org.ldaptive.LdapAttribute;
+import org.ldaptive.LdapEntry;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Resolves the hops after the first of the multi-hop paths of a {@link DereferenceSpec}. The first hop comes back
+ * with the entry, from the deref control or a secondary search; every later hop is resolved for all paths at once:
+ * the DNs reached by every path are collected, each distinct DN is read once with a base object search returning
+ * the attributes any path follows, and the next hop is taken from what was read.
+ *
+ * DNs read during a query are remembered for the rest of that query, and for a short time across queries through
+ * the shared {@link DereferenceDnMemo}.
+ */
+@Slf4j
+public class DereferenceHopResolver {
+
+    private final ConnectionFactory connectionFactory;
+    private final DereferenceSpec spec;
+    private final Executor executor;
+    private final int maxFanOut;
+    private final DereferenceDnMemo memo;
+
+    /** Attributes of the spec read as bytes. */
+    private final String[] binaryAttributes;
+
+    /** Attributes followed after the first hop of any path, read from every intermediate entry. */
+    private final String[] hopAttributes;
+
+    /**
+     * Creates a new resolver.
+     *
+     * @param connectionFactory connection factory used for the base object searches
+     * @param spec              compiled dereference specification holding the paths
+     * @param executor          executor running the base object searches
+     * @param maxFanOut         maximum number of concurrent base object searches per hop
+     * @param memo              memo shared between queries, may be null
+     */
+    public DereferenceHopResolver(final ConnectionFactory connectionFactory, final DereferenceSpec spec,
+                                  final Executor executor, final int maxFanOut, final DereferenceDnMemo memo) {
+        if (maxFanOut <= 0) {
+            throw new IllegalArgumentException("maxFanOut must be greater than zero");
+        }
+        this.connectionFactory = connectionFactory;
+        this.spec = spec;
+        this.executor = executor;
+        this.maxFanOut = maxFanOut;
+        this.memo = memo;
+        this.binaryAttributes = spec.getBinaryAttributes();
+
+        final Set<String> attrs = new LinkedHashSet<>();
+        for (DereferenceSpec.Path path : spec.getPaths()) {
+            for (int hop = 1; hop < path.getLength(); hop++) {
+                attrs.add(path.getHop(hop));
+            }
+        }
+        this.hopAttributes = attrs.toArray(new String[0]);
+    }
+
+    /**
+     * Adds the values at the end of every path to the entry, under the path's output name. Values of first hops
+     * only dereferenced for a path are removed. Blocks until every hop is resolved, so it must not run on the
+     * executor of the base object searches when that executor is bounded.
+     *
+     * @param entry   merged entry holding the first hop values
+     * @param timeout nanoseconds to wait for all hops at most
+     */
+    public void resolve(final LdapEntry entry, final long timeout) {
+        final long deadline = System.nanoTime() + timeout;
+        final List<DereferenceSpec.Path> paths = spec.getPaths();
+        final Map<String, Map<String, List<Object>>> resolved = new ConcurrentHashMap<>();
+        final List<Collection<String>> reached = new ArrayList<>(paths.size());
+        int maxLength = 0;
+        for (DereferenceSpec.Path path : paths) {
+            final LdapAttribute firstHop = entry.getAttribute(path.getName(0));
+            reached.add(firstHop != null ? firstHop.getStringValues() : Collections.emptyList());
+            maxLength = Math.max(maxLength, path.getLength());
+        }
+
+        for (int hop = 1; hop < maxLength; hop++) {
+            final Set<String> dns = new LinkedHashSet<>();
+            for (int i = 0; i < paths.size(); i++) {
+                if (paths.get(i).getLength() > hop) {
+                    dns.addAll(reached.get(i));
+                }
+            }
+            read(dns, resolved, deadline);
+
+            for (int i = 0; i < paths.size(); i++) {
+                final DereferenceSpec.Path path = paths.get(i);
+                if (path.getLength() <= hop) {
+                    continue;
+                }
+                final String attr = path.getHop(hop).toLowerCase(Locale.ROOT);
+                final Set<Object> next = new LinkedHashSet<>();
+                for (String dn : reached.get(i)) {
+                    final Map<String, List<Object>> attrs = resolved.get(DereferenceDnMemo.key(dn));
+                    final List<Object> values = attrs != null ? attrs.get(attr) : null;
+                    if (values != null) {
+                        next.addAll(values);
+                    }
+                }
+                if (hop == path.getLength() - 1 && !next.isEmpty()) {
+                    entry.addAttributes(toAttribute(path.getName(hop), next));
+                }
+                final Set<String> nextDns = new LinkedHashSet<>(next.size());
+                for (Object value : next) {
+                    if (value instanceof String) {
+                        nextDns.add((String) value);
+                    }
+                }
+                reached.set(i, nextDns);
+            }
+        }
+
+        for (DereferenceSpec.Path path : paths) {
+            if (spec.isImplicit(path.getDerefAttrName(), path.getHop(0))
+                    && entry.getAttribute(path.getName(0)) != null) {
+                entry.removeAttribute(path.getName(0));
+            }
+        }
+    }
+
+    /*
+     * Reads the hop attributes of every DN not read yet during this query. DNs memoised, or being read by another
+     * query, are taken from the shared memo instead of being read again. At most maxFanOut reads run at a time,
+     * each one starting the next when it completes, so the caller only waits for the last of them.
+     */
+    private void read(final Set<String> dns, final Map<String, Map<String, List<Object>>> resolved,
+                      final long deadline) {
+        final Queue<Read> queue = new ConcurrentLinkedQueue<>();
+        final List<CompletableFuture<Void>> reads = new ArrayList<>();
+        for (String dn : dns) {
+            final String key = DereferenceDnMemo.key(dn);
+            if (resolved.containsKey(key)) {
+                continue;
+            }
+            final CompletableFuture<Map<String, List<Object>>> reading = new CompletableFuture<>();
+            final CompletableFuture<Map<String, List<Object>>> memoised =
+                    memo != null ? memo.putIfAbsent(dn, reading) : null;
+            if (memoised != null) {
+                reads.add(memoised.thenAccept(attrs -> resolved.put(key, attrs)));
+                continue;
+            }
+            queue.add(new Read(dn, reading));
+            reads.add(reading.thenAccept(attrs -> resolved.put(key, attrs)));
+        }
+        final int searched = queue.size();
+        for (int i = 0; i < Math.min(maxFanOut, searched); i++) {
+            readNext(queue);
+        }
+
+        try {
+            CompletableFuture.allOf(reads.toArray(new CompletableFuture[0]))
+                    .get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException ex) {
+            fail(queue, ex);
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while resolving dereference paths", ex);
+        } catch (TimeoutException ex) {
+            //reads not started yet are dropped, those running complete for the memo
+            fail(queue, ex);
+            throw new IllegalStateException("Timed out resolving dereference paths", ex);
+        } catch (ExecutionException ex) {
+            throw new IllegalStateException("Failed to resolve dereference paths", ex.getCause());
+        }
+        LOGGER.trace("Resolved {} DN(s), read {}", dns.size(), searched);
+    }
+
+    /*
+     * Starts the next queued read, which starts the one after it once it completes. A read the executor turns down
+     * fails, and is not shared through the memo.
+     */
+    private void readNext(final Queue<Read> queue) {
+        Read read;
+        while ((read = queue.poll()) != null) {
+            final Read current = read;
+            try {
+                CompletableFuture
+                        .supplyAsync(() -> DereferenceSecondarySearch.lookup(connectionFactory, current.dn,
+                                hopAttributes, binaryAttributes), executor)
+                        .whenComplete((target, ex) -> {
+                            //a failed read is not shared, the next query tries again
+                            if (target == null && memo != null) {
+                                memo.remove(current.dn, current.reading);
+                            }
+                            current.reading.complete(toMap(target));
+                            readNext(queue);
+                        });
+                return;
+            } catch (RejectedExecutionException ex) {
+                current.fail(ex);
+            }
+        }
+    }
+
+    private void fail(final Queue<Read> queue, final Exception cause) {
+        Read read;
+        while ((read = queue.poll()) != null) {
+            read.fail(cause);
+        }
+    }
+
+    /*
+     * Values at the end of a path, binary ones as bytes.
+     */
+    private static LdapAttribute toAttribute(final String name, final Collection<Object> values) {
+        if (values.iterator().next() instanceof byte[]) {
+            return new LdapAttribute(name, values.toArray(new byte[0][]));
+        }
+        final List<String> strings = new ArrayList<>(values.size());
+        for (Object value : values) {
+            strings.add(value.toString());
+        }
+        return new LdapAttribute(name, strings.toArray(new String[0]));
+    }
+
+    /*
+     * Base object search of a DN, queued until a read slot is free.
+     */
+    private final class Read {
+
+        private final String dn;
+
+        private final CompletableFuture<Map<String, List<Object>>> reading;
+
+        Read(final String dn, final CompletableFuture<Map<String, List<Object>>> reading) {
+            this.dn = dn;
+            this.reading = reading;
+        }
+
+        void fail(final Exception cause) {
+            if (memo != null) {
+                memo.remove(dn, reading);
+            }
+            reading.completeExceptionally(cause);
+        }
+    }
+
+    private static Map<String, List<Object>> toMap(final LdapEntry target) {
+        if (target == null) {
+            return Collections.emptyMap();
+        }
+        final Map<String, List<Object>> attrs = new HashMap<>(target.size());
+        for (LdapAttribute attr : target.getAttributes()) {
+            //binary values stay bytes, see DereferenceSpec
+            attrs.put(attr.getName().toLowerCase(Locale.ROOT), Collections.unmodifiableList(
+                    new ArrayList<>(attr.isBinary() ? attr.getBinaryValues() : attr.getStringValues())));
+        }
+        return Collections.unmodifiableMap(attrs);
+    }
+}
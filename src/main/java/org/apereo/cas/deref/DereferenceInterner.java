@@ -0,0 +1,145 @@
+package org.apereo.cas.deref;
+
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded pool of canonical instances of the DNs and values read from the directory. Across users the dereferenced
+ * values are mostly the same few thousand group and manager DNs and names, so people holding the pooled instance
+ * share one copy instead of holding one each.
+ *
+ * The pool only references its instances weakly: a value no person holds any more is collected and leaves the pool.
+ * When the pool is full, new values are returned as is rather than evicting values in use.
+ *
+ * DNs can also be kept as {@link DereferenceDn}s, whose parent DNs are pooled as well, so the DNs of all the groups
+ * under one branch share its suffix.
+ */
+public class DereferenceInterner {
+
+    /** Stripes of the pool, each locked on its own. */
+    private static final int STRIPES = 16;
+
+    private final Pool<String> strings;
+    private final Pool<DereferenceDn> dns;
+    private final boolean compactDns;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Creates a new pool.
+     *
+     * @param maxSize    maximum number of strings pooled, and of DN components when compactDns is set
+     * @param compactDns whether DNs are kept as {@link DereferenceDn}s sharing their suffixes
+     */
+    public DereferenceInterner(final int maxSize, final boolean compactDns) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize must be greater than zero");
+        }
+        this.strings = new Pool<>(maxSize);
+        this.dns = compactDns ? new Pool<>(maxSize) : null;
+        this.compactDns = compactDns;
+    }
+
+    /**
+     * @param value value read from the directory, may be null
+     * @return the pooled instance equal to the value, the value itself when it was not pooled yet
+     */
+    public String intern(final String value) {
+        return value != null ? strings.intern(value) : null;
+    }
+
+    /**
+     * @param dn DN read from the directory, may be null
+     * @return the pooled DN, as a {@link DereferenceDn} when compact DNs are enabled, otherwise as a string
+     */
+    public CharSequence internDn(final String dn) {
+        if (dn == null || !compactDns) {
+            return intern(dn);
+        }
+        return DereferenceDn.parse(dn, this);
+    }
+
+    /**
+     * @param dn DN component built bottom up, its parent already pooled
+     * @return the pooled component equal to the given one
+     */
+    DereferenceDn intern(final DereferenceDn dn) {
+        return dns != null ? dns.intern(dn) : dn;
+    }
+
+    public boolean isCompactDns() {
+        return compactDns;
+    }
+
+    /**
+     * @return number of strings and DN components pooled, collected ones may still be counted
+     */
+    public int size() {
+        return strings.size() + (dns != null ? dns.size() : 0);
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    @Override
+    public String toString() {
+        return new StringBuilder("[").append(getClass().getName()).append("@").append(hashCode())
+                .append("::size=").append(size())
+                .append(", compactDns=").append(compactDns)
+                .append(", hits=").append(getHitCount())
+                .append(", misses=").append(getMissCount()).append("]").toString();
+    }
+
+    /*
+     * Striped, weakly referenced canonical instances.
+     */
+    private final class Pool<T> {
+
+        private final Map<T, WeakReference<T>>[] stripes;
+        private final int maxStripeSize;
+
+        @SuppressWarnings("unchecked")
+        private Pool(final int maxSize) {
+            this.stripes = new Map[STRIPES];
+            for (int i = 0; i < STRIPES; i++) {
+                stripes[i] = new WeakHashMap<>();
+            }
+            this.maxStripeSize = Math.max(1, maxSize / STRIPES);
+        }
+
+        private T intern(final T value) {
+            final Map<T, WeakReference<T>> stripe = stripes[Math.floorMod(value.hashCode(), STRIPES)];
+            synchronized (stripe) {
+                final WeakReference<T> ref = stripe.get(value);
+                final T pooled = ref != null ? ref.get() : null;
+                if (pooled != null) {
+                    hits.increment();
+                    return pooled;
+                }
+                misses.increment();
+                if (stripe.size() < maxStripeSize) {
+                    stripe.put(value, new WeakReference<>(value));
+                }
+                return value;
+            }
+        }
+
+        private int size() {
+            int size = 0;
+            for (Map<T, WeakReference<T>> stripe : stripes) {
+                synchronized (stripe) {
+                    size += stripe.size();
+                }
+            }
+            return size;
+        }
+    }
+}
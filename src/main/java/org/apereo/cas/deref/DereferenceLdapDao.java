@@ -3,37 +3,256 @@ package org.apereo.cas.deref;
 import lombok.extern.slf4j.Slf4j;
 import org.apereo.services.persondir.IPersonAttributes;
 import org.apereo.services.persondir.support.AbstractQueryPersonAttributeDao;
-import org.apereo.services.persondir.support.CaseInsensitiveAttributeNamedPersonImpl;
-import org.apereo.services.persondir.support.CaseInsensitiveNamedPersonImpl;
-import org.apereo.services.persondir.support.QueryType;
 import org.ldaptive.*;
+import org.ldaptive.control.SortKey;
 import org.ldaptive.handler.LdapEntryHandler;
 import org.ldaptive.handler.SearchResultHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.util.Assert;
 
 import javax.naming.directory.SearchControls;
 import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Flow;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 @Slf4j
-public class DereferenceLdapDao extends AbstractQueryPersonAttributeDao<FilterTemplate> implements InitializingBean {
+public class DereferenceLdapDao extends AbstractQueryPersonAttributeDao<FilterTemplate>
+        implements InitializingBean, DisposableBean {
 
-    private final boolean setReturningAttributes = true;
-    private QueryType queryType = QueryType.AND;
     private HashMap<String, String> dereference = null;
     private HashMap<String, String> dereferenceExtended = null;
 
-    private SearchControls SearchCtrl;
-    private DereferenceResponseControl dereferenceResponseControl;
+    /** Stateless, shared by all concurrent searches; per-call state lives in {@link DereferenceQuery}. */
     private DereferenceResultHandler dereferenceResultHandler;
-    private DereferenceRequestControl dereferenceRequestControl;
+    /** Pre-encoded deref control shared by every search request, built in afterPropertiesSet. */
+    private DereferenceControl dereferenceControl;
     private DereferenceResponseControlHandler dereferenceResponseControlHandler;
+    /** Compiled dereference and dereferenceExtended settings, built in afterPropertiesSet. */
+    private DereferenceSpec dereferenceSpec;
+    /** Route, secondary attributes and control of every query, built in afterPropertiesSet. */
+    private DereferenceQueryPlanner planner;
+    /** Sends every lookup search, through the breakers or the hedger when enabled, built in afterPropertiesSet. */
+    private DereferenceQueryExecutor queryExecutor;
+
+    /**
+     * Optional person attribute cache consulted before searching.
+     */
+    private DereferenceAttributeCache cache;
+
+    /**
+     * Optional coalescer sharing one search between concurrent identical queries.
+     */
+    private DereferenceQueryCoalescer coalescer;
 
     private boolean useDeref = true; //defaults to true
 
+    /**
+     * Client side dereferencing used when the deref control is disabled, built in afterPropertiesSet.
+     */
+    private DereferenceSecondarySearch secondarySearch;
+
+    /**
+     * Executor running the secondary base object searches.
+     */
+    private Executor secondarySearchExecutor;
+
+    /**
+     * Executor running the work waiting on other searches, kept apart from the base object searches it waits on.
+     */
+    private Executor lookupExecutor;
+
+    /**
+     * Threads of the executors the DAO creates when none is set.
+     */
+    private int secondarySearchThreads = 32;
+    private int lookupThreads = 16;
+    private int bulkThreads = 8;
+
+    /**
+     * Executors created by the DAO, shut down by destroy; executors set from outside are left to their owner.
+     */
+    private final List<ExecutorService> ownedExecutors = new ArrayList<>();
+
+    /**
+     * Maximum number of concurrent secondary searches per lookup.
+     */
+    private int secondarySearchMaxFanOut = 8;
+
+    /**
+     * Resolves the later hops of multi-hop dereference paths, built in afterPropertiesSet when paths are set.
+     */
+    private DereferenceHopResolver hopResolver;
+
+    /**
+     * Attributes of intermediate path entries shared between queries.
+     */
+    private DereferenceDnMemo dnMemo = new DereferenceDnMemo(10000, Duration.ofSeconds(30));
+
+    /**
+     * Whether the DAO replaces the configured connection factory with a pool of its own.
+     */
+    private boolean managedPool;
+    private int poolMinSize = 4;
+    private int poolMaxSize = 32;
+    private Duration poolValidatePeriod = Duration.ofMinutes(5);
+    private Duration poolIdleTime = Duration.ofMinutes(10);
+    private Duration poolBlockWaitTime = Duration.ofSeconds(5);
+    private String poolName;
+
+    /**
+     * Pool owned by the DAO, built in afterPropertiesSet when managedPool is set.
+     */
+    private DereferenceConnectionPool connectionPool;
+
+    /**
+     * Whether slow searches are hedged on another of the servers of the LDAP URL.
+     */
+    private boolean hedging;
+    private double hedgePercentile = 0.95;
+    private Duration hedgeMinDelay = Duration.ofMillis(5);
+    private Duration hedgeMaxDelay = Duration.ofMillis(500);
+    private double hedgeBudget = 0.05;
+
+    /**
+     * Hedger owning one pool per server, built in afterPropertiesSet when hedging is set.
+     */
+    private DereferenceHedger hedger;
+
+    /**
+     * Whether every server of the LDAP URL gets a circuit breaker, so searches skip servers that keep failing.
+     */
+    private boolean circuitBreaker;
+    private int circuitBreakerFailureThreshold = 5;
+    private Duration circuitBreakerOpenDuration = Duration.ofSeconds(30);
+
+    /**
+     * Circuit breakers of the servers, built in afterPropertiesSet when circuitBreaker is set.
+     */
+    private List<DereferenceCircuitBreaker> breakers;
+
+    /**
+     * Pool per server, built in afterPropertiesSet when searches are hedged or guarded by circuit breakers.
+     */
+    private Map<String, ConnectionFactory> replicaPools;
+
+    /**
+     * Deadline of every lookup, null bounds them by the time limit of the search controls only.
+     */
+    private Duration queryTimeout;
+
+    /**
+     * Time limit of the primary-only search run when a lookup failed and nothing is cached, null disables it.
+     */
+    private Duration fallbackTimeout;
+
+    /**
+     * Caps on the values and entries a lookup holds, zero disables a cap.
+     */
+    private int maxValuesPerAttribute;
+    private long maxDecodedBytes;
+    private int maxMergedEntries;
+
+    /**
+     * Limits built from the caps in afterPropertiesSet.
+     */
+    private DereferenceLimits limits = DereferenceLimits.UNLIMITED;
+
+    /**
+     * Whether the DNs and values of people are taken from a pool shared by all lookups.
+     */
+    private boolean interning;
+    private int internPoolSize = 100000;
+    private boolean compactDns;
+
+    /**
+     * Pool of DNs and values, built in afterPropertiesSet when interning is set.
+     */
+    private DereferenceInterner interner;
+
+    /**
+     * Attributes holding the DNs being dereferenced, pooled as compact DNs when set.
+     */
+    private Set<String> dnAttributeNames = Collections.emptySet();
+
+    /**
+     * Number of user names OR-ed into one search by {@link #getPeopleByUserNames(Collection)}.
+     */
+    private int bulkBatchSize = 100;
+
+    /**
+     * Maximum number of batch searches of one bulk lookup running at the same time.
+     */
+    private int bulkParallelism = 4;
+
+    /**
+     * Executor running the batch searches of bulk lookups.
+     */
+    private Executor bulkExecutor;
+
+    /**
+     * Entries per page, zero disables paging.
+     */
+    private int pageSize;
+
+    /**
+     * Sort attributes of the virtual list view, paging uses simple paged results when not set.
+     */
+    private String[] virtualListViewSortAttributes;
+
+    /**
+     * Pages large searches when a page size is set, built in afterPropertiesSet.
+     */
+    private DereferencePagedSearch pagedSearch;
+
+    /**
+     * Whether every dereference attribute is sent in the control or resolved by secondary searches, whichever
+     * was faster lately.
+     */
+    private boolean adaptiveDereference;
+    private Map<String, String> dereferencePins;
+    private Duration adaptiveEvaluationInterval = Duration.ofMinutes(1);
+    private double adaptiveExplorationRate = 0.01;
+    private double adaptiveMargin = 0.2;
+    private int adaptiveExplorationMaxValues = 100;
+
+    /**
+     * Chooses the way of every dereference attribute, built in afterPropertiesSet when adaptiveDereference is set.
+     */
+    private DereferenceStrategy strategy;
+
+    /**
+     * Whether to read supportedControl from the RootDSE of every server and route queries accordingly.
+     */
+    private boolean probeSupportedControls;
+
+    /**
+     * Interval between background RootDSE probes.
+     */
+    private Duration supportedControlRefreshInterval = Duration.ofMinutes(5);
+
+    /**
+     * RootDSE probe, built in afterPropertiesSet when enabled.
+     */
+    private DereferenceSupportProbe supportProbe;
+
+    /**
+     * Receives per-phase timings and volume counters of every query.
+     */
+    private DereferenceMetrics metrics = DereferenceMetrics.NOOP;
+
     protected final Logger logger = LoggerFactory.getLogger(this.getClass());
 
     /**
@@ -42,164 +261,1287 @@ public class DereferenceLdapDao extends AbstractQueryPersonAttributeDao<FilterTe
     private String baseDN;
 
     /**
-     * Search controls.
+     * Search controls.
+     */
+    private SearchControls searchControls;
+
+    /**
+     * LDAP connection factory.
+     */
+    private ConnectionFactory connectionFactory;
+
+    /**
+     * LDAP search filter.
+     */
+    private String searchFilter;
+
+    /**
+     * LDAP binary attributes.
+     */
+    private String[] binaryAttributes;
+
+    /**
+     * LDAP entry handlers.
+     */
+    private LdapEntryHandler[] entryHandlers;
+
+    /**
+     * LDAP search result handlers.
+     */
+    private SearchResultHandler[] searchResultHandlers;
+
+    public DereferenceLdapDao() {
+        super();
+    }
+
+    public String getBaseDN() {
+        return baseDN;
+    }
+
+    /**
+     * Sets the base DN of the LDAP search for attributes. Every search starts there; null searches from the root,
+     * the empty DN.
+     *
+     * @param dn LDAP base DN of search.
+     */
+    public void setBaseDN(final String dn) {
+        this.baseDN = dn != null ? dn : "";
+    }
+
+    /**
+     * Sets whether the deref control is sent. When disabled, the configured dereference attributes are resolved
+     * by secondary searches instead.
+     *
+     * @param useDeref whether to use the deref control.
+     */
+    public void setUseDeref(final boolean useDeref) {
+        this.useDeref = useDeref;
+    }
+
+    /**
+     * Sets the executor running the base object searches of secondary searches and path hops, which never wait
+     * on other tasks. Defaults to a pool of {@link #setSecondarySearchThreads(int)} daemon threads, shut down with
+     * the DAO; a virtual thread per task executor is a good fit where available.
+     *
+     * @param secondarySearchExecutor executor.
+     */
+    public void setSecondarySearchExecutor(final Executor secondarySearchExecutor) {
+        this.secondarySearchExecutor = secondarySearchExecutor;
+    }
+
+    /**
+     * Sets the executor running the work that waits on other searches: folding secondary searches and path hops
+     * into the result of an asynchronous lookup, asynchronous lookups that are paged or hedged, the fallback search
+     * of asynchronous lookups and streamed people. The base object searches they wait on run on the secondary
+     * search executor, which never waits on this one, so either can be bounded without deadlocking. Defaults to
+     * a pool of {@link #setLookupThreads(int)} daemon threads, shut down with the DAO.
+     *
+     * @param lookupExecutor executor.
+     */
+    public void setLookupExecutor(final Executor lookupExecutor) {
+        this.lookupExecutor = lookupExecutor;
+    }
+
+    /**
+     * Sets the number of threads of the secondary search executor the DAO creates when none is set, 32 by
+     * default. Searches past it wait in the queue of the executor.
+     *
+     * @param secondarySearchThreads threads.
+     */
+    public void setSecondarySearchThreads(final int secondarySearchThreads) {
+        this.secondarySearchThreads = secondarySearchThreads;
+    }
+
+    /**
+     * Sets the number of threads of the lookup executor the DAO creates when none is set, 16 by default.
+     *
+     * @param lookupThreads threads.
+     */
+    public void setLookupThreads(final int lookupThreads) {
+        this.lookupThreads = lookupThreads;
+    }
+
+    /**
+     * Sets the number of threads of the bulk executor the DAO creates when none is set, 8 by default.
+     *
+     * @param bulkThreads threads.
+     */
+    public void setBulkThreads(final int bulkThreads) {
+        this.bulkThreads = bulkThreads;
+    }
+
+    /**
+     * Sets the maximum number of concurrent secondary searches per lookup.
+     *
+     * @param secondarySearchMaxFanOut maximum fan-out.
+     */
+    public void setSecondarySearchMaxFanOut(final int secondarySearchMaxFanOut) {
+        this.secondarySearchMaxFanOut = secondarySearchMaxFanOut;
+    }
+
+    /**
+     * Sets the memo of intermediate path entries shared between queries, null disables sharing. Defaults to
+     * 10000 DNs kept for 30 seconds.
+     *
+     * @param dnMemo DN memo.
+     */
+    public void setDnMemo(final DereferenceDnMemo dnMemo) {
+        this.dnMemo = dnMemo;
+    }
+
+    public DereferenceDnMemo getDnMemo() {
+        return dnMemo;
+    }
+
+    /**
+     * Sets whether the DAO opens a connection pool of its own from the config of the configured connection
+     * factory, instead of using that factory. The pool opens and binds its minimum number of connections in
+     * afterPropertiesSet, validates idle connections in the background, grows up to its maximum size under
+     * concurrent load and shrinks back when idle. Its wait times and utilisation are reported to the metrics.
+     * A directory unreachable at deploy time is logged and does not keep the DAO from starting; connections are
+     * then opened on demand. The configured connection factory must not be a pool itself, since it would be left
+     * open beside the managed one.
+     *
+     * @param managedPool whether to use a managed pool.
+     */
+    public void setManagedPool(final boolean managedPool) {
+        this.managedPool = managedPool;
+    }
+
+    /**
+     * @param poolMinSize connections of the managed pool opened up front and kept when idle.
+     */
+    public void setPoolMinSize(final int poolMinSize) {
+        this.poolMinSize = poolMinSize;
+    }
+
+    /**
+     * @param poolMaxSize maximum number of connections of the managed pool.
+     */
+    public void setPoolMaxSize(final int poolMaxSize) {
+        this.poolMaxSize = poolMaxSize;
+    }
+
+    /**
+     * @param poolValidatePeriod interval between background validations of idle pooled connections.
+     */
+    public void setPoolValidatePeriod(final Duration poolValidatePeriod) {
+        this.poolValidatePeriod = poolValidatePeriod;
+    }
+
+    /**
+     * @param poolIdleTime time after which idle pooled connections above the minimum are closed.
+     */
+    public void setPoolIdleTime(final Duration poolIdleTime) {
+        this.poolIdleTime = poolIdleTime;
+    }
+
+    /**
+     * @param poolBlockWaitTime maximum time a query waits for a pooled connection.
+     */
+    public void setPoolBlockWaitTime(final Duration poolBlockWaitTime) {
+        this.poolBlockWaitTime = poolBlockWaitTime;
+    }
+
+    /**
+     * @param poolName name of the managed pool, tagging its meters. Defaults to the LDAP URL of the connection
+     *                 config; DAOs with managed pools on the same servers need distinct names.
+     */
+    public void setPoolName(final String poolName) {
+        this.poolName = poolName;
+    }
+
+    public DereferenceConnectionPool getConnectionPool() {
+        return connectionPool;
+    }
+
+    /**
+     * Sets whether slow searches are hedged. Each server of the LDAP URL gets a pool of its own and searches go
+     * to the servers in turn; a search still running after the hedge delay is sent again, with the same deref
+     * control, to the next server, the first response wins and the other search is abandoned. A search that fails
+     * is retried on the next server whatever the hedge budget, and a server whose search failed, or whose circuit
+     * breaker is open, is skipped for a while. Servers unreachable at startup do not keep the DAO from starting.
+     * Needs at least two servers, paged searches are not hedged.
+     *
+     * @param hedging whether to hedge slow searches.
+     */
+    public void setHedging(final boolean hedging) {
+        this.hedging = hedging;
+    }
+
+    /**
+     * @param hedgePercentile percentile of the recent search latencies used as hedge delay, e.g. 0.95.
+     */
+    public void setHedgePercentile(final double hedgePercentile) {
+        this.hedgePercentile = hedgePercentile;
+    }
+
+    /**
+     * @param hedgeMinDelay minimum hedge delay.
+     */
+    public void setHedgeMinDelay(final Duration hedgeMinDelay) {
+        this.hedgeMinDelay = hedgeMinDelay;
+    }
+
+    /**
+     * @param hedgeMaxDelay maximum hedge delay, used until enough latencies are known.
+     */
+    public void setHedgeMaxDelay(final Duration hedgeMaxDelay) {
+        this.hedgeMaxDelay = hedgeMaxDelay;
+    }
+
+    /**
+     * @param hedgeBudget maximum fraction of searches hedged, e.g. 0.05.
+     */
+    public void setHedgeBudget(final double hedgeBudget) {
+        this.hedgeBudget = hedgeBudget;
+    }
+
+    public DereferenceHedger getHedger() {
+        return hedger;
+    }
+
+    /**
+     * Sets whether each server of the LDAP URL gets a circuit breaker and a pool of its own. After
+     * consecutive failed or timed out searches a server is skipped for the open duration, then a single probe
+     * search decides whether it is used again. Searches go to the first server whose breaker lets them through;
+     * with hedging, a search rejected by its breaker is hedged right away.
+     *
+     * @param circuitBreaker whether to break the circuit of failing servers.
+     */
+    public void setCircuitBreaker(final boolean circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    /**
+     * @param circuitBreakerFailureThreshold consecutive failures opening the circuit breaker of a server.
+     */
+    public void setCircuitBreakerFailureThreshold(final int circuitBreakerFailureThreshold) {
+        this.circuitBreakerFailureThreshold = circuitBreakerFailureThreshold;
+    }
+
+    /**
+     * @param circuitBreakerOpenDuration time a server is skipped before a probe search is sent to it.
+     */
+    public void setCircuitBreakerOpenDuration(final Duration circuitBreakerOpenDuration) {
+        this.circuitBreakerOpenDuration = circuitBreakerOpenDuration;
+    }
+
+    public List<DereferenceCircuitBreaker> getCircuitBreakers() {
+        return breakers != null ? Collections.unmodifiableList(breakers) : Collections.emptyList();
+    }
+
+    /**
+     * Sets the deadline of every lookup. It lowers the time limit sent to the server to the time left, rounded up
+     * to whole seconds, and the search is abandoned when no response arrived by the deadline. See also
+     * {@link #getPeopleWithDeadline(String, Duration)}.
+     * Without deadline the client waits for a search at most the response timeout of the connections, or one
+     * minute when they set none.
+     *
+     * @param queryTimeout deadline of a lookup, null for the time limit of the search controls only.
+     */
+    public void setQueryTimeout(final Duration queryTimeout) {
+        this.queryTimeout = queryTimeout;
+    }
+
+    /**
+     * Sets the time limit of the search run when a lookup failed and no stale cached people are left. It searches
+     * the user entry without the deref control, so the people come back without dereferenced attributes but login
+     * threads are not held. Degraded people are not cached.
+     *
+     * @param fallbackTimeout time limit of the primary-only search, null to fail the lookup instead.
+     */
+    public void setFallbackTimeout(final Duration fallbackTimeout) {
+        this.fallbackTimeout = fallbackTimeout;
+    }
+
+    /**
+     * Sets whether each dereference attribute is sent in the deref control or resolved by secondary searches,
+     * chosen per attribute from moving averages of the latency and number of values of each way. The choice is
+     * re-evaluated periodically, see {@link DereferenceStrategy}; the current choice is logged when it changes
+     * and available from {@link #getDereferenceStrategy()}.
+     *
+     * @param adaptiveDereference whether to choose the way of each attribute.
+     */
+    public void setAdaptiveDereference(final boolean adaptiveDereference) {
+        this.adaptiveDereference = adaptiveDereference;
+    }
+
+    /**
+     * Pins dereference attributes to one way, <code>deref</code> or <code>secondary</code>, e.g.
+     * <code>member = secondary</code>. Pinned attributes are never switched.
+     *
+     * @param dereferencePins map of derefAttrName to the way it is resolved.
+     */
+    public void setDereferencePins(final Map<String, String> dereferencePins) {
+        this.dereferencePins = dereferencePins;
+    }
+
+    /**
+     * @param adaptiveEvaluationInterval interval between two evaluations of the way of each attribute.
+     */
+    public void setAdaptiveEvaluationInterval(final Duration adaptiveEvaluationInterval) {
+        this.adaptiveEvaluationInterval = adaptiveEvaluationInterval;
+    }
+
+    /**
+     * @param adaptiveExplorationRate fraction of lookups resolving an attribute the other way to measure it.
+     */
+    public void setAdaptiveExplorationRate(final double adaptiveExplorationRate) {
+        this.adaptiveExplorationRate = adaptiveExplorationRate;
+    }
+
+    /**
+     * @param adaptiveMargin fraction by which the other way must be faster before an attribute is switched.
+     */
+    public void setAdaptiveMargin(final double adaptiveMargin) {
+        this.adaptiveMargin = adaptiveMargin;
+    }
+
+    /**
+     * Sets the mean number of values above which an attribute is never resolved by secondary searches to measure
+     * it, as exploring e.g. <code>member</code> of a large group would send one base object search per member on a
+     * live lookup. Defaults to 100.
+     *
+     * @param adaptiveExplorationMaxValues maximum mean number of values of an explored attribute.
+     */
+    public void setAdaptiveExplorationMaxValues(final int adaptiveExplorationMaxValues) {
+        this.adaptiveExplorationMaxValues = adaptiveExplorationMaxValues;
+    }
+
+    public DereferenceStrategy getDereferenceStrategy() {
+        return strategy;
+    }
+
+    /**
+     * Sets the maximum number of DNs dereferenced per dereference attribute of an entry, e.g. the groups of a
+     * member of very many groups. Results past it are stepped over while decoding the deref response, secondary
+     * searches skip the DNs past it, and the attribute is listed in
+     * {@link DereferenceLimits#TRUNCATED_ATTRIBUTE} of the person. Zero, the default, caps nothing.
+     *
+     * @param maxValuesPerAttribute maximum number of DNs dereferenced per attribute.
+     */
+    public void setMaxValuesPerAttribute(final int maxValuesPerAttribute) {
+        this.maxValuesPerAttribute = maxValuesPerAttribute;
+    }
+
+    /**
+     * Sets the maximum number of value bytes kept from the deref response of one entry. Once it is reached no more
+     * values are read from the response, and the attribute being decoded as well as every attribute of the results
+     * left undecoded are flagged. Zero, the default, caps nothing. Limits only apply to the controls read by this
+     * DAO.
+     *
+     * @param maxDecodedBytes maximum number of bytes decoded per control.
+     */
+    public void setMaxDecodedBytes(final long maxDecodedBytes) {
+        this.maxDecodedBytes = maxDecodedBytes;
+    }
+
+    /**
+     * Sets the maximum number of entries merged into the person of a lookup. Entries past it are dropped as they
+     * arrive and counted in {@link DereferenceLimits#TRUNCATED_ENTRIES_ATTRIBUTE}. Zero, the default, caps
+     * nothing.
+     *
+     * @param maxMergedEntries maximum number of merged entries.
+     */
+    public void setMaxMergedEntries(final int maxMergedEntries) {
+        this.maxMergedEntries = maxMergedEntries;
+    }
+
+    public DereferenceLimits getLimits() {
+        return limits;
+    }
+
+    /**
+     * Sets whether the DNs and string values of people are taken from a bounded, weakly referenced pool of this
+     * DAO, so cached and in-flight people holding the same group or manager DNs share one copy. Every value of a
+     * person is then converted and pooled when the person is built, and the search result entry is not kept.
+     * What it saves depends on how many values repeat across the people held, against the cost of a pool lookup
+     * per value; it has not been measured here, so it defaults to false.
+     *
+     * @param interning whether to pool DNs and values.
+     */
+    public void setInterning(final boolean interning) {
+        this.interning = interning;
+    }
+
+    /**
+     * @param internPoolSize maximum number of pooled values, values past it are kept as is. Defaults to 100000.
+     */
+    public void setInternPoolSize(final int internPoolSize) {
+        this.internPoolSize = internPoolSize;
+    }
+
+    /**
+     * Sets whether the values of the dereference attributes, the DNs being dereferenced, are kept as
+     * {@link DereferenceDn}s, which share their parent DNs, instead of pooled strings. They are rendered as
+     * strings each time they are read. Only used when interning is set.
+     *
+     * @param compactDns whether to keep compact DNs.
+     */
+    public void setCompactDns(final boolean compactDns) {
+        this.compactDns = compactDns;
+    }
+
+    public DereferenceInterner getInterner() {
+        return interner;
+    }
+
+    /**
+     * Sets the number of user names OR-ed into one search by {@link #getPeopleByUserNames(Collection)}.
+     *
+     * @param bulkBatchSize user names per search.
+     */
+    public void setBulkBatchSize(final int bulkBatchSize) {
+        this.bulkBatchSize = bulkBatchSize;
+    }
+
+    /**
+     * Sets the maximum number of batch searches of one bulk lookup running at the same time.
+     *
+     * @param bulkParallelism concurrent batch searches.
+     */
+    public void setBulkParallelism(final int bulkParallelism) {
+        this.bulkParallelism = bulkParallelism;
+    }
+
+    /**
+     * Sets the executor running the batch searches of bulk lookups, which wait on their secondary searches and
+     * path hops. Kept apart from the other executors so a long bulk job does not hold up single lookups. Defaults
+     * to a pool of {@link #setBulkThreads(int)} daemon threads, shut down with the DAO.
+     *
+     * @param bulkExecutor executor.
+     */
+    public void setBulkExecutor(final Executor bulkExecutor) {
+        this.bulkExecutor = bulkExecutor;
+    }
+
+    /**
+     * Sets the number of entries per page. When set, searches are paged with the Simple Paged Results control, or
+     * a virtual list view if sort attributes are set, next to the deref control, and each page is folded before
+     * the next one is requested. Zero, the default, sends a single search.
+     *
+     * Paging bounds the responses held at a time, not the result: lookups still merge every entry matched into
+     * one person, which grows with the number of entries unless {@link #setMaxMergedEntries(int)} caps it. Use
+     * {@link #publishPeople(FilterTemplate)} to get one person per entry, page by page as they are consumed.
+     *
+     * @param pageSize entries per page.
+     */
+    public void setPageSize(final int pageSize) {
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * Sets the attributes the server sorts on to serve pages through a virtual list view instead of simple paged
+     * results. Only used when a page size is set.
+     *
+     * @param virtualListViewSortAttributes sort attributes.
+     */
+    public void setVirtualListViewSortAttributes(final String[] virtualListViewSortAttributes) {
+        this.virtualListViewSortAttributes = virtualListViewSortAttributes;
+    }
+
+    /**
+     * Sets whether supportedControl is read from the RootDSE of every server at startup, and periodically after
+     * that, to decide between the deref control and secondary searches without a wasted round trip.
+     *
+     * @param probeSupportedControls whether to probe the servers.
+     */
+    public void setProbeSupportedControls(final boolean probeSupportedControls) {
+        this.probeSupportedControls = probeSupportedControls;
+    }
+
+    /**
+     * Sets the interval between background RootDSE probes, zero disables refreshing.
+     *
+     * @param supportedControlRefreshInterval refresh interval.
+     */
+    public void setSupportedControlRefreshInterval(final Duration supportedControlRefreshInterval) {
+        this.supportedControlRefreshInterval = supportedControlRefreshInterval;
+    }
+
+    public DereferenceSupportProbe getSupportProbe() {
+        return supportProbe;
+    }
+
+    /**
+     * Sets the metrics receiving per-phase timings and volume counters, e.g. a
+     * {@link MicrometerDereferenceMetrics}, named after this DAO when others share its registry. Nothing is
+     * reported when not set.
+     *
+     * @param metrics query metrics.
+     */
+    public void setMetrics(final DereferenceMetrics metrics) {
+        this.metrics = metrics != null ? metrics : DereferenceMetrics.NOOP;
+    }
+
+    /**
+     * Sets the dereferenced attributes, derefAttrName to comma separated attrNames. An attrName may be a path such
+     * as <code>departmentNumber/ou</code>, whose values are returned as <code>derefAttrName.departmentNumber.ou</code>.
+     *
+     * @param dereference map of derefAttrName to comma separated attrNames.
+     */
+    public void setDereference(HashMap<String, String> dereference) {
+        this.dereference = dereference;
+    }
+
+    /**
+     * Sets the dereferenced attributes that are also returned in the extended form
+     * <code>derefAttrName.attrName.extended = derefVal;attrVal</code>.
+     *
+     * @param dereferenceExtended map of derefAttrName to comma separated attrNames.
+     */
+    public void setDereferenceExtended(HashMap<String, String> dereferenceExtended) {
+        this.dereferenceExtended = dereferenceExtended;
+    }
+
+    /**
+     * @return Search controls to use for LDAP queries
+     */
+    public SearchControls getSearchControls() {
+        return this.searchControls;
+    }
+
+    /**
+     * Sets the LDAP search filter used to query for person attributes.
+     *
+     * @param filter Search filter of the form "(usernameAttribute={0})" where {0} and similar ordinal placeholders
+     *               are replaced with query parameters.
+     */
+    public void setSearchFilter(final String filter) {
+        this.searchFilter = filter;
+    }
+
+    /**
+     * Sets a number of parameters that control LDAP search semantics including search scope,
+     * maximum number of results retrieved, and search timeout.
+     *
+     * @param searchControls LDAP search controls.
+     */
+    public void setSearchControls(final SearchControls searchControls) {
+        Assert.notNull(searchControls, "searchControls can not be null");
+        this.searchControls = searchControls;
+    }
+
+    /**
+     * Sets the connection factory that produces LDAP connections on which searches occur. It is strongly recommended
+     * that this be a <code>PooledConnecitonFactory</code> object, or that {@link #setManagedPool(boolean)} is set, in
+     * which case only the connection config of this factory is used.
+     *
+     * @param connectionFactory LDAP connection factory.
+     */
+    public void setConnectionFactory(final ConnectionFactory connectionFactory) {
+        this.connectionFactory = connectionFactory;
+    }
+
+    /**
+     * Sets binary attributes.
+     *
+     * @param binaryAttributes array.
+     */
+    public void setBinaryAttributes(final String[] binaryAttributes) {
+        this.binaryAttributes = binaryAttributes;
+    }
+
+    /**
+     * Sets the cache consulted before each search. Caching is disabled when not set.
+     *
+     * @param cache person attribute cache.
+     */
+    public void setCache(final DereferenceAttributeCache cache) {
+        this.cache = cache;
+    }
+
+    public DereferenceAttributeCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Sets the coalescer used to share one search between concurrent identical queries. Every query searches on
+     * its own when not set.
+     *
+     * @param coalescer query coalescer.
+     */
+    public void setCoalescer(final DereferenceQueryCoalescer coalescer) {
+        this.coalescer = coalescer;
+    }
+
+    public DereferenceQueryCoalescer getCoalescer() {
+        return coalescer;
+    }
+
+    /**
+     * Sets entry handlers.
+     *
+     * @param handlers for LDAP entries.
+     */
+    public void setEntryHandlers(final LdapEntryHandler[] handlers) {
+        this.entryHandlers = handlers;
+    }
+
+    /**
+     * Sets search result handlers.
+     *
+     * @param handlers for LDAP search results.
+     */
+    public void setSearchResultHandlers(final SearchResultHandler[] handlers) {
+        this.searchResultHandlers = handlers;
+    }
+
+
+    @Override
+    protected List<IPersonAttributes> getPeopleForQuery(FilterTemplate filter, String userName) {
+        final String formatted = filter.format();
+        if (cache != null) {
+            final List<IPersonAttributes> cached = cache.get(planner.key(formatted));
+            if (cached != null) {
+                logger.debug("Found cached attributes for query [{}]", formatted);
+                return cached;
+            }
+        }
+
+        final long start = System.nanoTime();
+        final DereferenceQuery query = planner.plan(filter, formatted, userName, queryTimeout);
+        metrics.record(DereferenceMetrics.Phase.REQUEST, System.nanoTime() - start);
+
+        if (coalescer != null) {
+            return coalescer.execute(query, this::searchAndCache);
+        }
+        return searchAndCache(query);
+    }
+
+    /**
+     * Looks up the people matching the given user name within the given time. The deadline lowers the time limit
+     * sent to the server and the search is abandoned when it passes; the lookup then returns stale cached people
+     * or the result of the fallback search, see {@link #setFallbackTimeout(Duration)}. Concurrent identical lookups
+     * are coalesced, a caller joining an in-flight search waits for it until its own deadline at most.
+     *
+     * @param userName user name to look up.
+     * @param timeout  time the caller is willing to wait.
+     * @return people found, or null if the lookup failed.
      */
-    private SearchControls searchControls;
+    public List<IPersonAttributes> getPeopleWithDeadline(final String userName, final Duration timeout) {
+        final long start = System.nanoTime();
+        final FilterTemplate filter = appendAttributeToQuery(
+                null, getConfiguredUserNameAttribute(), Collections.singletonList(userName));
+        final String formatted = filter.format();
+        if (cache != null) {
+            final List<IPersonAttributes> cached = cache.get(planner.key(formatted));
+            if (cached != null) {
+                logger.debug("Found cached attributes for query [{}]", formatted);
+                return cached;
+            }
+        }
 
-    /**
-     * LDAP connection factory.
-     */
-    private ConnectionFactory connectionFactory;
+        final DereferenceQuery query = planner.plan(filter, formatted, userName, timeout);
+        metrics.record(DereferenceMetrics.Phase.REQUEST, System.nanoTime() - start);
 
-    /**
-     * LDAP search filter.
+        if (coalescer != null) {
+            return coalescer.execute(query, this::searchAndCache);
+        }
+        return searchAndCache(query);
+    }
+
+    private List<IPersonAttributes> searchAndCache(final DereferenceQuery query) {
+        final List<IPersonAttributes> peopleAttributes = searchForPeople(query);
+        if (peopleAttributes == null) {
+            return fallback(query);
+        }
+        if (cache != null) {
+            cache.put(query.getKey(), peopleAttributes);
+        }
+        return peopleAttributes;
+    }
+
+    /*
+     * Serves a lookup whose search failed: stale cached people first, then the people of a primary-only search
+     * sent to the first server whose circuit breaker lets it through, never hedged. Neither is cached.
      */
-    private String searchFilter;
+    private List<IPersonAttributes> fallback(final DereferenceQuery query) {
+        if (cache != null) {
+            final List<IPersonAttributes> stale = cache.getStale(query.getKey());
+            if (stale != null) {
+                metrics.degraded();
+                LOGGER.warn("Search for [{}] failed, serving stale cached attributes", query.getFilter());
+                return stale;
+            }
+        }
+        if (fallbackTimeout == null) {
+            return null;
+        }
+        final SearchRequest request = query.getRequest();
+        request.setControls();
+        request.setTimeLimit(Duration.ofSeconds(Math.max(1, (long) Math.ceil(fallbackTimeout.toMillis() / 1000d))));
+        final DereferenceEntryAccumulator accumulator =
+                new DereferenceEntryAccumulator(dereferenceResultHandler, metrics, DereferenceRoute.DEREF, false,
+                        true, Collections.emptySet(), limits.getMaxMergedEntries());
+        final CompletableFuture<Result> future =
+                queryExecutor.send(factory -> sendFallback(factory, request, accumulator));
+        try {
+            final Result result = future.get(fallbackTimeout.toNanos(), TimeUnit.NANOSECONDS);
+            //the query only names the people, nothing of it is dereferenced
+            final List<IPersonAttributes> people = convertResponseToPeople(accumulator.toResponse(result), query);
+            metrics.degraded();
+            LOGGER.warn("Search for [{}] failed, serving attributes without dereferenced values", query.getFilter());
+            return people;
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (Exception e) {
+            future.cancel(true);
+            metrics.searchFailure();
+            LOGGER.error("Fallback search for [{}] failed", query.getFilter(), e);
+            return null;
+        }
+    }
 
-    /**
-     * LDAP binary attributes.
+    /*
+     * Sends the primary-only search of a fallback, abandoned when it times out or is cancelled.
      */
-    private String[] binaryAttributes;
+    private CompletableFuture<Result> sendFallback(final ConnectionFactory factory, final SearchRequest request,
+                                                   final DereferenceEntryAccumulator accumulator) {
+        final CompletableFuture<Result> future = new CompletableFuture<>();
+        var search = new SearchOperation(factory);
+        search.setEntryHandlers(withAccumulator(accumulator));
+        search.setExceptionHandler(future::completeExceptionally);
+        search.setResultHandlers(future::complete);
+        try {
+            final SearchOperationHandle handle = search.send(request);
+            future.orTimeout(fallbackTimeout.toNanos(), TimeUnit.NANOSECONDS)
+                    .whenComplete((result, e) -> {
+                        if (e instanceof TimeoutException || future.isCancelled()) {
+                            handle.abandon();
+                        }
+                    });
+        } catch (LdapException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
 
     /**
-     * LDAP entry handlers.
+     * Runs the dereference search of the given query against the directory.
+     *
+     * @param query per-call query state.
+     * @return people found, or null if the search failed.
      */
-    private LdapEntryHandler[] entryHandlers;
+    protected List<IPersonAttributes> searchForPeople(final DereferenceQuery query) {
+        if (pagedSearch != null) {
+            return searchPaged(query);
+        }
+        try {
+            return queryExecutor.execute(factory -> sendQuery(factory, query), queryExecutor.waitNanos(query));
+        } catch (RuntimeException e) {
+            //failed searches are already counted by sendQuery
+            LOGGER.error("Error while searching for [{}]", query.getFilter(), e);
+            return null;
+        }
+    }
 
-    /**
-     * LDAP search result handlers.
+    /*
+     * Runs the search of the query page by page on the connection factory. Paged searches are neither hedged nor
+     * guarded by circuit breakers.
      */
-    private SearchResultHandler[] searchResultHandlers;
+    private List<IPersonAttributes> searchPaged(final DereferenceQuery query) {
+        final DereferenceEntryAccumulator accumulator = createAccumulator(query);
+        final SearchResponse response;
 
-    public DereferenceLdapDao() {
-        super();
-    }
+        try{
+            var search = new SearchOperation(this.connectionFactory);
+            search.setEntryHandlers(withAccumulator(accumulator));
+            search.setControlHandlers(dereferenceResponseControlHandler);
+            final long start = System.nanoTime();
+            response = pagedSearch.execute(search, query.getRequest());
+            final long searchTime = System.nanoTime() - start;
+            metrics.record(DereferenceMetrics.Phase.SEARCH, searchTime);
+            recordStrategy(query, accumulator, searchTime);
+        }catch(Exception e){
+            metrics.searchFailure();
+            LOGGER.error("Error while searching for [{}]", query.getFilter(), e);
+            return null;
+        }
 
-    public String getBaseDN() {
-        return baseDN;
+        long start = System.nanoTime();
+        final SearchResponse merged = completeAccumulator(accumulator, response, query);
+        metrics.record(DereferenceMetrics.Phase.MERGE, System.nanoTime() - start);
+
+        start = System.nanoTime();
+        final List<IPersonAttributes> people = convertResponseToPeople(merged, query);
+        metrics.record(DereferenceMetrics.Phase.CONVERT, System.nanoTime() - start);
+        return people;
     }
 
     /**
-     * Sets the base DN of the LDAP search for attributes.
+     * Looks up many users with few searches, for provisioning and reporting jobs. The user names are split in
+     * batches of {@link #setBulkBatchSize(int)}, each batch is searched with the OR of the per user filters and
+     * the deref control, and up to {@link #setBulkParallelism(int)} batches run at the same time. The deref
+     * response of every entry is decoded on its own and each entry becomes a person of its own. The attribute
+     * cache is not used.
      *
-     * @param dn LDAP base DN of search.
+     * @param userNames user names to look up
+     * @return people found, by the user name they were asked for; users not found or whose batch failed are absent
      */
-    public void setBaseDN(final String dn) {
-        if (dn == null) {
-            this.baseDN = "";
+    public Map<String, IPersonAttributes> getPeopleByUserNames(final Collection<String> userNames) {
+        Assert.notNull(getConfiguredUserNameAttribute(), "A user name attribute is needed to match entries to users");
+        Assert.isTrue(bulkBatchSize > 0 && bulkParallelism > 0, "Bulk batch size and parallelism must be positive");
+        final List<String> distinct = new ArrayList<>(new LinkedHashSet<>(userNames));
+        final List<CompletableFuture<Map<String, IPersonAttributes>>> batches = new ArrayList<>();
+        final Semaphore permits = new Semaphore(bulkParallelism);
+        try {
+            for (int from = 0; from < distinct.size(); from += bulkBatchSize) {
+                final List<String> batch = distinct.subList(from, Math.min(distinct.size(), from + bulkBatchSize));
+                permits.acquire();
+                batches.add(CompletableFuture
+                        .supplyAsync(() -> searchBatch(batch), bulkExecutor)
+                        .whenComplete((people, e) -> permits.release()));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while looking up users", e);
         }
 
-        this.baseDN = dn;
+        final Map<String, IPersonAttributes> people = new LinkedHashMap<>(distinct.size());
+        for (CompletableFuture<Map<String, IPersonAttributes>> batch : batches) {
+            people.putAll(batch.join());
+        }
+        return people;
     }
 
-    public void setDereference(HashMap<String, String> dereference) {
-        this.dereference = dereference;
+    /*
+     * Searches one batch of user names and maps the entries found back to the names asked for. Names are matched
+     * ignoring case against every value of the user name attribute; an entry goes to every name it matches, e.g.
+     * to both "Alice" and "alice" when both were asked for.
+     */
+    private Map<String, IPersonAttributes> searchBatch(final List<String> userNames) {
+        final String userNameAttribute = getConfiguredUserNameAttribute();
+        final StringBuilder or = new StringBuilder("(|");
+        final Map<String, List<String>> asked = new HashMap<>(userNames.size());
+        for (String userName : userNames) {
+            or.append(appendAttributeToQuery(null, userNameAttribute, Collections.singletonList(userName)).format());
+            asked.computeIfAbsent(userName.toLowerCase(Locale.ROOT), k -> new ArrayList<>(1)).add(userName);
+        }
+        final FilterTemplate filter = new FilterTemplate(or.append(')').toString());
+        final DereferenceRoute route = planner.route();
+        final Set<String> secondaryNames = planner.secondaryNames(route, false);
+        final SearchRequest request = createRequest(filter, route, secondaryNames);
+        if (!ReturnAttributes.ALL_USER.equalsAttributes(request.getReturnAttributes())) {
+            //entries are matched back to user names by this attribute
+            final Set<String> attributes = new LinkedHashSet<>(Arrays.asList(request.getReturnAttributes()));
+            attributes.add(userNameAttribute);
+            request.setReturnAttributes(attributes.toArray(new String[0]));
+        }
+        final DereferenceQuery query =
+                new DereferenceQuery(filter, null, planner.getSpecKey(), route, request, secondaryNames);
+        final DereferenceEntryAccumulator accumulator = createAccumulator(query, false);
+        final SearchResponse response;
+        try {
+            var search = new SearchOperation(this.connectionFactory);
+            search.setEntryHandlers(withAccumulator(accumulator));
+            search.setControlHandlers(dereferenceResponseControlHandler);
+            final long start = System.nanoTime();
+            response = pagedSearch != null
+                    ? pagedSearch.execute(search, query.getRequest()) : search.execute(query.getRequest());
+            metrics.record(DereferenceMetrics.Phase.SEARCH, System.nanoTime() - start);
+        } catch (Exception e) {
+            metrics.searchFailure();
+            LOGGER.error("Error while searching for a batch of {} users", userNames.size(), e);
+            return Collections.emptyMap();
+        }
+
+        long start = System.nanoTime();
+        completeAccumulator(accumulator, response, query);
+        final Map<String, List<LdapEntry>> found = new LinkedHashMap<>();
+        for (LdapEntry entry : accumulator.getEntries()) {
+            final LdapAttribute attr = entry.getAttribute(userNameAttribute);
+            final Set<String> matched = new LinkedHashSet<>();
+            if (attr != null) {
+                for (String value : attr.getStringValues()) {
+                    matched.addAll(asked.getOrDefault(value.toLowerCase(Locale.ROOT), Collections.emptyList()));
+                }
+            }
+            if (matched.isEmpty()) {
+                LOGGER.debug("Entry [{}] does not match any user name of its batch", entry.getDn());
+                continue;
+            }
+            for (String userName : matched) {
+                found.computeIfAbsent(userName, k -> new ArrayList<>(1)).add(entry);
+            }
+        }
+        final Map<String, LdapEntry> merged = new LinkedHashMap<>(found.size());
+        for (Map.Entry<String, List<LdapEntry>> e : found.entrySet()) {
+            merged.put(e.getKey(), e.getValue().size() == 1 ? e.getValue().get(0) : mergeCopy(e.getValue()));
+        }
+        metrics.record(DereferenceMetrics.Phase.MERGE, System.nanoTime() - start);
+
+        start = System.nanoTime();
+        final Map<String, IPersonAttributes> people = new LinkedHashMap<>(merged.size());
+        for (Map.Entry<String, LdapEntry> e : merged.entrySet()) {
+            people.put(e.getKey(),
+                    DereferencePersonAttributes.named(userNameAttribute, e.getValue(), interner, dnAttributeNames));
+        }
+        metrics.record(DereferenceMetrics.Phase.CONVERT, System.nanoTime() - start);
+        return people;
     }
 
-    /**
-     * @return Search controls to use for LDAP queries
+    /*
+     * Merges the entries of one user, as for a single lookup, into a new entry: an entry matching several user
+     * names is handed to each of them and is left untouched.
      */
-    public SearchControls getSearchControls() {
-        return this.searchControls;
+    private static LdapEntry mergeCopy(final List<LdapEntry> entries) {
+        final LdapEntry merged = new LdapEntry();
+        merged.setDn(entries.get(0).getDn());
+        for (LdapEntry entry : entries) {
+            for (LdapAttribute la : entry.getAttributes()) {
+                LdapAttribute attr = merged.getAttribute(la.getName());
+                if (attr == null) {
+                    attr = new LdapAttribute(la.getName());
+                    attr.setBinary(la.isBinary());
+                    merged.addAttributes(attr);
+                }
+                if (la.isBinary()) {
+                    attr.addBinaryValues(la.getBinaryValues());
+                } else {
+                    attr.addStringValues(la.getStringValues());
+                }
+            }
+        }
+        return merged;
     }
 
     /**
-     * Sets the LDAP search filter used to query for person attributes.
+     * Streams the people matched by the given filter, one person per entry, as the entries arrive. Each
+     * subscription runs its own search, honours the subscriber's demand and abandons the search when cancelled.
+     * With a page size set, pages are requested as the subscriber asks for more people, which keeps memory flat
+     * for searches over very many entries. The attribute cache is not used.
      *
-     * @param filter Search filter of the form "(usernameAttribute={0})" where {0} and similar ordinal placeholders
-     *               are replaced with query parameters.
+     * @param filter search filter
+     * @return publisher of the people matched
      */
-    public void setSearchFilter(final String filter) {
-        this.searchFilter = filter;
+    public Flow.Publisher<IPersonAttributes> publishPeople(final FilterTemplate filter) {
+        final DereferenceRoute route = planner.route();
+        final Set<String> secondaryNames = planner.secondaryNames(route, false);
+        return new DereferencePeoplePublisher(
+                handler -> {
+                    var search = new SearchOperation(this.connectionFactory);
+                    search.setEntryHandlers(withAccumulator(handler));
+                    search.setControlHandlers(dereferenceResponseControlHandler);
+                    return search;
+                },
+                () -> createRequest(filter, route, secondaryNames),
+                pagedSearch,
+                entry -> convertStreamedEntry(entry, route, secondaryNames),
+                lookupExecutor);
+    }
+
+    /*
+     * Folds the dereferenced values of a single streamed entry and converts it to a person named by the user name
+     * attribute, or by its DN.
+     */
+    private IPersonAttributes convertStreamedEntry(final LdapEntry entry, final DereferenceRoute route,
+                                                   final Set<String> secondaryNames) {
+        final DereferenceEntryAccumulator accumulator = new DereferenceEntryAccumulator(dereferenceResultHandler,
+                metrics, route, planner.controlFor(secondaryNames) != null, false, secondaryNames);
+        accumulator.apply(entry);
+        foldAccumulator(accumulator, null);
+        final String userNameAttribute = getConfiguredUserNameAttribute();
+        if (userNameAttribute != null && entry.getAttribute(userNameAttribute) != null) {
+            return DereferencePersonAttributes.named(userNameAttribute, entry, interner, dnAttributeNames);
+        }
+        return DereferencePersonAttributes.withName(entry.getDn(), entry, interner, dnAttributeNames);
     }
 
     /**
-     * Sets a number of parameters that control LDAP search semantics including search scope,
-     * maximum number of results retrieved, and search timeout.
+     * Looks up the people matching the given user name without blocking the calling thread. The search is sent
+     * through ldaptive's asynchronous API; the dereference control of each entry is decoded as the entry arrives
+     * and the people are built when the search result arrives. Cancelling the returned future abandons the search.
      *
-     * @param searchControls LDAP search controls.
+     * @param userName user name to look up.
+     * @return future completed with the people found, or exceptionally if the search failed.
      */
-    public void setSearchControls(final SearchControls searchControls) {
-        Assert.notNull(searchControls, "searchControls can not be null");
-        this.searchControls = searchControls;
+    public CompletableFuture<List<IPersonAttributes>> getPeopleAsync(final String userName) {
+        final FilterTemplate filter = appendAttributeToQuery(
+                null, getConfiguredUserNameAttribute(), Collections.singletonList(userName));
+        return getPeopleForQueryAsync(filter, userName);
     }
 
     /**
-     * Sets the connection factory that produces LDAP connections on which searches occur. It is strongly recommended
-     * that this be a <code>PooledConnecitonFactory</code> object.
+     * Asynchronous counterpart of {@link #getPeopleForQuery(FilterTemplate, String)}. A search that fails or
+     * passes the query timeout falls back as a blocking lookup does, to stale cached people or to the fallback
+     * search, see {@link #setFallbackTimeout(Duration)}. Concurrent identical lookups are coalesced.
      *
-     * @param connectionFactory LDAP connection factory.
+     * Plain searches and searches sent through the circuit breakers hold no thread while they run. Paged and
+     * hedged searches, the secondary searches and path hops of an entry, and the fallback search do block: they
+     * run on a thread of the lookup executor, see {@link #setLookupThreads(int)}.
+     *
+     * @param filter   search filter.
+     * @param userName user name the query is issued for.
+     * @return future completed with the people found, or exceptionally if the search failed with no fallback.
      */
-    public void setConnectionFactory(final ConnectionFactory connectionFactory) {
-        this.connectionFactory = connectionFactory;
+    public CompletableFuture<List<IPersonAttributes>> getPeopleForQueryAsync(final FilterTemplate filter,
+                                                                             final String userName) {
+        final String formatted = filter.format();
+        if (cache != null) {
+            final List<IPersonAttributes> cached = cache.get(planner.key(formatted));
+            if (cached != null) {
+                logger.debug("Found cached attributes for query [{}]", formatted);
+                return CompletableFuture.completedFuture(cached);
+            }
+        }
+
+        final long requestStart = System.nanoTime();
+        final DereferenceQuery query = planner.plan(filter, formatted, userName, queryTimeout);
+        metrics.record(DereferenceMetrics.Phase.REQUEST, System.nanoTime() - requestStart);
+
+        if (coalescer != null) {
+            return coalescer.executeAsync(query, this::searchAndCacheAsync);
+        }
+        return searchAndCacheAsync(query);
+    }
+
+    /*
+     * Sends the search of the query, caches the people found and falls back when it fails.
+     */
+    private CompletableFuture<List<IPersonAttributes>> searchAndCacheAsync(final DereferenceQuery query) {
+        if (pagedSearch != null) {
+            //pages are requested one after the other, so the search runs on a thread of its own
+            return CompletableFuture.supplyAsync(() -> searchAndCache(query), lookupExecutor);
+        }
+
+        final CompletableFuture<List<IPersonAttributes>> searched =
+                queryExecutor.executeAsync(factory -> sendQuery(factory, query), queryExecutor.waitNanos(query));
+        if (cache != null) {
+            searched.thenAccept(people -> cache.put(query.getKey(), people));
+        }
+        //a failed or timed out search falls back as a blocking lookup does, off the connection's I/O thread
+        final CompletableFuture<List<IPersonAttributes>> future = searched
+                .handle((people, e) -> e == null || isCancellation(e)
+                        ? searched
+                        : CompletableFuture.supplyAsync(() -> fallbackOrFail(query, e), lookupExecutor))
+                .thenCompose(f -> f);
+        future.whenComplete((people, e) -> {
+            if (future.isCancelled()) {
+                searched.cancel(true);
+            }
+        });
+        return future;
+    }
+
+    /*
+     * @return people of the fallback of a failed asynchronous lookup, failing with the search's error if none.
+     */
+    private List<IPersonAttributes> fallbackOrFail(final DereferenceQuery query, final Throwable e) {
+        final List<IPersonAttributes> people = fallback(query);
+        if (people == null) {
+            throw e instanceof CompletionException ? (CompletionException) e : new CompletionException(e);
+        }
+        return people;
+    }
+
+    private static boolean isCancellation(final Throwable e) {
+        return e instanceof CancellationException
+                || e instanceof CompletionException && e.getCause() instanceof CancellationException;
     }
 
     /**
-     * Sets binary attributes.
+     * Sends the search of the given query without waiting for it. Cancelling the returned future abandons it.
      *
-     * @param binaryAttributes array.
+     * @param factory connection factory to search with.
+     * @param query   per-call query state.
+     * @return people found.
      */
-    public void setBinaryAttributes(final String[] binaryAttributes) {
-        this.binaryAttributes = binaryAttributes;
+    private CompletableFuture<List<IPersonAttributes>> sendQuery(final ConnectionFactory factory,
+                                                                 final DereferenceQuery query) {
+        final long remaining = query.getRemainingNanos();
+        if (remaining <= 0) {
+            return CompletableFuture.failedFuture(
+                    new TimeoutException("Deadline of [" + query.getFilter() + "] passed before the search was sent"));
+        }
+        final CompletableFuture<List<IPersonAttributes>> future = new CompletableFuture<>();
+        final DereferenceEntryAccumulator accumulator = createAccumulator(query);
+        final long searchStart = System.nanoTime();
+
+        var search = new SearchOperation(factory);
+        search.setEntryHandlers(withAccumulator(accumulator));
+        search.setControlHandlers(dereferenceResponseControlHandler);
+        if (query.hasDeadline() || queryExecutor.isGuarded()) {
+            //a server giving up or too busy fails the search, so the caller can fall back and the breaker learns
+            search.setThrowCondition(result -> result.getResultCode() == ResultCode.TIME_LIMIT_EXCEEDED
+                    || result.getResultCode() == ResultCode.BUSY || result.getResultCode() == ResultCode.UNAVAILABLE);
+        }
+        search.setExceptionHandler(e -> {
+            metrics.searchFailure();
+            future.completeExceptionally(e);
+        });
+        search.setResultHandlers(result -> {
+            final long searchTime = System.nanoTime() - searchStart;
+            metrics.record(DereferenceMetrics.Phase.SEARCH, searchTime);
+            recordStrategy(query, accumulator, searchTime);
+            final Runnable complete = () -> {
+                try {
+                    long start = System.nanoTime();
+                    final SearchResponse merged = completeAccumulator(accumulator, result, query);
+                    metrics.record(DereferenceMetrics.Phase.MERGE, System.nanoTime() - start);
+                    start = System.nanoTime();
+                    final List<IPersonAttributes> people = convertResponseToPeople(merged, query);
+                    metrics.record(DereferenceMetrics.Phase.CONVERT, System.nanoTime() - start);
+                    future.complete(people);
+                } catch (RuntimeException e) {
+                    future.completeExceptionally(e);
+                }
+            };
+            if (accumulator.getPending().isEmpty() && accumulator.getPartial().isEmpty() && hopResolver == null) {
+                complete.run();
+            } else {
+                // secondary searches and path hops block, keep them off the connection's I/O thread and off the
+                // executor running them
+                lookupExecutor.execute(complete);
+            }
+        });
+
+        try {
+            final SearchOperationHandle handle = search.send(query.getRequest());
+            //the server may not honour the time limit, or not answer at all; the client stops waiting anyway
+            future.orTimeout(queryExecutor.waitNanos(query), TimeUnit.NANOSECONDS);
+            future.whenComplete((people, e) -> {
+                if (e instanceof TimeoutException) {
+                    metrics.searchFailure();
+                    handle.abandon();
+                } else if (future.isCancelled()) {
+                    handle.abandon();
+                }
+            });
+        } catch (LdapException e) {
+            metrics.searchFailure();
+            future.completeExceptionally(e);
+        }
+        return future;
     }
 
     /**
-     * Sets entry handlers.
+     * Creates the accumulator folding the entries of a query as they arrive.
      *
-     * @param handlers for LDAP entries.
+     * @param query per-call query state.
+     * @return accumulator serving this query only.
      */
-    public void setEntryHandlers(final LdapEntryHandler[] handlers) {
-        this.entryHandlers = handlers;
+    private DereferenceEntryAccumulator createAccumulator(final DereferenceQuery query) {
+        return createAccumulator(query, true);
+    }
+
+    private DereferenceEntryAccumulator createAccumulator(final DereferenceQuery query, final boolean merge) {
+        return new DereferenceEntryAccumulator(dereferenceResultHandler, metrics, query.getRoute(),
+                planner.controlFor(query.getSecondaryNames()) != null, merge, query.getSecondaryNames(),
+                limits.getMaxMergedEntries());
     }
 
     /**
-     * Sets search result handlers.
-     *
-     * @param handlers for LDAP search results.
+     * @return the configured entry handlers followed by the accumulator.
      */
-    public void setSearchResultHandlers(final SearchResultHandler[] handlers) {
-        this.searchResultHandlers = handlers;
+    private LdapEntryHandler[] withAccumulator(final LdapEntryHandler accumulator) {
+        if (entryHandlers == null || entryHandlers.length == 0) {
+            return new LdapEntryHandler[] {accumulator};
+        }
+        final LdapEntryHandler[] handlers = Arrays.copyOf(entryHandlers, entryHandlers.length + 1);
+        handlers[entryHandlers.length] = accumulator;
+        return handlers;
     }
 
+    /**
+     * Resolves the entries still waiting for secondary searches and builds the merged response of the search.
+     *
+     * @param accumulator accumulator of the search.
+     * @param result      result of the search.
+     * @param query       per-call query state, its deadline bounds the path hops.
+     * @return response holding the merged entry.
+     */
+    private SearchResponse completeAccumulator(final DereferenceEntryAccumulator accumulator, final Result result,
+                                               final DereferenceQuery query) {
+        foldAccumulator(accumulator, query);
+        return accumulator.toResponse(result);
+    }
 
-    @Override
-    protected List<IPersonAttributes> getPeopleForQuery(FilterTemplate filter, String userName) {
-        SearchResponse response = null;
-        dereferenceResultHandler = new DereferenceResultHandler();
+    /*
+     * Dereferences the entries that came back without deref values and resolves the paths of every entry, within
+     * the deadline of the query, or the response timeout without query or deadline.
+     */
+    private void foldAccumulator(final DereferenceEntryAccumulator accumulator, final DereferenceQuery query) {
+        final List<LdapEntry> pending = accumulator.getPending();
+        if (!pending.isEmpty()) {
+            final List<DereferenceResponseControl> controls = secondarySearch != null
+                    ? dereferenceSecondary(pending, null) : null;
+            for (int i = 0; i < pending.size(); i++) {
+                accumulator.complete(pending.get(i),
+                        controls != null ? controls.get(i) : new DereferenceResponseControl());
+            }
+        }
+        final List<LdapEntry> partial = accumulator.getPartial();
+        if (!partial.isEmpty()) {
+            final List<DereferenceResponseControl> controls =
+                    dereferenceSecondary(partial, accumulator.getSecondaryNames());
+            for (int i = 0; i < partial.size(); i++) {
+                accumulator.complete(partial.get(i), controls.get(i));
+            }
+        }
+        if (hopResolver != null) {
+            for (LdapEntry entry : accumulator.getEntries()) {
+                hopResolver.resolve(entry, queryExecutor.waitNanos(query));
+            }
+        }
+        metrics.dereferencedValues(accumulator.getValueCount());
+    }
 
-        try{
-            //todo: check supported controls with search query
-            var search = new SearchOperation(this.connectionFactory);
-            search.setEntryHandlers(entryHandlers);
-            search.setSearchResultHandlers(dereferenceResultHandler);
-            search.setControlHandlers(dereferenceResponseControlHandler);
-            response = search.execute(createRequest(filter));
+    /*
+     * Runs the secondary searches of the given attributes, all when null, and reports their latency to the
+     * strategy when a single entry was dereferenced, which is what a lookup through the control is compared to.
+     */
+    private List<DereferenceResponseControl> dereferenceSecondary(final List<LdapEntry> entries,
+                                                                  final Collection<String> names) {
+        if (strategy == null || entries.size() != 1) {
+            return secondarySearch.dereference(entries, names, null);
+        }
+        final Map<String, Long> times = new HashMap<>();
+        final List<DereferenceResponseControl> controls = secondarySearch.dereference(entries, names, times::put);
+        final Map<String, Integer> values = controls.get(0).getValueCounts();
+        times.forEach((name, nanos) -> strategy.recordSecondary(name, nanos, values.getOrDefault(name, 0)));
+        return controls;
+    }
 
-        }catch(Exception e){
-            LOGGER.error("Error while searching. Check for misconfiguration issues!!!");
+    /*
+     * Reports the latency of the primary search of a single lookup to the strategy.
+     */
+    private void recordStrategy(final DereferenceQuery query, final DereferenceEntryAccumulator accumulator,
+                                final long searchTime) {
+        if (strategy != null && query.getRoute() != DereferenceRoute.SECONDARY) {
+            strategy.recordSearch(query.getSecondaryNames(), searchTime, accumulator.getValueCounts());
         }
+    }
 
+    /**
+     * Builds the people of a dereferenced search response.
+     *
+     * @param response dereferenced, merged search response.
+     * @param query    per-call query state.
+     * @return people found.
+     */
+    protected List<IPersonAttributes> convertResponseToPeople(final SearchResponse response,
+                                                              final DereferenceQuery query) {
         List<IPersonAttributes> peopleAttributes = new ArrayList<>(response.entrySize());
         for (var entry : response.getEntries()) {
-            final IPersonAttributes person;
+            final DereferencePersonAttributes person;
             var userNameAttribute = this.getConfiguredUserNameAttribute();
-            var attributes = convertLdapEntryToMap(entry);
+            //values are converted when read, most of them never are
+            if (userNameAttribute != null && entry.getAttribute(userNameAttribute) != null) {
+                person = DereferencePersonAttributes.named(userNameAttribute, entry, interner, dnAttributeNames);
+            } else {
+                person = DereferencePersonAttributes.withName(query.getUserName(), entry, interner, dnAttributeNames);
+            }
             if (response.getDiagnosticMessage() != null && !response.getDiagnosticMessage().isEmpty()) {
-                var values = new ArrayList<>();
-                values.add(response.getDiagnosticMessage());
-                attributes.put("diagnosticMessage", values);
+                person.addAttribute("diagnosticMessage", response.getDiagnosticMessage());
             }
             if (response.getMatchedDN() != null && !response.getMatchedDN().isEmpty()) {
-                var values = new ArrayList<>();
-                values.add(response.getMatchedDN());
-                attributes.put("matchedDN", values);
-            }
-
-            if (attributes.containsKey(userNameAttribute)) {
-                person = new CaseInsensitiveAttributeNamedPersonImpl(userNameAttribute, attributes);
-            } else {
-                person = new CaseInsensitiveNamedPersonImpl(userName, attributes);
+                person.addAttribute("matchedDN", response.getMatchedDN());
             }
+            logger.debug("Converted ldap DN entry [{}] to person {}", entry.getDn(), person);
             peopleAttributes.add(person);
         }
 
@@ -236,22 +1578,52 @@ public class DereferenceLdapDao extends AbstractQueryPersonAttributeDao<FilterTe
 
     @Override
     public void afterPropertiesSet() throws Exception {
+        //the limits apply to the controls read by this DAO only, decoded by its result handler
+        limits = new DereferenceLimits(maxValuesPerAttribute, maxDecodedBytes, maxMergedEntries);
+        if (interning) {
+            interner = new DereferenceInterner(internPoolSize, compactDns);
+            metrics.interner(interner);
+        }
+        //controls are walked with the widest limits registered, then cut to these by the result handler
+        DereferenceResponseControl.register(limits);
+        if (managedPool) {
+            //every component below uses the pool, so it is set up first
+            if (connectionFactory instanceof PooledConnectionFactory) {
+                throw new IllegalStateException("A managed pool replaces the connection factory, which must not be "
+                        + "a pool itself: configure a DefaultConnectionFactory or disable managedPool");
+            }
+            connectionPool = new DereferenceConnectionPool(connectionFactory.getConnectionConfig(),
+                    poolMinSize, poolMaxSize, poolValidatePeriod, poolIdleTime, poolBlockWaitTime, metrics);
+            connectionPool.setName(poolName != null ? poolName : connectionFactory.getConnectionConfig().getLdapUrl());
+            //a directory down at deploy time must not keep the DAO from starting
+            connectionPool.setFailFastInitialize(false);
+            connectionPool.initialize();
+            metrics.connectionPool(connectionPool);
+            connectionFactory = connectionPool;
+        }
+        //warns about extended attributes which are not dereferenced
+        dereferenceSpec = dereference != null
+                ? DereferenceSpec.compile(dereference, dereferenceExtended, binaryAttributes) : null;
+        dnAttributeNames = dereferenceSpec != null
+                ? dereferenceSpec.getDereference().keySet() : Collections.emptySet();
+        dereferenceResultHandler = new DereferenceResultHandler(dereferenceSpec, limits);
 
-        SearchCtrl = this.getSearchControls();
-
-        //DereferenceRequestControl dereferenceRequestControl;
         if(!useDeref)
         {
             LOGGER.info("Dereference disabled on request. Will use secondary search.");
 
             //Set up request controls
-            dereferenceRequestControl = new DereferenceRequestControl(null, false);
+            dereferenceControl = null;
             dereferenceResponseControlHandler = new DereferenceResponseControlHandler();
+
+            if (dereference != null) {
+                createSecondarySearch();
+            }
         }
         else
         {
-            //Set up request controls
-            dereferenceRequestControl = new DereferenceRequestControl(dereference, false);
+            //Set up request controls, encoded once and reused by every request
+            dereferenceControl = dereferenceSpec != null ? new DereferenceControl(dereferenceSpec, false) : null;
             dereferenceResponseControlHandler = new DereferenceResponseControlHandler();
 
             if( dereference == null )
@@ -259,25 +1631,188 @@ public class DereferenceLdapDao extends AbstractQueryPersonAttributeDao<FilterTe
                 LOGGER.warn("Dereference related attributes were not set."
                         + "Dereference capabillities will not be used");
             }
+            else if (probeSupportedControls)
+            {
+                //servers without the deref overlay are served by secondary searches
+                createSecondarySearch();
+            }
         }
 
-        if( dereference != null && dereferenceExtended != null) {//Check for correct values set in the extended deref
-            for( Map.Entry<String,String> extendedEntry : dereferenceExtended.entrySet() ) {
-                for( Map.Entry<String,String> derefEntry : dereference.entrySet() ) {
-                    for( String extendedAttr : extendedEntry.getValue().split(",") ) {
-                        if( extendedEntry.getKey().equalsIgnoreCase(derefEntry.getKey()) ) {
-                            if( ! Arrays.asList((String[]) derefEntry.getValue().split(",")).contains(extendedAttr) ) {
+        if (adaptiveDereference) {
+            createStrategy();
+        }
 
-                                LOGGER.warn("Requested extended attribute: " + extendedAttr +
-                                        " not among the requested dereferenced attributes: " +
-                                        derefEntry.getValue() +
-                                        " .It will be ignored");
-                            }
-                        }
-                    }
-                }
+        if (dereferenceSpec != null && !dereferenceSpec.getPaths().isEmpty()) {
+            createSecondarySearchExecutor();
+            hopResolver = new DereferenceHopResolver(
+                    connectionFactory, dereferenceSpec, secondarySearchExecutor, secondarySearchMaxFanOut, dnMemo);
+        }
+
+        if (pageSize > 0) {
+            createPagedSearch();
+        }
+
+        if (hedging || circuitBreaker) {
+            createReplicas();
+        }
+
+        if (useDeref && dereference != null && probeSupportedControls) {
+            //the pools of the servers are reused when there are some
+            supportProbe = replicaPools != null
+                    ? new DereferenceSupportProbe(replicaPools, supportedControlRefreshInterval)
+                    : new DereferenceSupportProbe(connectionFactory.getConnectionConfig(),
+                            supportedControlRefreshInterval);
+            supportProbe.start();
+        }
+
+        //asynchronous, paged and streamed lookups wait on this executor
+        createLookupExecutor();
+        if (bulkExecutor == null) {
+            bulkExecutor = createExecutor("deref-bulk", bulkThreads);
+        }
+
+        planner = new DereferenceQueryPlanner(dereferenceSpec, dereferenceControl, secondarySearch != null,
+                supportProbe, strategy, this::createRequest);
+        queryExecutor = new DereferenceQueryExecutor(connectionFactory, breakers, hedger, lookupExecutor);
+    }
+
+    @Override
+    public void destroy() {
+        if (limits != null) {
+            DereferenceResponseControl.unregister(limits);
+        }
+        if (supportProbe != null) {
+            supportProbe.stop();
+        }
+        if (connectionPool != null) {
+            connectionPool.close();
+        }
+        if (queryExecutor != null) {
+            queryExecutor.close();
+        }
+        ownedExecutors.forEach(ExecutorService::shutdown);
+        ownedExecutors.clear();
+    }
+
+    private void createSecondarySearch() {
+        createSecondarySearchExecutor();
+        secondarySearch = new DereferenceSecondarySearch(
+                connectionFactory, dereferenceSpec, secondarySearchExecutor, secondarySearchMaxFanOut, limits);
+    }
+
+    private void createSecondarySearchExecutor() {
+        if (secondarySearchExecutor == null) {
+            secondarySearchExecutor = createExecutor("deref-secondary-search", secondarySearchThreads);
+        }
+    }
+
+    private void createLookupExecutor() {
+        if (lookupExecutor == null) {
+            lookupExecutor = createExecutor("deref-lookup", lookupThreads);
+        }
+    }
+
+    /*
+     * Pool of at most the given number of daemon threads, released when idle; tasks past them wait in the queue.
+     * Tasks are rejected once the DAO is destroyed.
+     */
+    private ExecutorService createExecutor(final String name, final int threads) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("Threads of " + name + " must be greater than zero");
+        }
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), r -> {
+                    final Thread t = new Thread(r, name);
+                    t.setDaemon(true);
+                    return t;
+                });
+        executor.allowCoreThreadTimeOut(true);
+        ownedExecutors.add(executor);
+        return executor;
+    }
+
+    private void createStrategy() {
+        if (dereferenceControl == null) {
+            LOGGER.warn("The deref control is not used, adaptive dereferencing disabled");
+            return;
+        }
+        final Map<String, DereferenceStrategy.Mode> pins = new LinkedHashMap<>();
+        if (dereferencePins != null) {
+            dereferencePins.forEach((name, mode) ->
+                    pins.put(name, DereferenceStrategy.Mode.valueOf(mode.trim().toUpperCase(Locale.ROOT))));
+        }
+        if (secondarySearch == null) {
+            createSecondarySearch();
+        }
+        strategy = new DereferenceStrategy(dereferenceSpec.getDereference().keySet(), pins,
+                adaptiveEvaluationInterval, adaptiveExplorationRate, adaptiveMargin, adaptiveExplorationMaxValues);
+        metrics.strategy(strategy);
+        LOGGER.info("Dereference attributes are resolved adaptively: {}", strategy);
+    }
+
+    /*
+     * Opens a pool per server of the LDAP URL, behind a circuit breaker when enabled, and hedges searches across
+     * them when enabled.
+     */
+    private void createReplicas() {
+        if (pagedSearch != null) {
+            LOGGER.warn("Paged searches are neither hedged nor guarded by circuit breakers");
+            return;
+        }
+        final ConnectionConfig config = connectionFactory.getConnectionConfig();
+        final String[] urls = config.getLdapUrl().trim().split("\\s+");
+        if (hedging && urls.length < 2) {
+            LOGGER.warn("Hedging needs at least two servers in [{}], hedging disabled", config.getLdapUrl());
+            if (!circuitBreaker) {
+                return;
+            }
+        }
+        final List<ConnectionFactory> replicas = new ArrayList<>(urls.length);
+        replicaPools = new LinkedHashMap<>();
+        for (String url : urls) {
+            final ConnectionConfig replicaConfig = ConnectionConfig.copy(config);
+            replicaConfig.setLdapUrl(url);
+            final DereferenceConnectionPool replica = new DereferenceConnectionPool(replicaConfig,
+                    poolMinSize, poolMaxSize, poolValidatePeriod, poolIdleTime, poolBlockWaitTime, metrics);
+            replica.setName(url);
+            //a server down at deploy time must not keep the DAO from starting, it is skipped until it answers
+            replica.setFailFastInitialize(false);
+            replica.initialize();
+            replicas.add(replica);
+            replicaPools.put(url, replica);
+        }
+        if (circuitBreaker) {
+            breakers = new ArrayList<>(replicas.size());
+            for (int i = 0; i < urls.length; i++) {
+                final DereferenceCircuitBreaker breaker = new DereferenceCircuitBreaker(urls[i], replicas.get(i),
+                        circuitBreakerFailureThreshold, circuitBreakerOpenDuration);
+                metrics.circuitBreaker(breaker);
+                breakers.add(breaker);
+            }
+            replicas.clear();
+            replicas.addAll(breakers);
+            LOGGER.info("Searches are guarded by circuit breakers: {}", breakers);
+        }
+        if (hedging && urls.length >= 2) {
+            hedger = new DereferenceHedger(replicas,
+                    replica -> !(replica instanceof DereferenceCircuitBreaker)
+                            || ((DereferenceCircuitBreaker) replica).isAvailable(),
+                    hedgePercentile, hedgeMinDelay, hedgeMaxDelay, hedgeBudget, metrics);
+            metrics.hedger(hedger);
+            LOGGER.info("Slow searches are hedged: {}", hedger);
+        }
+    }
+
+    private void createPagedSearch() {
+        SortKey[] sortKeys = null;
+        if (virtualListViewSortAttributes != null && virtualListViewSortAttributes.length > 0) {
+            sortKeys = new SortKey[virtualListViewSortAttributes.length];
+            for (int i = 0; i < sortKeys.length; i++) {
+                sortKeys[i] = new SortKey(virtualListViewSortAttributes[i].trim());
             }
         }
+        pagedSearch = new DereferencePagedSearch(pageSize, sortKeys);
+        LOGGER.info("Searches are paged: {}", pagedSearch);
     }
 
     /**
@@ -287,11 +1822,40 @@ public class DereferenceLdapDao extends AbstractQueryPersonAttributeDao<FilterTe
      * @return ldaptive search request.
      */
     protected SearchRequest createRequest(final FilterTemplate filter) {
+        return createRequest(filter, planner.route());
+    }
+
+    /**
+     * Creates a search request from a search filter for the given route.
+     *
+     * @param filter LDAP search filter.
+     * @param route  how the dereference attributes will be resolved.
+     * @return ldaptive search request.
+     */
+    protected SearchRequest createRequest(final FilterTemplate filter, final DereferenceRoute route) {
+        return createRequest(filter, route, Collections.emptySet());
+    }
+
+    /**
+     * Creates a search request from a search filter for the given route, resolving some attributes by secondary
+     * searches. The search starts at the configured base DN, not at the filter parameters, which are no DN.
+     *
+     * @param filter         LDAP search filter.
+     * @param route          how the dereference attributes will be resolved.
+     * @param secondaryNames attributes resolved by secondary searches although the route sends the control.
+     * @return ldaptive search request.
+     */
+    protected SearchRequest createRequest(final FilterTemplate filter, final DereferenceRoute route,
+                                          final Set<String> secondaryNames) {
         var request = new SearchRequest();
-        request.setBaseDn(filter.getParameters().values().toString());   //set parameters to search in dereferenced value's dn
+        request.setBaseDn(baseDN);
         request.setFilter(filter);
         request.setBinaryAttributes(binaryAttributes);
-        request.setControls(dereferenceRequestControl);
+        final DereferenceControl control =
+                route != DereferenceRoute.SECONDARY ? planner.controlFor(secondaryNames) : null;
+        if (control != null) {
+            request.setControls(control);
+        }
 
         /** LDAP attributes to fetch from search results. */
         if (getResultAttributeMapping() != null && !getResultAttributeMapping().isEmpty()) {
@@ -302,6 +1866,15 @@ public class DereferenceLdapDao extends AbstractQueryPersonAttributeDao<FilterTe
         } else {
             request.setReturnAttributes(ReturnAttributes.ALL_USER.value());
         }
+        final Collection<String> dnAttributes = secondarySearch != null && route != DereferenceRoute.DEREF
+                ? secondarySearch.getDereferenceAttributeNames() : secondaryNames;
+        if (!dnAttributes.isEmpty()
+                && !ReturnAttributes.ALL_USER.equalsAttributes(request.getReturnAttributes())) {
+            //the DNs to dereference must come back from the primary search
+            final Set<String> attributes = new LinkedHashSet<>(Arrays.asList(request.getReturnAttributes()));
+            attributes.addAll(dnAttributes);
+            request.setReturnAttributes(attributes.toArray(new String[0]));
+        }
 
         var searchScope = SearchScope.SUBTREE;
         for (var scope : SearchScope.values()) {
@@ -315,14 +1888,27 @@ public class DereferenceLdapDao extends AbstractQueryPersonAttributeDao<FilterTe
         return request;
     }
 
+    /**
+     * Copies every attribute of the entry into a new map.
+     *
+     * @param entry search result entry
+     * @return attribute map
+     * @deprecated people are returned as {@link DereferencePersonAttributes} views of the entry, which convert
+     * attribute values when they are read
+     */
+    @Deprecated
     protected Map<String, List<Object>> convertLdapEntryToMap(final LdapEntry entry) {
-        if (entry.getAttribute("userAccountControl") != null) {
-            var uac = Integer.parseInt(entry.getAttribute("userAccountControl").getStringValue());
-
-        }
         final Map<String, List<Object>> attributeMap = new LinkedHashMap<>(entry.size());
         for (var attr : entry.getAttributes()) {
-            attributeMap.put(attr.getName(), new ArrayList<>(attr.getStringValues()));
+            final List<Object> values = new ArrayList<>(attr.size());
+            if (attr.isBinary()) {
+                values.addAll(attr.getBinaryValues());
+            } else {
+                for (String value : attr.getStringValues()) {
+                    values.add(interner != null ? interner.intern(value) : value);
+                }
+            }
+            attributeMap.put(attr.getName(), values);
         }
         logger.debug("Converted ldap DN entry [{}] to attribute map {}", entry.getDn(), attributeMap);
         return attributeMap;
@@ -0,0 +1,111 @@
+package org.apereo.cas.deref;
+
+import java.util.Collection;
+
+/**
+ * Caps on what one lookup may hold in memory, so a user in a huge group cannot blow up the heap. Decoding of a deref
+ * response stops reading values, or skips the remaining results of an attribute, as soon as a cap is reached,
+ * without copying the values left out. Limits belong to one DAO, whose result handler decodes the controls it
+ * reads with them, see {@link DereferenceResultHandler#decode(DereferenceResponseControl)}; the control value
+ * itself is walked with the widest limits of the DAOs, see
+ * {@link DereferenceResponseControl#register(DereferenceLimits)}. What was cut is flagged on the entry, see
+ * {@link #TRUNCATED_ATTRIBUTE} and {@link #TRUNCATED_ENTRIES_ATTRIBUTE}. Zero disables a cap.
+ */
+public final class DereferenceLimits {
+
+    /** Limits that cap nothing. */
+    public static final DereferenceLimits UNLIMITED = new DereferenceLimits(0, 0, 0);
+
+    /** Attribute listing the dereference attributes whose values were truncated. */
+    public static final String TRUNCATED_ATTRIBUTE = "dereferenceTruncated";
+
+    /** Attribute holding the number of entries left out of the merged entry. */
+    public static final String TRUNCATED_ENTRIES_ATTRIBUTE = "dereferenceTruncatedEntries";
+
+    private final int maxValuesPerAttribute;
+    private final long maxDecodedBytes;
+    private final int maxMergedEntries;
+
+    /**
+     * Creates new limits.
+     *
+     * @param maxValuesPerAttribute maximum number of DNs dereferenced per dereference attribute of an entry
+     * @param maxDecodedBytes       maximum number of value bytes kept from one deref response
+     * @param maxMergedEntries      maximum number of entries merged into the result of a lookup
+     */
+    public DereferenceLimits(final int maxValuesPerAttribute, final long maxDecodedBytes,
+                             final int maxMergedEntries) {
+        if (maxValuesPerAttribute < 0 || maxDecodedBytes < 0 || maxMergedEntries < 0) {
+            throw new IllegalArgumentException("Limits must not be negative");
+        }
+        this.maxValuesPerAttribute = maxValuesPerAttribute;
+        this.maxDecodedBytes = maxDecodedBytes;
+        this.maxMergedEntries = maxMergedEntries;
+    }
+
+    /**
+     * @return maximum number of DNs dereferenced per dereference attribute of an entry, zero for no cap
+     */
+    public int getMaxValuesPerAttribute() {
+        return maxValuesPerAttribute;
+    }
+
+    /**
+     * @return maximum number of value bytes kept from one deref response, zero for no cap
+     */
+    public long getMaxDecodedBytes() {
+        return maxDecodedBytes;
+    }
+
+    /**
+     * @return maximum number of entries merged into the result of a lookup, zero for no cap
+     */
+    public int getMaxMergedEntries() {
+        return maxMergedEntries;
+    }
+
+    /**
+     * Limits capping only what every one of the given limits caps, each cap the widest of them.
+     *
+     * @param limits limits to widen
+     * @return widest limits, unlimited when none are given
+     */
+    static DereferenceLimits widest(final Collection<DereferenceLimits> limits) {
+        if (limits.isEmpty()) {
+            return UNLIMITED;
+        }
+        int maxValuesPerAttribute = 0;
+        long maxDecodedBytes = 0;
+        int maxMergedEntries = 0;
+        boolean first = true;
+        for (DereferenceLimits l : limits) {
+            maxValuesPerAttribute = widest(first, maxValuesPerAttribute, l.maxValuesPerAttribute);
+            maxDecodedBytes = widest(first, maxDecodedBytes, l.maxDecodedBytes);
+            maxMergedEntries = widest(first, maxMergedEntries, l.maxMergedEntries);
+            first = false;
+        }
+        return new DereferenceLimits(maxValuesPerAttribute, maxDecodedBytes, maxMergedEntries);
+    }
+
+    /*
+     * Widest of two caps, zero capping nothing.
+     */
+    private static int widest(final boolean first, final int current, final int cap) {
+        return (int) widest(first, (long) current, cap);
+    }
+
+    private static long widest(final boolean first, final long current, final long cap) {
+        if (first) {
+            return cap;
+        }
+        return current == 0 || cap == 0 ? 0 : Math.max(current, cap);
+    }
+
+    @Override
+    public String toString() {
+        return new StringBuilder("[").append(getClass().getName()).append("@").append(hashCode())
+                .append("::maxValuesPerAttribute=").append(maxValuesPerAttribute)
+                .append(", maxDecodedBytes=").append(maxDecodedBytes)
+                .append(", maxMergedEntries=").append(maxMergedEntries).append("]").toString();
+    }
+}
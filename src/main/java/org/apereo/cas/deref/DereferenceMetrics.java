@@ -0,0 +1,124 @@
+package org.apereo.cas.deref;
+
+/**
+ * Receives latency and volume measurements of every dereference query. All methods do nothing by default, so
+ * implementations only override what they report; {@link MicrometerDereferenceMetrics} forwards everything to a
+ * Micrometer registry.
+ */
+public interface DereferenceMetrics {
+
+    /** Metrics implementation that discards every measurement. */
+    DereferenceMetrics NOOP = new DereferenceMetrics() {
+    };
+
+    /** Phases of a query that are timed separately. */
+    enum Phase {
+        /** Building the search request. */
+        REQUEST,
+        /** Network round trip of the search, from sending the request to receiving the result. */
+        SEARCH,
+        /** Decoding a deref response control, reported once per entry; runs within {@link #SEARCH}. */
+        DECODE,
+        /** Folding dereferenced values into the entries and merging the entries. */
+        MERGE,
+        /** Converting the merged entries to person attributes. */
+        CONVERT
+    }
+
+    /**
+     * Records the duration of a phase.
+     *
+     * @param phase phase of the query
+     * @param nanos duration in nanoseconds
+     */
+    default void record(final Phase phase, final long nanos) {
+    }
+
+    /** An entry came back with a deref response control. */
+    default void controlReturned() {
+    }
+
+    /** An entry came back without a deref response control. */
+    default void controlMissing() {
+    }
+
+    /**
+     * Records the number of dereferenced values of a query.
+     *
+     * @param count dereferenced values
+     */
+    default void dereferencedValues(final int count) {
+    }
+
+    /** A deref response control could not be decoded completely. */
+    default void decodeFailure() {
+    }
+
+    /** Values or entries of a query were left out because a {@link DereferenceLimits} cap was reached. */
+    default void truncated() {
+    }
+
+    /** A search failed. */
+    default void searchFailure() {
+    }
+
+    /**
+     * Records the time a query waited for a pooled connection.
+     *
+     * @param nanos wait time in nanoseconds
+     */
+    default void connectionWait(final long nanos) {
+    }
+
+    /**
+     * Called once for the connection pool owned by the DAO, so its state can be reported as gauges.
+     *
+     * @param pool connection pool
+     */
+    default void connectionPool(final DereferenceConnectionPool pool) {
+    }
+
+    /** A slow search was hedged on another replica. */
+    default void hedgeSent() {
+    }
+
+    /** A hedge completed before the search it hedged. */
+    default void hedgeWon() {
+    }
+
+    /**
+     * Called once for the hedger of the DAO, so its state can be reported as gauges.
+     *
+     * @param hedger hedger
+     */
+    default void hedger(final DereferenceHedger hedger) {
+    }
+
+    /**
+     * Called once for the adaptive strategy of the DAO, so its decisions can be reported as gauges.
+     *
+     * @param strategy strategy choosing the way of every dereference attribute
+     */
+    default void strategy(final DereferenceStrategy strategy) {
+    }
+
+    /**
+     * Called once for the pool of DNs and values of the DAO, so its size can be reported as gauges.
+     *
+     * @param interner pool of DNs and values
+     */
+    default void interner(final DereferenceInterner interner) {
+    }
+
+    /** A lookup whose search failed was served stale cached people or people without dereferenced values. */
+    default void degraded() {
+    }
+
+    /**
+     * Called once for the circuit breaker of every server, so its state can be reported as gauges.
+     *
+     * @param breaker circuit breaker of a server
+     */
+    default void circuitBreaker(final DereferenceCircuitBreaker breaker) {
+    }
+}
@@ -0,0 +1,216 @@
+package org.apereo.cas.deref;
+
+import lombok.extern.slf4j.Slf4j;
+import org.ldaptive.LdapException;
+import org.ldaptive.ResultCode;
+import org.ldaptive.SearchOperation;
+import org.ldaptive.SearchOperationHandle;
+import org.ldaptive.SearchRequest;
+import org.ldaptive.SearchResponse;
+import org.ldaptive.control.PagedResultsControl;
+import org.ldaptive.control.RequestControl;
+import org.ldaptive.control.ResponseControl;
+import org.ldaptive.control.SortKey;
+import org.ldaptive.control.SortRequestControl;
+import org.ldaptive.control.VirtualListViewRequestControl;
+import org.ldaptive.control.VirtualListViewResponseControl;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * Runs a search page by page, with the Simple Paged Results control (RFC 2696) or, when sort keys are given, with
+ * the Virtual List View control and Server Side Sort (RFC 2891). The controls already on the request, such as the
+ * deref control, are sent with every page. Every page is sent as a copy of the request, which is never modified,
+ * so a request may be shared, e.g. by the lookups of one query.
+ *
+ * Entries are meant to be consumed by the entry handlers of the search operation as each page arrives, e.g. a
+ * {@link DereferenceEntryAccumulator}, so a page is released before the next one is requested. What the handlers
+ * keep is up to them: an accumulator merging every entry still grows with the result, while
+ * {@link DereferencePeoplePublisher} hands each entry on and only asks for the next page on demand.
+ */
+@Slf4j
+public class DereferencePagedSearch {
+
+    private final int pageSize;
+
+    private final SortKey[] sortKeys;
+
+    /**
+     * Creates a new paged search.
+     *
+     * @param pageSize number of entries per page
+     * @param sortKeys sort keys of the virtual list view, null to use simple paged results
+     */
+    public DereferencePagedSearch(final int pageSize, final SortKey[] sortKeys) {
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException("pageSize must be greater than zero");
+        }
+        if (sortKeys != null && sortKeys.length == 0) {
+            throw new IllegalArgumentException("A virtual list view needs at least one sort key");
+        }
+        this.pageSize = pageSize;
+        this.sortKeys = sortKeys;
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * @return whether pages are requested through a virtual list view
+     */
+    public boolean isVirtualListView() {
+        return sortKeys != null;
+    }
+
+    /**
+     * Requests every page of the search.
+     *
+     * @param search  search operation, its handlers see the entries of every page
+     * @param request search request
+     * @return response of the last page
+     * @throws LdapException if a page could not be requested
+     */
+    public SearchResponse execute(final SearchOperation search, final SearchRequest request) throws LdapException {
+        final Pages pages = pages(search, request);
+        SearchResponse response = null;
+        while (pages.hasNext()) {
+            response = pages.next();
+        }
+        LOGGER.debug("Paged search of [{}] took {} page(s)", request.getFilter(), pages.getCount());
+        return response;
+    }
+
+    /**
+     * Returns the pages of the search, to be requested one at a time, e.g. as a consumer asks for more entries.
+     *
+     * @param search  search operation, its handlers see the entries of every page
+     * @param request search request
+     * @return pages of the search, nothing is requested yet
+     */
+    public Pages pages(final SearchOperation search, final SearchRequest request) {
+        return new Pages(search, request);
+    }
+
+    /**
+     * Page by page cursor over one search. Not thread safe except for {@link #abandon()}.
+     */
+    public final class Pages {
+
+        private final SearchOperation search;
+        private final SearchRequest request;
+        private final RequestControl[] controls;
+
+        /** Simple paged results state. */
+        private byte[] cookie;
+
+        /** Virtual list view state. */
+        private int offset = 1;
+        private int contentCount;
+        private byte[] contextID;
+
+        private int count;
+        private volatile boolean done;
+        private volatile SearchOperationHandle handle;
+
+        private Pages(final SearchOperation search, final SearchRequest request) {
+            this.search = search;
+            this.request = request;
+            this.controls = request.getControls();
+        }
+
+        /**
+         * @return whether there are pages left to request
+         */
+        public boolean hasNext() {
+            return !done;
+        }
+
+        /**
+         * Requests the next page and waits for it.
+         *
+         * @return response of the page
+         * @throws LdapException if the page could not be requested
+         */
+        public SearchResponse next() throws LdapException {
+            if (done) {
+                throw new NoSuchElementException("No pages left");
+            }
+            try {
+                final SearchRequest page = SearchRequest.copy(request);
+                if (sortKeys != null) {
+                    page.setControls(append(controls, new SortRequestControl(sortKeys, true),
+                            new VirtualListViewRequestControl(offset, 0, pageSize - 1, contentCount, contextID, true)));
+                } else {
+                    page.setControls(append(controls, new PagedResultsControl(pageSize, cookie, true)));
+                }
+                handle = search.send(page);
+                final SearchResponse response = handle.await();
+                count++;
+                done = response.getResultCode() != ResultCode.SUCCESS
+                        || (sortKeys != null ? !nextView(response) : !nextCookie(response));
+                return response;
+            } catch (LdapException | RuntimeException e) {
+                done = true;
+                throw e;
+            } finally {
+                handle = null;
+            }
+        }
+
+        /**
+         * Stops requesting pages and abandons the page in flight, if any.
+         */
+        public void abandon() {
+            done = true;
+            final SearchOperationHandle h = handle;
+            if (h != null) {
+                h.abandon();
+            }
+        }
+
+        /**
+         * @return number of pages received
+         */
+        public int getCount() {
+            return count;
+        }
+
+        private boolean nextCookie(final SearchResponse response) {
+            final ResponseControl ctrl = response.getControl(PagedResultsControl.OID);
+            cookie = ctrl instanceof PagedResultsControl ? ((PagedResultsControl) ctrl).getCookie() : null;
+            return cookie != null && cookie.length > 0;
+        }
+
+        private boolean nextView(final SearchResponse response) {
+            final ResponseControl ctrl = response.getControl(VirtualListViewResponseControl.OID);
+            if (!(ctrl instanceof VirtualListViewResponseControl)) {
+                LOGGER.warn("No virtual list view response for [{}], stopping after page {}",
+                        request.getFilter(), count);
+                return false;
+            }
+            final VirtualListViewResponseControl vlv = (VirtualListViewResponseControl) ctrl;
+            contentCount = vlv.getContentCount();
+            contextID = vlv.getContextID();
+            offset += pageSize;
+            return offset <= contentCount;
+        }
+    }
+
+    private static RequestControl[] append(final RequestControl[] controls, final RequestControl... added) {
+        if (controls == null || controls.length == 0) {
+            return added;
+        }
+        final RequestControl[] all = Arrays.copyOf(controls, controls.length + added.length);
+        System.arraycopy(added, 0, all, controls.length, added.length);
+        return all;
+    }
+
+    @Override
+    public String toString() {
+        return new StringBuilder("[").append(getClass().getName()).append("@").append(hashCode())
+                .append("::pageSize=").append(pageSize)
+                .append(", sortKeys=").append(Arrays.toString(sortKeys)).append("]").toString();
+    }
+}
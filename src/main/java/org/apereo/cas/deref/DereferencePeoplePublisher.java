@@ -0,0 +1,249 @@
+package org.apereo.cas.deref;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apereo.services.persondir.IPersonAttributes;
+import org.ldaptive.LdapEntry;
+import org.ldaptive.LdapException;
+import org.ldaptive.SearchOperation;
+import org.ldaptive.SearchOperationHandle;
+import org.ldaptive.SearchRequest;
+import org.ldaptive.handler.LdapEntryHandler;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Publishes the people matched by a search one by one, as their entries arrive, instead of returning them as a
+ * list. Every subscription runs its own search, started on the first request.
+ *
+ * Entries are folded with their dereferenced values and handed to the subscriber on the given executor, never
+ * more than it asked for. With paging, the next page is only requested once the entries received so far have been
+ * consumed and more are wanted, so a slow subscriber slows the search down. Without paging, the server sends the
+ * whole result and entries the subscriber has not asked for yet wait in memory, unconverted.
+ *
+ * Cancelling the subscription abandons the search in flight.
+ */
+@Slf4j
+public class DereferencePeoplePublisher implements Flow.Publisher<IPersonAttributes> {
+
+    private final Function<LdapEntryHandler, SearchOperation> searches;
+    private final Supplier<SearchRequest> requests;
+    private final DereferencePagedSearch pagedSearch;
+    private final Function<LdapEntry, IPersonAttributes> converter;
+    private final Executor executor;
+
+    /**
+     * Creates a new publisher.
+     *
+     * @param searches    creates the search operation of a subscription, handing entries to the given handler
+     * @param requests    creates the search request of a subscription
+     * @param pagedSearch pages searches on demand, may be null
+     * @param converter   folds the dereferenced values of an entry and converts it, may block
+     * @param executor    executor converting entries and signalling the subscriber
+     */
+    public DereferencePeoplePublisher(final Function<LdapEntryHandler, SearchOperation> searches,
+                                      final Supplier<SearchRequest> requests,
+                                      final DereferencePagedSearch pagedSearch,
+                                      final Function<LdapEntry, IPersonAttributes> converter,
+                                      final Executor executor) {
+        this.searches = searches;
+        this.requests = requests;
+        this.pagedSearch = pagedSearch;
+        this.converter = converter;
+        this.executor = executor;
+    }
+
+    @Override
+    public void subscribe(final Flow.Subscriber<? super IPersonAttributes> subscriber) {
+        if (subscriber == null) {
+            throw new NullPointerException("Null subscriber");
+        }
+        final DereferenceSubscription subscription = new DereferenceSubscription(subscriber);
+        subscriber.onSubscribe(subscription);
+    }
+
+    /*
+     * One search and its subscriber. Signals are serialized by the usual work-in-progress counter: whoever brings
+     * it from zero schedules the drain loop, everybody else just records their work.
+     */
+    private final class DereferenceSubscription implements Flow.Subscription {
+
+        private final Flow.Subscriber<? super IPersonAttributes> subscriber;
+        private final Queue<LdapEntry> entries = new ConcurrentLinkedQueue<>();
+        private final AtomicLong requested = new AtomicLong();
+        private final AtomicInteger wip = new AtomicInteger();
+        private final AtomicBoolean started = new AtomicBoolean();
+        private final AtomicBoolean pageInFlight = new AtomicBoolean();
+
+        private volatile boolean searchDone;
+        private volatile Throwable error;
+        private volatile boolean cancelled;
+        private volatile SearchOperationHandle handle;
+        private volatile DereferencePagedSearch.Pages pages;
+
+        private DereferenceSubscription(final Flow.Subscriber<? super IPersonAttributes> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(final long n) {
+            if (n <= 0) {
+                //the subscription is over (rule 3.9): the search is abandoned, then the error is signalled
+                error = new IllegalArgumentException("Requested " + n + " people, must be positive");
+                searchDone = true;
+                abandon();
+                entries.clear();
+                drain();
+                return;
+            }
+            requested.accumulateAndGet(n, (r, m) -> r + m < 0 ? Long.MAX_VALUE : r + m);
+            if (started.compareAndSet(false, true)) {
+                start();
+            }
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            abandon();
+        }
+
+        /*
+         * Abandons the search in flight and stops requesting pages.
+         */
+        private void abandon() {
+            final SearchOperationHandle h = handle;
+            if (h != null) {
+                h.abandon();
+            }
+            final DereferencePagedSearch.Pages p = pages;
+            if (p != null) {
+                p.abandon();
+            }
+        }
+
+        private void start() {
+            final SearchOperation search = searches.apply(entry -> {
+                //entries still arriving once the subscription ended are dropped
+                if (!searchDone) {
+                    entries.offer(entry);
+                    drain();
+                }
+                return null;
+            });
+            final SearchRequest request = requests.get();
+            if (pagedSearch != null) {
+                // the first page is requested by the drain loop
+                pages = pagedSearch.pages(search, request);
+                return;
+            }
+            search.setResultHandlers(result -> {
+                searchDone = true;
+                drain();
+            });
+            search.setExceptionHandler(e -> {
+                error = e;
+                searchDone = true;
+                drain();
+            });
+            try {
+                handle = search.send(request);
+                if (cancelled || searchDone) {
+                    handle.abandon();
+                }
+            } catch (LdapException e) {
+                error = e;
+                searchDone = true;
+            }
+        }
+
+        private void requestPage() {
+            final DereferencePagedSearch.Pages p = pages;
+            if (p == null || !pageInFlight.compareAndSet(false, true)) {
+                return;
+            }
+            executor.execute(() -> {
+                try {
+                    if (p.hasNext() && !cancelled) {
+                        p.next();
+                    }
+                } catch (LdapException | RuntimeException e) {
+                    error = e;
+                } finally {
+                    if (!p.hasNext()) {
+                        searchDone = true;
+                    }
+                    pageInFlight.set(false);
+                    drain();
+                }
+            });
+        }
+
+        private void drain() {
+            if (wip.getAndIncrement() == 0) {
+                executor.execute(this::drainLoop);
+            }
+        }
+
+        private void drainLoop() {
+            int missed = 1;
+            for (;;) {
+                long emitted = 0;
+                final long wanted = requested.get();
+                while (emitted != wanted) {
+                    if (cancelled) {
+                        entries.clear();
+                        return;
+                    }
+                    final LdapEntry entry = entries.poll();
+                    if (entry == null) {
+                        break;
+                    }
+                    final IPersonAttributes person;
+                    try {
+                        person = converter.apply(entry);
+                    } catch (RuntimeException e) {
+                        LOGGER.error("Error while converting entry [{}]", entry.getDn(), e);
+                        cancel();
+                        subscriber.onError(e);
+                        return;
+                    }
+                    subscriber.onNext(person);
+                    emitted++;
+                }
+                if (cancelled) {
+                    entries.clear();
+                    return;
+                }
+                if (emitted != 0 && wanted != Long.MAX_VALUE) {
+                    requested.addAndGet(-emitted);
+                }
+                if (searchDone && entries.isEmpty()) {
+                    // terminal, the counter is left non zero so nothing is signalled after this
+                    cancelled = true;
+                    if (error != null) {
+                        subscriber.onError(error);
+                    } else {
+                        subscriber.onComplete();
+                    }
+                    return;
+                }
+                if (entries.isEmpty() && requested.get() > 0) {
+                    requestPage();
+                }
+                missed = wip.addAndGet(-missed);
+                if (missed == 0) {
+                    return;
+                }
+            }
+        }
+    }
+}
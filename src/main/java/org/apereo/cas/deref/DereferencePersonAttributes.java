@@ -0,0 +1,434 @@
+package org.apereo.cas.deref;
+
+import org.apereo.services.persondir.IPersonAttributes;
+import org.apereo.services.persondir.support.CaseInsensitiveAttributeNamedPersonImpl;
+import org.apereo.services.persondir.support.CaseInsensitiveNamedPersonImpl;
+import org.ldaptive.LdapAttribute;
+import org.ldaptive.LdapEntry;
+import org.ldaptive.LdapUtils;
+
+import java.util.AbstractList;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.RandomAccess;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Read only {@link IPersonAttributes} view of a merged search result entry, including the dereferenced values
+ * folded into it. Nothing is copied up front: the values of an attribute are converted to a list the first time
+ * that attribute is read and kept for later reads, so attributes a service never releases are never converted.
+ *
+ * When a {@link DereferenceInterner} is given, every value is converted when the person is created, string values
+ * are taken from the pool and the entry is dropped, so a cached person holds nothing but references to the values
+ * it shares with the other people holding the same group or manager DNs. With compact DNs, the values of the given
+ * DN attributes are pooled as {@link DereferenceDn}s and rendered as strings when read.
+ *
+ * Values of binary attributes, direct or dereferenced, are exposed as byte arrays and are never converted to
+ * strings. Every read returns a copy, so callers cannot change the values of a cached person. A binary user name
+ * attribute names the person with the Base64 encoding of its first value.
+ *
+ * Attribute names are case-insensitive. Instances are safe to share between threads, as cached people are.
+ * Serialization writes a plain person-directory copy of the attributes, not the entry.
+ */
+public class DereferencePersonAttributes implements IPersonAttributes {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final int HASH_CODE_SEED = 863;
+
+    /** Entry the values are converted from on access, null once converted up front. */
+    private final transient LdapEntry entry;
+
+    private final transient String dn;
+
+    /** Names of the attributes of the entry, in its order. */
+    private final transient String[] attributeNames;
+
+    /** Attributes added on top of the entry, e.g. the diagnostic message of the search. */
+    private final transient Map<String, List<Object>> extra = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+
+    /** Attribute holding the user name, null if the user name is given. */
+    private final String userNameAttribute;
+
+    private final String userName;
+
+    private final transient Map<String, List<Object>> converted = new ConcurrentHashMap<>();
+
+    private final transient Map<String, List<Object>> attributes = new AttributesView();
+
+    /**
+     * Creates a person named by the first value of an attribute of the entry.
+     *
+     * @param userNameAttribute attribute holding the user name
+     * @param entry             merged search result entry
+     * @return person view of the entry
+     */
+    public static DereferencePersonAttributes named(final String userNameAttribute, final LdapEntry entry) {
+        return named(userNameAttribute, entry, null);
+    }
+
+    /**
+     * Creates a person named by the first value of an attribute of the entry, sharing its string values through
+     * the given pool.
+     *
+     * @param userNameAttribute attribute holding the user name
+     * @param entry             merged search result entry
+     * @param interner          pool of the string values, may be null
+     * @return person view of the entry
+     */
+    public static DereferencePersonAttributes named(final String userNameAttribute, final LdapEntry entry,
+                                                    final DereferenceInterner interner) {
+        return named(userNameAttribute, entry, interner, Collections.emptySet());
+    }
+
+    /**
+     * Creates a person named by the first value of an attribute of the entry, sharing its values through the
+     * given pool.
+     *
+     * @param userNameAttribute attribute holding the user name
+     * @param entry             merged search result entry
+     * @param interner          pool of the values, may be null
+     * @param dnAttributes      attributes whose values are DNs, pooled as compact DNs if the pool keeps them
+     * @return person view of the entry
+     */
+    public static DereferencePersonAttributes named(final String userNameAttribute, final LdapEntry entry,
+                                                    final DereferenceInterner interner,
+                                                    final Set<String> dnAttributes) {
+        return new DereferencePersonAttributes(entry, userNameAttribute, null, interner, dnAttributes);
+    }
+
+    /**
+     * Creates a person with the given user name.
+     *
+     * @param userName user name
+     * @param entry    merged search result entry
+     * @return person view of the entry
+     */
+    public static DereferencePersonAttributes withName(final String userName, final LdapEntry entry) {
+        return withName(userName, entry, null);
+    }
+
+    /**
+     * Creates a person with the given user name, sharing its string values through the given pool.
+     *
+     * @param userName user name
+     * @param entry    merged search result entry
+     * @param interner pool of the string values, may be null
+     * @return person view of the entry
+     */
+    public static DereferencePersonAttributes withName(final String userName, final LdapEntry entry,
+                                                       final DereferenceInterner interner) {
+        return withName(userName, entry, interner, Collections.emptySet());
+    }
+
+    /**
+     * Creates a person with the given user name, sharing its values through the given pool.
+     *
+     * @param userName     user name
+     * @param entry        merged search result entry
+     * @param interner     pool of the values, may be null
+     * @param dnAttributes attributes whose values are DNs, pooled as compact DNs if the pool keeps them
+     * @return person view of the entry
+     */
+    public static DereferencePersonAttributes withName(final String userName, final LdapEntry entry,
+                                                       final DereferenceInterner interner,
+                                                       final Set<String> dnAttributes) {
+        return new DereferencePersonAttributes(entry, null, userName, interner, dnAttributes);
+    }
+
+    private DereferencePersonAttributes(final LdapEntry entry, final String userNameAttribute,
+                                        final String userName, final DereferenceInterner interner,
+                                        final Set<String> dnAttributes) {
+        this.dn = entry.getDn();
+        this.attributeNames = entry.getAttributeNames();
+        this.userNameAttribute = userNameAttribute;
+        this.userName = userName;
+        if (interner == null) {
+            this.entry = entry;
+            return;
+        }
+        //the pooled values are the only copy kept, the entry is left to the collector
+        this.entry = null;
+        for (LdapAttribute attr : entry.getAttributes()) {
+            final boolean dns = interner.isCompactDns() && contains(dnAttributes, attr.getName());
+            converted.put(attr.getName().toLowerCase(Locale.ROOT), convert(attr, interner, dns));
+        }
+    }
+
+    private static boolean contains(final Set<String> names, final String name) {
+        for (String n : names) {
+            if (n.equalsIgnoreCase(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+     * Converts the values of an attribute, pooling strings when an interner is given.
+     */
+    private static List<Object> convert(final LdapAttribute attr, final DereferenceInterner interner,
+                                        final boolean dns) {
+        if (attr.isBinary()) {
+            return new BinaryValues(attr.getBinaryValues().toArray(new byte[0][]));
+        }
+        if (interner == null) {
+            return Collections.unmodifiableList(new ArrayList<>(attr.getStringValues()));
+        }
+        final CharSequence[] values = new CharSequence[attr.size()];
+        int i = 0;
+        for (String value : attr.getStringValues()) {
+            values[i++] = dns ? interner.internDn(value) : interner.intern(value);
+        }
+        return new PooledValues(values);
+    }
+
+    /**
+     * Adds a single valued attribute on top of the entry, replacing the entry's attribute of the same name.
+     * Only meant to be called before the person is handed out.
+     *
+     * @param name  attribute name
+     * @param value attribute value
+     */
+    void addAttribute(final String name, final Object value) {
+        extra.put(name, Collections.singletonList(value));
+    }
+
+    /**
+     * @return the entry this person is a view of, null when its values were pooled up front
+     */
+    public LdapEntry getEntry() {
+        return entry;
+    }
+
+    @Override
+    public String getName() {
+        if (userNameAttribute == null) {
+            return userName;
+        }
+        final Object value = getAttributeValue(userNameAttribute);
+        if (value instanceof byte[]) {
+            //e.g. objectGUID, byte arrays have no string form of their content
+            return LdapUtils.base64Encode((byte[]) value);
+        }
+        return value != null ? value.toString() : null;
+    }
+
+    @Override
+    public Map<String, List<Object>> getAttributes() {
+        return attributes;
+    }
+
+    @Override
+    public Object getAttributeValue(final String name) {
+        final List<Object> values = getAttributeValues(name);
+        return values == null || values.isEmpty() ? null : values.get(0);
+    }
+
+    @Override
+    public List<Object> getAttributeValues(final String name) {
+        if (name == null) {
+            return null;
+        }
+        final List<Object> values = extra.get(name);
+        if (values != null) {
+            return values;
+        }
+        final String key = name.toLowerCase(Locale.ROOT);
+        final List<Object> cached = converted.get(key);
+        if (cached != null || entry == null) {
+            return cached;
+        }
+        final LdapAttribute attr = entry.getAttribute(name);
+        if (attr == null) {
+            return null;
+        }
+        final List<Object> convertedValues = convert(attr, null, false);
+        final List<Object> raced = converted.putIfAbsent(key, convertedValues);
+        return raced != null ? raced : convertedValues;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (o == this) {
+            return true;
+        }
+        //only equal to another view, so that equality stays symmetric with other person implementations
+        if (o instanceof DereferencePersonAttributes) {
+            final DereferencePersonAttributes v = (DereferencePersonAttributes) o;
+            return Objects.equals(getName(), v.getName()) && attributes.equals(v.attributes);
+        }
+        return false;
+    }
+
+    @Override
+    public int hashCode() {
+        //by name and attribute names, hashing the values would convert every one of them
+        int names = 0;
+        for (String name : attributes.keySet()) {
+            //case-insensitive, as equality of the attributes is
+            names += name.toLowerCase(Locale.ROOT).hashCode();
+        }
+        return LdapUtils.computeHashCode(HASH_CODE_SEED, getName(), names);
+    }
+
+    @Override
+    public String toString() {
+        return new StringBuilder("[").append(getClass().getName()).append("@").append(hashCode())
+                .append("::name=").append(getName())
+                .append(", dn=").append(dn)
+                .append(", attributeNames=").append(attributes.keySet()).append("]").toString();
+    }
+
+    /*
+     * Serializes a materialized person-directory copy instead of the view.
+     */
+    private Object writeReplace() {
+        final Map<String, List<Object>> copy = new LinkedHashMap<>();
+        for (Map.Entry<String, List<Object>> e : attributes.entrySet()) {
+            copy.put(e.getKey(), new ArrayList<>(e.getValue()));
+        }
+        //a binary user name keeps its Base64 form, the copy would name the person by the array
+        return userNameAttribute != null && !(getAttributeValue(userNameAttribute) instanceof byte[])
+                ? new CaseInsensitiveAttributeNamedPersonImpl(userNameAttribute, copy)
+                : new CaseInsensitiveNamedPersonImpl(getName(), copy);
+    }
+
+    /*
+     * Map view of the attributes, converting values on access.
+     */
+    private final class AttributesView extends AbstractMap<String, List<Object>> {
+
+        @Override
+        public List<Object> get(final Object key) {
+            return key instanceof String ? getAttributeValues((String) key) : null;
+        }
+
+        @Override
+        public boolean containsKey(final Object key) {
+            if (!(key instanceof String)) {
+                return false;
+            }
+            if (extra.containsKey(key)) {
+                return true;
+            }
+            return entry != null ? entry.getAttribute((String) key) != null
+                    : converted.containsKey(((String) key).toLowerCase(Locale.ROOT));
+        }
+
+        @Override
+        public Set<String> keySet() {
+            final Set<String> names = new LinkedHashSet<>(attributeNames.length + extra.size());
+            for (String name : attributeNames) {
+                if (!extra.containsKey(name)) {
+                    names.add(name);
+                }
+            }
+            names.addAll(extra.keySet());
+            return Collections.unmodifiableSet(names);
+        }
+
+        @Override
+        public Set<Entry<String, List<Object>>> entrySet() {
+            final Set<String> names = keySet();
+            return new AbstractSet<>() {
+                @Override
+                public Iterator<Entry<String, List<Object>>> iterator() {
+                    final Iterator<String> it = names.iterator();
+                    return new Iterator<>() {
+                        @Override
+                        public boolean hasNext() {
+                            return it.hasNext();
+                        }
+
+                        @Override
+                        public Entry<String, List<Object>> next() {
+                            final String name = it.next();
+                            return new SimpleImmutableEntry<>(name, getAttributeValues(name));
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return names.size();
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return keySet().size();
+        }
+    }
+
+    /*
+     * Read only binary values, copied on every read. Equal to other binary values of the same content.
+     */
+    private static final class BinaryValues extends AbstractList<Object> implements RandomAccess {
+
+        private final byte[][] values;
+
+        private BinaryValues(final byte[][] values) {
+            this.values = values;
+        }
+
+        @Override
+        public Object get(final int index) {
+            return values[index].clone();
+        }
+
+        @Override
+        public int size() {
+            return values.length;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (o instanceof BinaryValues) {
+                return Arrays.deepEquals(values, ((BinaryValues) o).values);
+            }
+            return super.equals(o);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.deepHashCode(values);
+        }
+    }
+
+    /*
+     * Read only values shared through the pool. Compact DNs are rendered as strings when read, pooled strings are
+     * returned as they are.
+     */
+    private static final class PooledValues extends AbstractList<Object> implements RandomAccess {
+
+        private final CharSequence[] values;
+
+        private PooledValues(final CharSequence[] values) {
+            this.values = values;
+        }
+
+        @Override
+        public Object get(final int index) {
+            return values[index].toString();
+        }
+
+        @Override
+        public int size() {
+            return values.length;
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package org.apereo.cas.deref;
+
+import org.ldaptive.FilterTemplate;
+import org.ldaptive.SearchRequest;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * Immutable per-call state of a dereference lookup. A new instance is created for every call of
+ * {@link DereferenceLdapDao#getPeopleForQuery(FilterTemplate, String)} and everything that belongs to that call
+ * hangs off it, so a single DAO instance can serve concurrent lookups without sharing mutable state. The search
+ * request is copied when the query is built, its time limit lowered to the deadline, and copied again for every
+ * search sent, so no search can change it for another.
+ */
+public final class DereferenceQuery {
+
+    private final String filter;
+    private final String userName;
+    private final String key;
+    private final DereferenceRoute route;
+    private final SearchRequest request;
+    private final Set<String> secondaryNames;
+    private final boolean bounded;
+    private final long deadline;
+
+    DereferenceQuery(final FilterTemplate filter, final String userName, final String spec,
+                     final DereferenceRoute route, final SearchRequest request) {
+        this(filter, userName, spec, route, request, Collections.emptySet());
+    }
+
+    DereferenceQuery(final FilterTemplate filter, final String userName, final String spec,
+                     final DereferenceRoute route, final SearchRequest request, final Set<String> secondaryNames) {
+        this(filter.format(), userName, spec, route, request, secondaryNames, null);
+    }
+
+    DereferenceQuery(final String filter, final String userName, final String spec,
+                     final DereferenceRoute route, final SearchRequest request, final Set<String> secondaryNames,
+                     final Duration timeout) {
+        this.secondaryNames = Set.copyOf(secondaryNames);
+        this.bounded = timeout != null;
+        this.deadline = timeout != null ? System.nanoTime() + timeout.toNanos() : 0;
+        this.filter = filter;
+        this.userName = userName;
+        this.key = key(filter, spec);
+        this.route = route;
+        this.request = SearchRequest.copy(request);
+        if (bounded) {
+            //the server counts whole seconds, rounded up so it does not give up before the client
+            final long seconds = Math.max(1, (long) Math.ceil(Math.max(0, timeout.toNanos()) / 1e9));
+            final Duration limit = this.request.getTimeLimit();
+            if (limit == null || limit.isZero() || limit.getSeconds() > seconds) {
+                this.request.setTimeLimit(Duration.ofSeconds(seconds));
+            }
+        }
+    }
+
+    /**
+     * @return the formatted search filter
+     */
+    public String getFilter() {
+        return filter;
+    }
+
+    /**
+     * @return the user name the query was issued for
+     */
+    public String getUserName() {
+        return userName;
+    }
+
+    /**
+     * @return key identifying equivalent queries, the formatted filter plus the dereference specification
+     */
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * Key of the queries of a filter, known before the query is built so cached people are found without building
+     * its search request.
+     *
+     * @param filter formatted search filter
+     * @param spec   dereference specification, may be null
+     * @return key identifying equivalent queries
+     */
+    static String key(final String filter, final String spec) {
+        return spec != null ? filter + '|' + spec : filter;
+    }
+
+    /**
+     * @return how the dereference attributes of this query are resolved
+     */
+    public DereferenceRoute getRoute() {
+        return route;
+    }
+
+    /**
+     * @return attributes this query resolves by secondary searches although the route sends the control
+     */
+    public Set<String> getSecondaryNames() {
+        return secondaryNames;
+    }
+
+    /**
+     * @return whether the caller gave this query a deadline
+     */
+    public boolean hasDeadline() {
+        return bounded;
+    }
+
+    /**
+     * @return nanoseconds left until the deadline, negative once it passed, or Long.MAX_VALUE without deadline
+     */
+    public long getRemainingNanos() {
+        return bounded ? deadline - System.nanoTime() : Long.MAX_VALUE;
+    }
+
+    /**
+     * @return copy of the search request of this call, free to be changed by the caller
+     */
+    SearchRequest getRequest() {
+        return SearchRequest.copy(request);
+    }
+
+    @Override
+    public String toString() {
+        return new StringBuilder("[").append(getClass().getName()).append("@").append(hashCode())
+                .append("::filter=").append(filter)
+                .append(", userName=").append(userName).append("]").toString();
+    }
+}
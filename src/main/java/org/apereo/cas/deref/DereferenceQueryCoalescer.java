@@ -0,0 +1,188 @@
+package org.apereo.cas.deref;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apereo.services.persondir.IPersonAttributes;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Coalesces concurrent identical dereference queries, so that a single LDAP round trip serves every caller asking
+ * for the same key at the same time. The first caller of a key runs the search; callers arriving while it is in
+ * flight wait for its outcome, success or failure. Waiters get an unmodifiable copy of the people found, never the
+ * list handed to the first caller.
+ *
+ * The search function of the DAO reports a failed lookup, once its fallbacks are exhausted, by returning null
+ * rather than throwing, see {@link DereferenceLdapDao#searchForPeople(DereferenceQuery)}; waiters then get null
+ * as well. Exceptions thrown by the search, e.g. while converting the entries found, are rethrown to every
+ * waiter.
+ *
+ * A waiter that does not get an answer within the configured timeout, or by the deadline of its own query when
+ * that comes first, stops waiting and runs its own search, so a stuck leader can delay other callers by at most
+ * that timeout. A waiter past its deadline then gets what its own search makes of it, stale or fallback people.
+ * Waiters share the outcome of the leader whatever its deadline, including its fallback people.
+ */
+@Slf4j
+public class DereferenceQueryCoalescer {
+
+    private final Map<String, CompletableFuture<List<IPersonAttributes>>> inFlight = new ConcurrentHashMap<>();
+
+    private final long waitTimeoutNanos;
+
+    private final LongAdder leaders = new LongAdder();
+    private final LongAdder joins = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+
+    /**
+     * Creates a new coalescer.
+     *
+     * @param waitTimeout how long a waiter waits for the in-flight search before searching on its own
+     */
+    public DereferenceQueryCoalescer(final Duration waitTimeout) {
+        this.waitTimeoutNanos = waitTimeout.toNanos();
+    }
+
+    /**
+     * Runs the search for the given query, or joins an identical one already in flight.
+     *
+     * @param query  per-call query state
+     * @param search function running the actual search
+     * @return people found, or null if the search function returned null
+     */
+    public List<IPersonAttributes> execute(final DereferenceQuery query,
+                                           final Function<DereferenceQuery, List<IPersonAttributes>> search) {
+        final CompletableFuture<List<IPersonAttributes>> future = new CompletableFuture<>();
+        final CompletableFuture<List<IPersonAttributes>> existing = inFlight.putIfAbsent(query.getKey(), future);
+        if (existing == null) {
+            leaders.increment();
+            try {
+                final List<IPersonAttributes> people = search.apply(query);
+                future.complete(people != null ? Collections.unmodifiableList(new ArrayList<>(people)) : null);
+                return people;
+            } catch (RuntimeException | Error e) {
+                future.completeExceptionally(e);
+                throw e;
+            } finally {
+                inFlight.remove(query.getKey(), future);
+            }
+        }
+
+        joins.increment();
+        LOGGER.debug("Joining in-flight search for query [{}]", query.getFilter());
+        try {
+            return existing.get(waitNanos(query), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            timeouts.increment();
+            LOGGER.debug("In-flight search for query [{}] did not complete in time, searching directly",
+                    query.getFilter());
+            return search.apply(query);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for search of " + query.getFilter(), e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw new IllegalStateException("Search failed for " + query.getFilter(), e.getCause());
+        }
+    }
+
+    /**
+     * Asynchronous counterpart of {@link #execute(DereferenceQuery, Function)}: no thread waits for the in-flight
+     * search, the returned future completes with its outcome, or with the caller's own search once the wait
+     * timed out or the leader's caller cancelled its future, which abandons the leader's search.
+     *
+     * @param query  per-call query state
+     * @param search function sending the actual search
+     * @return future completed with the people found, or with null if the search completed with null
+     */
+    public CompletableFuture<List<IPersonAttributes>> executeAsync(
+            final DereferenceQuery query,
+            final Function<DereferenceQuery, CompletableFuture<List<IPersonAttributes>>> search) {
+        final CompletableFuture<List<IPersonAttributes>> future = new CompletableFuture<>();
+        final CompletableFuture<List<IPersonAttributes>> existing = inFlight.putIfAbsent(query.getKey(), future);
+        if (existing == null) {
+            leaders.increment();
+            final CompletableFuture<List<IPersonAttributes>> searched;
+            try {
+                searched = search.apply(query);
+            } catch (RuntimeException | Error e) {
+                inFlight.remove(query.getKey(), future);
+                future.completeExceptionally(e);
+                throw e;
+            }
+            searched.whenComplete((people, e) -> {
+                inFlight.remove(query.getKey(), future);
+                if (e != null) {
+                    future.completeExceptionally(e);
+                } else {
+                    future.complete(people != null ? Collections.unmodifiableList(new ArrayList<>(people)) : null);
+                }
+            });
+            return searched;
+        }
+
+        joins.increment();
+        LOGGER.debug("Joining in-flight search for query [{}]", query.getFilter());
+        //the shared future must not time out for the other waiters, so the wait is bounded on a copy of it
+        final CompletableFuture<List<IPersonAttributes>> joined = existing.copy()
+                .orTimeout(waitNanos(query), TimeUnit.NANOSECONDS);
+        return joined
+                .handle((people, e) -> {
+                    if (e instanceof TimeoutException) {
+                        timeouts.increment();
+                        LOGGER.debug("In-flight search for query [{}] did not complete in time, searching directly",
+                                query.getFilter());
+                        return search.apply(query);
+                    }
+                    if (e instanceof CancellationException
+                            || e != null && e.getCause() instanceof CancellationException) {
+                        //the leader's caller gave up, not the waiters
+                        return search.apply(query);
+                    }
+                    return e == null ? CompletableFuture.completedFuture(people)
+                            : CompletableFuture.<List<IPersonAttributes>>failedFuture(e);
+                })
+                .thenCompose(f -> f);
+    }
+
+    /*
+     * @return time a waiter waits for the in-flight search, never past the deadline of its own query
+     */
+    private long waitNanos(final DereferenceQuery query) {
+        return Math.max(0, Math.min(waitTimeoutNanos, query.getRemainingNanos()));
+    }
+
+    /**
+     * @return number of searches currently in flight
+     */
+    public int getInFlightCount() {
+        return inFlight.size();
+    }
+
+    public long getLeaderCount() {
+        return leaders.sum();
+    }
+
+    public long getJoinCount() {
+        return joins.sum();
+    }
+
+    public long getTimeoutCount() {
+        return timeouts.sum();
+    }
+}
@@ -0,0 +1,210 @@
+package org.apereo.cas.deref;
+
+import org.ldaptive.ConnectionFactory;
+import org.ldaptive.LdapException;
+import org.ldaptive.ResultCode;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Chooses where the searches of a DAO go: to its connection factory, to the first server whose circuit breaker lets
+ * them through, or hedged across the servers. The way is fixed when the DAO is set up, so a lookup only says what
+ * to send and how long it waits, and every feature is dealt with here once.
+ *
+ * Searches are functions sending a search to the connection factory they are given, without waiting for it; they
+ * must abandon their operation when their future is cancelled. Hedged searches wait for the hedge delay, so their
+ * asynchronous form runs on a thread of the given executor; the other searches hold no thread while they run.
+ */
+public class DereferenceQueryExecutor {
+
+    /** Wait for a search without deadline when the connections set no response timeout. */
+    static final Duration DEFAULT_RESPONSE_TIMEOUT = Duration.ofMinutes(1);
+
+    private final ConnectionFactory connectionFactory;
+    private final List<DereferenceCircuitBreaker> breakers;
+    private final DereferenceHedger hedger;
+    private final Executor executor;
+    private final AtomicInteger rotation = new AtomicInteger();
+
+    /**
+     * Creates a new executor.
+     *
+     * @param connectionFactory connection factory of the DAO, used when there are no breakers
+     * @param breakers          circuit breakers of the servers, null when searches are not guarded
+     * @param hedger            hedger of the servers, null when searches are not hedged
+     * @param executor          executor running the asynchronous form of the hedged searches
+     */
+    public DereferenceQueryExecutor(final ConnectionFactory connectionFactory,
+                                    final List<DereferenceCircuitBreaker> breakers, final DereferenceHedger hedger,
+                                    final Executor executor) {
+        this.connectionFactory = connectionFactory;
+        this.breakers = breakers != null ? new ArrayList<>(breakers) : null;
+        this.hedger = hedger;
+        this.executor = executor;
+    }
+
+    /**
+     * @return whether searches go through circuit breakers, which learn from servers giving up or too busy
+     */
+    public boolean isGuarded() {
+        return breakers != null;
+    }
+
+    public DereferenceHedger getHedger() {
+        return hedger;
+    }
+
+    /**
+     * @return circuit breakers of the servers, empty when searches are not guarded
+     */
+    public List<DereferenceCircuitBreaker> getCircuitBreakers() {
+        return breakers != null ? Collections.unmodifiableList(breakers) : Collections.emptyList();
+    }
+
+    /**
+     * Time the client waits for the search of a query and its secondary searches: until the deadline of the query,
+     * or the response timeout of the connections for queries without deadline.
+     *
+     * @param query per-call query state, null for a search of no lookup, e.g. a streamed one
+     * @return nanoseconds to wait at most
+     */
+    public long waitNanos(final DereferenceQuery query) {
+        if (query != null && query.hasDeadline()) {
+            return Math.max(0, query.getRemainingNanos());
+        }
+        final Duration responseTimeout = connectionFactory.getConnectionConfig().getResponseTimeout();
+        return responseTimeout != null && !responseTimeout.isNegative() && !responseTimeout.isZero()
+                ? responseTimeout.toNanos() : DEFAULT_RESPONSE_TIMEOUT.toNanos();
+    }
+
+    /**
+     * Sends a search once, never hedged: to the first server in turn whose circuit breaker lets it through, or to
+     * the connection factory. Fails right away when every breaker is open.
+     *
+     * @param search sends the search to the given connection factory
+     * @param <R>    search result
+     * @return future of the search
+     */
+    public <R> CompletableFuture<R> send(final Function<ConnectionFactory, CompletableFuture<R>> search) {
+        if (breakers == null) {
+            return search.apply(connectionFactory);
+        }
+        final int first = rotation.getAndIncrement();
+        for (int i = 0; i < breakers.size(); i++) {
+            final DereferenceCircuitBreaker breaker = breakers.get(Math.floorMod(first + i, breakers.size()));
+            if (breaker.allowRequest()) {
+                return track(breaker, search.apply(breaker));
+            }
+        }
+        return CompletableFuture.failedFuture(
+                new IllegalStateException("The circuit breakers of all servers are open"));
+    }
+
+    /**
+     * Sends a search, hedged when hedging is enabled, and waits for it at most the given time.
+     *
+     * @param search  sends the search to the given connection factory
+     * @param timeout nanoseconds to wait at most
+     * @param <R>     search result
+     * @return result of the search
+     */
+    public <R> R execute(final Function<ConnectionFactory, CompletableFuture<R>> search, final long timeout) {
+        if (hedger != null) {
+            return hedger.execute(guard(search), Duration.ofNanos(timeout));
+        }
+        final CompletableFuture<R> future = send(search);
+        try {
+            //the search should time out on its own, the wait is bounded too so a lost completion cannot hang
+            return future.get(timeout, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for a search", e);
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            throw new IllegalStateException("Search timed out", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Search failed", e.getCause());
+        }
+    }
+
+    /**
+     * Asynchronous form of {@link #execute(Function, long)}. Only hedged searches hold a thread, of the executor,
+     * while they run.
+     *
+     * @param search  sends the search to the given connection factory
+     * @param timeout nanoseconds to wait at most for a hedged search
+     * @param <R>     search result
+     * @return future of the search
+     */
+    public <R> CompletableFuture<R> executeAsync(final Function<ConnectionFactory, CompletableFuture<R>> search,
+                                                 final long timeout) {
+        if (hedger != null) {
+            return CompletableFuture.supplyAsync(() -> hedger.execute(guard(search), Duration.ofNanos(timeout)),
+                    executor);
+        }
+        return send(search);
+    }
+
+    /**
+     * Closes the connection factories of the servers, not the one of the DAO.
+     */
+    public void close() {
+        if (hedger != null) {
+            hedger.close();
+        } else if (breakers != null) {
+            breakers.forEach(DereferenceCircuitBreaker::close);
+        }
+    }
+
+    /*
+     * Hedged searches go to every replica through its breaker, if any, failing right away while it is open.
+     */
+    private <R> Function<ConnectionFactory, CompletableFuture<R>> guard(
+            final Function<ConnectionFactory, CompletableFuture<R>> search) {
+        return factory -> {
+            if (!(factory instanceof DereferenceCircuitBreaker)) {
+                return search.apply(factory);
+            }
+            final DereferenceCircuitBreaker breaker = (DereferenceCircuitBreaker) factory;
+            if (!breaker.allowRequest()) {
+                return CompletableFuture.failedFuture(new LdapException(
+                        ResultCode.UNAVAILABLE, "Circuit breaker of [" + breaker.getName() + "] is open"));
+            }
+            return track(breaker, search.apply(breaker));
+        };
+    }
+
+    /*
+     * Reports the outcome of a search to the breaker of its server. Cancelled searches, e.g. hedges that lost,
+     * say nothing about the server.
+     */
+    private static <T> CompletableFuture<T> track(final DereferenceCircuitBreaker breaker,
+                                                  final CompletableFuture<T> future) {
+        future.whenComplete((r, e) -> {
+            if (e == null) {
+                breaker.recordSuccess();
+            } else if (!future.isCancelled()) {
+                breaker.recordFailure();
+            }
+        });
+        return future;
+    }
+
+    @Override
+    public String toString() {
+        return new StringBuilder("[").append(getClass().getName()).append("@").append(hashCode())
+                .append("::breakers=").append(breakers != null ? breakers.size() : 0)
+                .append(", hedger=").append(hedger).append("]").toString();
+    }
+}
@@ -0,0 +1,152 @@
+package org.apereo.cas.deref;
+
+import org.ldaptive.FilterTemplate;
+import org.ldaptive.SearchRequest;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Plans the lookups of a DAO: chooses the route of every query, from the RootDSE probe when enabled, the
+ * attributes the adaptive strategy resolves by secondary searches, and the deref control carrying the others. The
+ * search request itself is built by the DAO, which subclasses may customise.
+ *
+ * Built once the DAO is set up and shared by every lookup; it keeps no per-call state.
+ */
+public class DereferenceQueryPlanner {
+
+    /**
+     * Builds the search request of a query.
+     */
+    @FunctionalInterface
+    public interface RequestBuilder {
+
+        /**
+         * @param filter         LDAP search filter
+         * @param route          how the dereference attributes will be resolved
+         * @param secondaryNames attributes resolved by secondary searches although the route sends the control
+         * @return search request
+         */
+        SearchRequest build(FilterTemplate filter, DereferenceRoute route, Set<String> secondaryNames);
+    }
+
+    private final DereferenceSpec spec;
+    private final String specKey;
+    private final DereferenceControl control;
+    private final boolean secondarySearch;
+    private final DereferenceSupportProbe supportProbe;
+    private final DereferenceStrategy strategy;
+    private final RequestBuilder requests;
+
+    /** Deref controls restricted to the attributes left to the control, encoded once per set of attributes. */
+    private final Map<Set<String>, Optional<DereferenceControl>> restrictedControls = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a new planner.
+     *
+     * @param spec            compiled dereference specification, null when nothing is dereferenced
+     * @param control         deref control of the whole specification, null when the control is not used
+     * @param secondarySearch whether secondary searches are set up
+     * @param supportProbe    probe of the servers' support of the control, may be null
+     * @param strategy        adaptive strategy, may be null
+     * @param requests        builds the search request of a query
+     */
+    public DereferenceQueryPlanner(final DereferenceSpec spec, final DereferenceControl control,
+                                   final boolean secondarySearch, final DereferenceSupportProbe supportProbe,
+                                   final DereferenceStrategy strategy, final RequestBuilder requests) {
+        this.spec = spec;
+        this.specKey = spec != null ? spec.toString() : null;
+        this.control = control;
+        this.secondarySearch = secondarySearch;
+        this.supportProbe = supportProbe;
+        this.strategy = strategy;
+        this.requests = requests;
+    }
+
+    /**
+     * Plans the query of a single lookup, letting the strategy explore. Called on cache misses only, as it chooses
+     * the route and the way of every attribute. Searches of many entries, batches and streams, take the route and
+     * the secondary names without exploring instead.
+     *
+     * @param filter    LDAP search filter
+     * @param formatted formatted search filter
+     * @param userName  user name the query is issued for
+     * @param timeout   deadline of the lookup, null for none
+     * @return query of the lookup
+     */
+    public DereferenceQuery plan(final FilterTemplate filter, final String formatted, final String userName,
+                                 final Duration timeout) {
+        final DereferenceRoute route = route();
+        final Set<String> secondaryNames = secondaryNames(route, true);
+        return new DereferenceQuery(formatted, userName, specKey, route,
+                requests.build(filter, route, secondaryNames), secondaryNames, timeout);
+    }
+
+    /**
+     * @param formatted formatted search filter
+     * @return key of the queries of the filter, see {@link DereferenceQuery#getKey()}
+     */
+    public String key(final String formatted) {
+        return DereferenceQuery.key(formatted, specKey);
+    }
+
+    /**
+     * @return dereference specification part of the query keys, null when nothing is dereferenced
+     */
+    public String getSpecKey() {
+        return specKey;
+    }
+
+    /**
+     * @return route for a new query, from the RootDSE probe when enabled, otherwise from the configuration
+     */
+    public DereferenceRoute route() {
+        if (control == null) {
+            return secondarySearch ? DereferenceRoute.SECONDARY : DereferenceRoute.DEREF;
+        }
+        return supportProbe != null ? supportProbe.getRoute() : DereferenceRoute.DEREF;
+    }
+
+    /**
+     * @param route   route of a new query
+     * @param explore whether the strategy may resolve an attribute the other way to measure it
+     * @return attributes the query resolves by secondary searches although its route sends the control
+     */
+    public Set<String> secondaryNames(final DereferenceRoute route, final boolean explore) {
+        if (strategy == null || route == DereferenceRoute.SECONDARY) {
+            return Collections.emptySet();
+        }
+        return explore ? strategy.select() : strategy.getSecondary();
+    }
+
+    /**
+     * @param secondaryNames attributes resolved by secondary searches
+     * @return deref control carrying the other attributes, pre-encoded once per set of attributes, or null if
+     * none is left
+     */
+    public DereferenceControl controlFor(final Set<String> secondaryNames) {
+        if (control == null || secondaryNames.isEmpty()) {
+            return control;
+        }
+        return restrictedControls.computeIfAbsent(secondaryNames, names -> {
+            final Set<String> sent = new LinkedHashSet<>(spec.getDereference().keySet());
+            sent.removeAll(names);
+            return sent.isEmpty() ? Optional.empty() : Optional.of(new DereferenceControl(spec.restrict(sent), false));
+        }).orElse(null);
+    }
+
+    @Override
+    public String toString() {
+        return new StringBuilder("[").append(getClass().getName()).append("@").append(hashCode())
+                .append("::spec=").append(specKey)
+                .append(", control=").append(control != null)
+                .append(", secondarySearch=").append(secondarySearch)
+                .append(", probe=").append(supportProbe != null)
+                .append(", adaptive=").append(strategy != null).append("]").toString();
+    }
+}
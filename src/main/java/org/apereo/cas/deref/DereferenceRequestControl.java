@@ -1,53 +1,60 @@
 package org.apereo.cas.deref;
 
 import lombok.extern.slf4j.Slf4j;
-import org.ldaptive.control.RequestControl;
 
 import javax.naming.NamingException;
 import javax.naming.directory.DirContext;
+import javax.naming.ldap.BasicControl;
 import javax.naming.ldap.Control;
 import javax.naming.ldap.LdapContext;
 
 import org.springframework.ldap.control.AbstractRequestControlDirContextProcessor;
 
 import java.util.HashMap;
+import java.util.Objects;
 
+/**
+ * Spring LDAP processor adding the dereference control to JNDI contexts. The control value is taken from a
+ * {@link DereferenceControl} built once at construction time.
+ */
 @Slf4j
-public class DereferenceRequestControl extends AbstractRequestControlDirContextProcessor implements RequestControl, Control {
+public class DereferenceRequestControl extends AbstractRequestControlDirContextProcessor {
 
     /** OID of this control. */
-    public static final String OID = "1.3.6.1.4.1.4203.666.5.16";
-    public boolean critical = false;
-    public HashMap<String,String> dereference;
+    public static final String OID = DereferenceControl.OID;
+    private final boolean critical;
+    private final DereferenceControl dereferenceControl;
 
     /** Default constructor*/
     public DereferenceRequestControl() {
-        super();
+        this(null, false);
     }
 
     /**
-     * Creates a new force update control.
+     * Creates a new dereference request control.
      *
+     * @param  hmap      map of derefAttrName to comma separated attrNames
      * @param  critical  whether this control is critical
      */
     public DereferenceRequestControl(HashMap<String,String> hmap, boolean critical) {
         super();
-        this.dereference = hmap;
         this.critical = critical;
+        this.dereferenceControl = hmap != null ? new DereferenceControl(hmap, critical) : null;
+    }
+
+    /**
+     * @return the ldaptive control holding the pre-encoded value, or null if no dereference attributes were set
+     */
+    public DereferenceControl getDereferenceControl() {
+        return dereferenceControl;
     }
 
     @Override
-    public Control createRequestControl() throws NullPointerException{
-        Control ctrl=null;
-        try {
-            if( dereference!=null ) {
-                ctrl = (Control) new DereferenceControl(dereference, critical);
-            }
-        }
-        catch( Exception ex) {
-            LOGGER.error("Exception raised while creating DerefControl",ex);
+    public Control createRequestControl() {
+        if (dereferenceControl == null) {
+            return null;
         }
-        return ctrl;
+        return new BasicControl(OID, critical, dereferenceControl.encode());
     }
 
     @Override
@@ -56,9 +63,14 @@ public class DereferenceRequestControl extends AbstractRequestControlDirContextP
         if (o == this) {
             return true;
         }
-        return o instanceof DereferenceControl && super.equals(o);
+        return o instanceof DereferenceRequestControl
+                && Objects.equals(dereferenceControl, ((DereferenceRequestControl) o).dereferenceControl);
     }
 
+    @Override
+    public int hashCode() {
+        return dereferenceControl != null ? dereferenceControl.hashCode() : 0;
+    }
 
     @Override
     public void postProcess(DirContext dirContext) throws NamingException { }
@@ -106,39 +118,4 @@ public class DereferenceRequestControl extends AbstractRequestControlDirContextP
 
         ldapContext.setRequestControls(newControls);
     }
-
-    @Override
-    public String getOID() {
-        return OID;
-    }
-
-    @Override
-    public boolean getCriticality() {
-        return critical;
-    }
-
-    @Override
-    public byte[] encode() {
-        return new byte[0];
-    }
-
-    @Override
-    public boolean hasValue() {
-        return false;
-    }
-
-    @Override
-    public String getID() {
-        return this.getID();
-    }
-
-    @Override
-    public boolean isCritical() {
-        return this.critical;
-    }
-
-    @Override
-    public byte[] getEncodedValue() {
-        return new byte[0];
-    }
 }
@@ -1,332 +1,678 @@
 package org.apereo.cas.deref;
 
-import com.sun.jndi.ldap.Ber;
-import com.sun.jndi.ldap.BerDecoder;
 import lombok.extern.slf4j.Slf4j;
-import org.apache.commons.lang.ObjectUtils;
-import org.ldaptive.LdapAttribute;
-import org.ldaptive.SearchResponse;
+import org.ldaptive.LdapUtils;
 import org.ldaptive.asn1.DERBuffer;
+import org.ldaptive.asn1.DERParser;
+import org.ldaptive.asn1.DERTag;
+import org.ldaptive.control.ControlFactory;
 import org.ldaptive.control.ResponseControl;
 
-import javax.naming.NamingException;
-import javax.naming.directory.Attribute;
-import javax.naming.ldap.Control;
-import javax.naming.ldap.HasControls;
-import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 
+/**
+ * Dereference response control for openLdap servers. The control value is walked in place when ldaptive hands it
+ * over, with the widest limits registered by the DAOs of the JVM, see {@link #register(DereferenceLimits)}, so what
+ * is left out past those limits is never copied and no JNDI ber classes are involved. The results read are then
+ * cut to the limits of the DAO reading the entry by {@link #decode(DereferenceLimits)}; until then the control
+ * exposes no values. Values are kept as the bytes received and only converted to strings when read, attributes
+ * the spec declares binary never are.
+ * See https://datatracker.ietf.org/doc/html/draft-masarati-ldap-deref-00
+ *
+ * <pre>
+ * DerefResponse ::= SEQUENCE OF DerefRes
+ * DerefRes ::= SEQUENCE {
+ *     derefAttr       AttributeDescription,
+ *     derefVal        LDAPDN,
+ *     attrVals        [0] PartialAttributeList OPTIONAL }
+ * PartialAttributeList ::= SEQUENCE OF partialAttribute PartialAttribute
+ * </pre>
+ *
+ * @author  Anna Kavvada
+ */
 @Slf4j
 public class DereferenceResponseControl implements ResponseControl {
 
     public static final String OID = "1.3.6.1.4.1.4203.666.5.16";
-    private static final int LBER_SEQUENCE = 48;
-    private static final int LBER_SET = 49;
-    private ArrayList<String> dereferenceAttributeName;
-    private ArrayList<String> dereferenceAttributeValue;
-    private SearchResponse entry;
-    private Control responseCtrl;
-    private byte[] berVal;
-    private Map<String,ArrayList<Object>> dereferenceAttrs;
 
-    private HashMap<String,String> dereferenceExtended =null;
+    private static final int HASH_CODE_SEED = 859;
+
+    /*
+     * Tag bytes used by the response. OpenLDAP (lber.h) encodes sequences and sets as
+     * constructed tags, 0x30 and 0x31, and the optional attribute list as context-specific
+     * constructed [0], 0xA0.
+     */
+    private static final int LBER_OCTETSTRING = 0x04;
+    private static final int LBER_SEQUENCE = 0x30;
+    private static final int LBER_SET = 0x31;
+    private static final int LBER_ATTR_LIST = 0xA0;
+
+    /** Limits registered by the DAOs, the control value is walked with the widest of them. */
+    private static final List<DereferenceLimits> REGISTERED_LIMITS = new ArrayList<>();
+
+    private static volatile DereferenceLimits receivedLimits = DereferenceLimits.UNLIMITED;
+
+    private final boolean critical;
+
+    /** Limits the control value is walked with when received. */
+    private DereferenceLimits walkLimits = DereferenceLimits.UNLIMITED;
+
+    /** Limits the values were decoded with, null until {@link #decode(DereferenceLimits)} ran. */
+    private DereferenceLimits limits;
+
+    /** Caps of the values kept, counted against {@link #limits}. */
+    private Budget budget;
+
+    /** Results read from the control value, until they are decoded with the limits of a DAO. */
+    private List<DerefRes> received;
+
+    /** Decoded values by derefAttrName and attrName, in the order they were received. */
+    private final Map<String, Map<String, DereferencedValues>> dereferenced = new LinkedHashMap<>();
+
+    private DereferenceSpec dereferenceSpec = null;
+
+    /** Number of values decoded. */
+    private int valueCount;
+
+    /** Time spent walking the control value and decoding its results. */
+    private long decodeTime;
+
+    /** Whether decoding stopped on malformed data. */
+    private boolean decodeFailed;
+
+    /** Dereference attributes whose values were cut by the limits. */
+    private final Set<String> truncated = new LinkedHashSet<>();
+
+    /** Views built by {@link #getDereferenceAttrs(DereferenceSpec)} without a spec and with the last spec given. */
+    private Map<String, List<Object>> plainAttrs;
+    private Map<String, List<Object>> specAttrs;
+    private DereferenceSpec specAttrsSpec;
+
+    /** Default constructor. */
+    public DereferenceResponseControl() {
+        this(false);
+    }
 
     /**
-     * Decodes the ber encoded returned data. The data format is:
-     * <pre>
-     * {{derefAttrName,derefAttrVal{{attr1{val1}}{attr2{val2}}...}}}
-     * </pre>
-     * @param sr the search operation result
-     * @throws NamingException
+     * Creates a new dereference response control.
+     *
+     * @param  critical  whether this control is critical
      */
-    public DereferenceResponseControl(SearchResponse sr)
-            throws NamingException
-    {
-        entry = sr;
-        responseCtrl = null;
-        //dereferenceExtended=extended_attrs;
+    public DereferenceResponseControl(final boolean critical) {
+        this.critical = critical;
+    }
 
-        if (entry.getControls() != null)
-        {
-            Control[] response_controls = ((HasControls)entry).getControls();
-            for (int i = 0; i < response_controls.length; i++)
-            {
-                if( OID.equalsIgnoreCase(response_controls[i].getID()))
-                    responseCtrl = response_controls[i];
-            }
-        }
+    /**
+     * Creates an empty control filled by the client, see {@link #addValue(String, String, byte[], String)}.
+     *
+     * @param limits caps on the values added
+     */
+    DereferenceResponseControl(final DereferenceLimits limits) {
+        this(false);
+        this.limits = limits != null ? limits : DereferenceLimits.UNLIMITED;
+        this.budget = new Budget(this.limits);
+    }
 
-        dereferenceAttrs = new HashMap<String,ArrayList<Object>>();
-        if( responseCtrl != null )
-        {
-            dereferenceAttributeName = new ArrayList();
-            dereferenceAttributeValue = new ArrayList();
+    /**
+     * Registers this control with ldaptive with no limits, so that the dereference response attached to each
+     * search result entry is decoded into an instance of this class.
+     */
+    public static void register() {
+        register(DereferenceLimits.UNLIMITED);
+    }
 
-            berVal = responseCtrl.getEncodedValue();
-            BerDecoder ber = new BerDecoder(berVal, 0, berVal.length); //:buffer,offset,bufSize
+    /**
+     * Registers this control with ldaptive, so that the dereference response attached to each search result entry
+     * is decoded into an instance of this class. ldaptive keeps one factory per control for the JVM, so the control
+     * value is walked with the widest limits registered, then cut to the limits of the DAO reading the entry.
+     *
+     * @param limits limits of the DAO reading the controls
+     */
+    public static synchronized void register(final DereferenceLimits limits) {
+        REGISTERED_LIMITS.add(limits);
+        receivedLimits = DereferenceLimits.widest(REGISTERED_LIMITS);
+        ControlFactory.registerResponseControl(OID, () -> {
+            final DereferenceResponseControl control = new DereferenceResponseControl();
+            control.walkLimits = receivedLimits;
+            return control;
+        });
+    }
 
-            if( LOGGER.isDebugEnabled() )
-            {
-                ByteArrayOutputStream outStream = new ByteArrayOutputStream();
-                Ber.dumpBER(outStream," ",berVal,0,berVal.length);
-                LOGGER.trace("Response ber encoded buffer contents:" + outStream.toString());
-            }
+    /**
+     * Withdraws limits registered by {@link #register(DereferenceLimits)}, e.g. when their DAO is destroyed.
+     *
+     * @param limits limits of the DAO
+     */
+    public static synchronized void unregister(final DereferenceLimits limits) {
+        REGISTERED_LIMITS.removeIf(l -> l == limits);
+        receivedLimits = DereferenceLimits.widest(REGISTERED_LIMITS);
+    }
 
-            parse_response(ber);
-        }
-        else
-        {
-            //respCtrl is null, set everything to null
-            berVal = null;
-        }
-        LOGGER.trace("Got dereference data: " + dereferenceAttrs.toString());
+    @Override
+    public String getOID() {
+        return OID;
+    }
+
+    @Override
+    public boolean getCriticality() {
+        return critical;
     }
 
     /**
-     * Gather and return the normal attributes contained within the response.
+     * Returns the dereferenced values keyed by <code>derefAttrName.attrName</code>. Values configured as extended
+     * in the spec set through {@link #setDereferenceSpec(DereferenceSpec)} are added under
+     * <code>derefAttrName.attrName.extended</code> with the form <code>derefVal;attrVal</code>. Values of
+     * attributes the spec declares binary are returned as <code>byte[]</code>, all others as strings. Empty until
+     * the control is decoded, see {@link #decode(DereferenceLimits)}.
+     *
      * @return map of (string,list(object)) containing (name,value) pairs
      */
-    public Map getAttrs()
-    {
-        Map<String,ArrayList<Object>> attrs = new HashMap<String,ArrayList<Object>>();
+    public Map<String, List<Object>> getDereferenceAttrs() {
+        return getDereferenceAttrs(dereferenceSpec);
+    }
 
-        try
-        {
-            for(Collection<LdapAttribute> e = entry.getEntry().getAttributes(); !e.isEmpty();  )
-            {
-                Attribute attr = (Attribute)e;
-                attrs.put(attr.getID(), Collections.list((Enumeration<Object>)attr.getAll()));
-                //the cast is kinda horrible, but it is needed
+    /**
+     * Same as {@link #getDereferenceAttrs()} but with the spec given by the caller, leaving the state of this
+     * control untouched. Output names are looked up in the spec; pairs the spec does not know are named by
+     * concatenation. The map is built once, for no spec and for the last spec given, and shared by the calls that
+     * follow until values are added, which is why it is unmodifiable.
+     *
+     * @param spec compiled dereference specification, may be null
+     * @return unmodifiable map of (string,list(object)) containing (name,value) pairs
+     */
+    public synchronized Map<String, List<Object>> getDereferenceAttrs(final DereferenceSpec spec) {
+        if (spec == null) {
+            if (plainAttrs == null) {
+                plainAttrs = buildDereferenceAttrs(null);
             }
+            return plainAttrs;
         }
-        catch(Exception ex)
-        {
-            attrs=null;
-            LOGGER.error("Error parsing naming enumeration results.",ex);
+        if (specAttrs == null || specAttrsSpec != spec) {
+            specAttrs = buildDereferenceAttrs(spec);
+            specAttrsSpec = spec;
         }
+        return specAttrs;
+    }
+
+    private Map<String, List<Object>> buildDereferenceAttrs(final DereferenceSpec spec) {
+        final Map<String, List<Object>> attrs = new LinkedHashMap<>();
+        for (Map<String, DereferencedValues> byAttr : dereferenced.values()) {
+            for (DereferencedValues v : byAttr.values()) {
+                String name = spec != null ? spec.getName(v.derefAttrName, v.attrName) : null;
+                if (name == null) {
+                    name = v.derefAttrName + "." + v.attrName;
+                }
+                final boolean binary = spec != null && spec.isBinary(v.derefAttrName, v.attrName);
+                final List<Object> values = new ArrayList<>(v.values.size());
+                for (Object value : v.values) {
+                    values.add(binary ? toBytes(value) : toText(value));
+                }
+                put(attrs, name, values);
 
-        return attrs;
+                final String extendedName = spec != null ? spec.getExtendedName(v.derefAttrName, v.attrName) : null;
+                if (extendedName != null) {
+                    final List<Object> extended = new ArrayList<>(values.size());
+                    for (int i = 0; i < values.size(); i++) {
+                        extended.add(v.sources.get(i) + ";" + values.get(i));
+                    }
+                    put(attrs, extendedName, extended);
+                }
+            }
+        }
+        attrs.replaceAll((name, values) -> Collections.unmodifiableList(values));
+        return Collections.unmodifiableMap(attrs);
     }
 
-    @Override
-    public int hashCode() {
-        return 0;
+    /**
+     * @return number of dereferenced values decoded, zero until the control is decoded
+     */
+    public synchronized int getValueCount() {
+        return valueCount;
     }
 
-    public ArrayList<String> getDereferenceAttributeName() {
-        return dereferenceAttributeName;
+    /**
+     * @return number of dereferenced values by attribute holding the dereferenced DNs, empty until the control is
+     * decoded
+     */
+    public synchronized Map<String, Integer> getValueCounts() {
+        final Map<String, Integer> counts = new LinkedHashMap<>();
+        for (Map.Entry<String, Map<String, DereferencedValues>> e : dereferenced.entrySet()) {
+            int count = 0;
+            for (DereferencedValues v : e.getValue().values()) {
+                count += v.values.size();
+            }
+            counts.put(e.getKey(), count);
+        }
+        return counts;
     }
 
-    public void setDereferenceAttributeName(ArrayList<String> dereferenceAttributeName) {
-        this.dereferenceAttributeName = dereferenceAttributeName;
+    /**
+     * @return nanoseconds spent decoding the control value
+     */
+    public synchronized long getDecodeTime() {
+        return decodeTime;
     }
 
-    public ArrayList<String> getDereferenceAttributeValue() {
-        return dereferenceAttributeValue;
+    /**
+     * @return whether the control value was malformed, in which case only the values before the error are kept
+     */
+    public synchronized boolean isDecodeFailed() {
+        return decodeFailed;
     }
 
-    public void setDereferenceAttributeValue(ArrayList<String> dereferenceAttributeValue) {
-        this.dereferenceAttributeValue = dereferenceAttributeValue;
+    /**
+     * @return whether values were left out because a limit was reached
+     */
+    public synchronized boolean isTruncated() {
+        return !truncated.isEmpty();
     }
 
-    public SearchResponse getEntry() {
-        return entry;
+    /**
+     * @return dereference attributes whose values were cut by the limits, including every attribute left undecoded
+     * once the byte cap was reached
+     */
+    public synchronized Set<String> getTruncatedAttributes() {
+        return Collections.unmodifiableSet(new LinkedHashSet<>(truncated));
     }
 
-    public void setEntry(SearchResponse entry) {
-        this.entry = entry;
+    /**
+     * @return limits the values were decoded with, null until the control is decoded
+     */
+    public synchronized DereferenceLimits getLimits() {
+        return limits;
     }
 
-    public Control getResponseCtrl() {
-        return responseCtrl;
+    /**
+     * @return whether the values were decoded with the limits of a DAO, or added by the client
+     */
+    public synchronized boolean isDecoded() {
+        return limits != null;
     }
 
-    public void setResponseCtrl(Control responseCtrl) {
-        this.responseCtrl = responseCtrl;
+    public DereferenceSpec getDereferenceSpec() {
+        return dereferenceSpec;
     }
 
-    public byte[] getBerVal() {
-        return berVal;
+    public void setDereferenceSpec(DereferenceSpec dereferenceSpec) {
+        this.dereferenceSpec = dereferenceSpec;
     }
 
-    public void setBerVal(byte[] berVal) {
-        this.berVal = berVal;
+    /**
+     * Walks the ber encoded returned data in place, with the widest limits registered; lengths are read through
+     * {@link DERParser#readLength(DERBuffer)} so long form (multi-byte) lengths are supported at every level.
+     * The data format is:
+     * <pre>
+     * {{derefAttrName,derefAttrVal[0]{{attr1{val1}}{attr2{val2}}...}}}
+     * </pre>
+     * Results of an attribute past its maximum number of values are stepped over. Once the byte cap is reached,
+     * only the names of the remaining results are read, to flag their attributes as truncated; neither copies the
+     * values left out. The values read are exposed once decoded with the limits of a DAO, see
+     * {@link #decode(DereferenceLimits)}.
+     *
+     * @param encoded control value
+     */
+    @Override
+    public synchronized void decode(final DERBuffer encoded) {
+        final long start = System.nanoTime();
+        final Budget walk = new Budget(walkLimits);
+        final List<DerefRes> results = new ArrayList<>();
+        final DERParser parser = new DERParser();
+        boolean capped = false;
+        try {
+            final int responseEnd = enter(parser, encoded, LBER_SEQUENCE);
+            while (encoded.position() < responseEnd) {
+                final int derefResEnd = enter(parser, encoded, LBER_SEQUENCE);
+                final String curDerefAttrName = readString(parser, encoded);
+                if (capped || !walk.countDn(curDerefAttrName)) {
+                    truncate(curDerefAttrName);
+                    encoded.position(derefResEnd);
+                    continue;
+                }
+                final byte[] derefVal = readCharged(parser, encoded, walk);
+                if (derefVal == null) {
+                    capped = true;
+                    truncate(curDerefAttrName);
+                    encoded.position(derefResEnd);
+                    continue;
+                }
+                final DerefRes res = new DerefRes(curDerefAttrName, derefVal);
+                results.add(res);
+                LOGGER.trace("derefAttribute: {}={}", curDerefAttrName, res.dn);
+
+                if (encoded.position() == derefResEnd) {
+                    LOGGER.trace("No results found for {}={}", curDerefAttrName, res.dn);
+                    continue;
+                }
+
+                final int attrListEnd = enter(parser, encoded, LBER_ATTR_LIST);
+                attrList:
+                while (encoded.position() < attrListEnd) {
+                    final int partialAttrEnd = enter(parser, encoded, LBER_SEQUENCE);
+                    final String attrName = readString(parser, encoded);
+                    final int valsEnd = enter(parser, encoded, LBER_SET);
+                    while (encoded.position() < valsEnd) {
+                        final byte[] value = readCharged(parser, encoded, walk);
+                        if (value == null) {
+                            capped = true;
+                            truncate(curDerefAttrName);
+                            break attrList;
+                        }
+                        res.add(attrName, value);
+                    }
+                    encoded.position(partialAttrEnd);
+                }
+                encoded.position(derefResEnd);
+            }
+        } catch (RuntimeException ex) {
+            decodeFailed = true;
+            LOGGER.error("Ber decoding error occured at position: {}", encoded.position(), ex);
+        }
+        received = results;
+        decodeTime = System.nanoTime() - start;
     }
 
-    public Map<String, ArrayList<Object>> getDereferenceAttrs() {
-        return dereferenceAttrs;
+    /**
+     * Decodes the results read from the control value with the given limits, once; later calls and controls filled
+     * by the client are left as they are. The limits of a DAO are never wider than the ones the value was walked
+     * with, so this only leaves out more results, without copying any value.
+     *
+     * @param limits caps on the values kept
+     */
+    public synchronized void decode(final DereferenceLimits limits) {
+        if (this.limits != null) {
+            return;
+        }
+        final long start = System.nanoTime();
+        this.limits = limits != null ? limits : DereferenceLimits.UNLIMITED;
+        this.budget = new Budget(this.limits);
+        if (received != null) {
+            boolean capped = false;
+            for (DerefRes res : received) {
+                if (capped || !budget.countDn(res.derefAttrName)) {
+                    truncate(res.derefAttrName);
+                    continue;
+                }
+                if (!budget.charge(res.dnBytes)) {
+                    capped = true;
+                    truncate(res.derefAttrName);
+                    continue;
+                }
+                for (int i = 0; i < res.values.size(); i++) {
+                    final byte[] value = res.values.get(i);
+                    if (!budget.charge(value.length)) {
+                        capped = true;
+                        truncate(res.derefAttrName);
+                        break;
+                    }
+                    valuesOf(res.derefAttrName, res.attrNames.get(i)).add(value, res.dn);
+                    valueCount++;
+                }
+            }
+            received = null;
+        }
+        plainAttrs = null;
+        specAttrs = null;
+        decodeTime += System.nanoTime() - start;
+        LOGGER.trace("Got dereference data: {}", dereferenced);
     }
 
-    public void setDereferenceAttrs(Map<String, ArrayList<Object>> dereferenceAttrs) {
-        this.dereferenceAttrs = dereferenceAttrs;
+    /**
+     * Equal to the controls holding the same values once both are decoded; a control not decoded yet is only
+     * equal to itself, its values are not looked at.
+     */
+    @Override
+    public boolean equals(final Object o) {
+        if (o == this) {
+            return true;
+        }
+        if (o instanceof DereferenceResponseControl) {
+            final DereferenceResponseControl v = (DereferenceResponseControl) o;
+            return critical == v.critical && isDecoded() && v.isDecoded()
+                    && getDereferenceAttrs(null).equals(v.getDereferenceAttrs(null));
+        }
+        return false;
     }
 
-    public HashMap<String, String> getDereferenceExtended() {
-        return dereferenceExtended;
+    @Override
+    public int hashCode() {
+        return isDecoded()
+                ? LdapUtils.computeHashCode(HASH_CODE_SEED, getOID(), critical, getDereferenceAttrs(null))
+                : LdapUtils.computeHashCode(HASH_CODE_SEED, getOID(), critical);
     }
 
-    public void setDereferenceExtended(HashMap<String, String> dereferenceExtended) {
-        this.dereferenceExtended = dereferenceExtended;
+    @Override
+    public synchronized String toString() {
+        final StringBuilder sb = new StringBuilder("[").append(getClass().getName()).append("@").append(hashCode())
+                .append("::criticality=").append(critical);
+        if (isDecoded()) {
+            sb.append(", dereferenceAttrs=").append(getDereferenceAttrs(null));
+        } else {
+            sb.append(", results=").append(received != null ? received.size() : 0).append(" not decoded");
+        }
+        return sb.append("]").toString();
     }
 
 
-    @Override
-    public void decode(DERBuffer encoded) {
+    /*
+     * Private Utility Methods
+     */
+
+    /*
+     * Consumes the tag and length of the next element, which must be tagged with tagByte.
+     * @return position of the first byte after the element
+     */
+    private static int enter(final DERParser parser, final DERBuffer encoded, final int tagByte)
+    {
+        final DERTag tag = parser.readTag(encoded);
+        if (tag == null || tag.getTagByte() != tagByte) {
+            throw new IllegalArgumentException("Expected tag " + Integer.toHexString(tagByte)
+                    + ", found " + (tag != null ? Integer.toHexString(tag.getTagByte()) : "none"));
+        }
+        final int length = parser.readLength(encoded);
+        return encoded.position() + length;
+    }
 
+    /*
+     * Reads the next octet string as is if it fits in the byte cap, otherwise returns null without copying it.
+     * The buffer is left positioned right after it.
+     */
+    private static byte[] readCharged(final DERParser parser, final DERBuffer encoded, final Budget budget)
+    {
+        final int end = enter(parser, encoded, LBER_OCTETSTRING);
+        final int length = end - encoded.position();
+        if (!budget.charge(length)) {
+            encoded.position(end);
+            return null;
+        }
+        final byte[] value = new byte[length];
+        encoded.get(value);
+        return value;
     }
 
+    /**
+     * Flags values of the given dereference attribute as left out, e.g. by secondary searches skipping DNs past
+     * the per attribute cap.
+     *
+     * @param derefAttrName attribute holding the dereferenced DNs
+     */
+    synchronized void truncate(final String derefAttrName) {
+        if (truncated.add(derefAttrName)) {
+            LOGGER.debug("Values dereferenced through [{}] are truncated by {}", derefAttrName,
+                    limits != null ? limits : walkLimits);
+        }
+    }
 
     /*
-     * Private Utility Methods
+     * Reads the next octet string as utf8, leaving the buffer positioned right after it.
+     */
+    private static String readString(final DERParser parser, final DERBuffer encoded)
+    {
+        return new String(readBytes(parser, encoded), StandardCharsets.UTF_8);
+    }
+
+    /*
+     * Reads the next octet string as is, leaving the buffer positioned right after it.
      */
+    private static byte[] readBytes(final DERParser parser, final DERBuffer encoded)
+    {
+        final int end = enter(parser, encoded, LBER_OCTETSTRING);
+        final byte[] value = new byte[end - encoded.position()];
+        encoded.get(value);
+        return value;
+    }
 
     /*
-     * Returns true if the derefedAttrName is set for derefAttrName in extended
-     * @param extended syntax: derefAttrName:derefedAttrName1,derefedAttrName2;...
-     * @param derefAttrName see extended syntax 1 line above
-     * @param derefedAttrName see extended syntax 2 lines above
-     * @return boolean
+     * Values are held as received, bytes when decoded and strings or bytes when added by a secondary search.
      */
-    private Boolean is_extended(HashMap<String,String> extended, String derefAttrName, String derefedAttrName)
+    private static String toText(final Object value)
     {
-        if(extended == null)
-            return false;
+        return value instanceof byte[] ? new String((byte[]) value, StandardCharsets.UTF_8) : value.toString();
+    }
 
-        for( Map.Entry<String,String> e : extended.entrySet() )
-        {
-            if( derefAttrName.equalsIgnoreCase(e.getKey()) )
-            {
-                String[] tmpAttrs = e.getValue().split(",");
-                for( int j=0 ; j< tmpAttrs.length ; j++)
-                {
-                    if( derefedAttrName.equalsIgnoreCase(tmpAttrs[j]) )
-                    {
-                        return true;
-                    }
-                }
-            }
+    private static byte[] toBytes(final Object value)
+    {
+        return value instanceof byte[] ? (byte[]) value : value.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Adds a dereferenced value obtained without the server side control, e.g. by a secondary search. Values
+     * past the byte cap are dropped and flagged.
+     *
+     * @param derefAttrName attribute holding the dereferenced DN
+     * @param attrName      attribute of the dereferenced entry
+     * @param value         attribute value as received, charged by its length against the byte cap
+     * @param source        DN of the dereferenced entry
+     */
+    synchronized void addValue(final String derefAttrName, final String attrName, final byte[] value,
+                               final String source) {
+        if (budget == null) {
+            throw new IllegalStateException("Values can only be added to a control created by the client");
         }
-        return false;
+        if (!budget.charge(value.length)) {
+            truncate(derefAttrName);
+            return;
+        }
+        valuesOf(derefAttrName, attrName).add(value, source);
+        plainAttrs = null;
+        specAttrs = null;
+        valueCount++;
     }
 
     /*
-     * Adds an attribute value to the dereference attribute list.
-     * @param name the attribute name
-     * @param value the attribute value
-     * @param extended use extended notation as well as normal, or not.
-     * @return void
+     * Returns the value list of an attribute of the dereferenced entries, creating it on first use.
+     * @param derefAttrName the attribute holding the dereferenced DN
+     * @param attrName the attribute name
      */
-    private void add_deref_value(String name, String value, boolean extended)
+    private DereferencedValues valuesOf(String derefAttrName, String attrName)
     {
-        ArrayList<Object> attrList = dereferenceAttrs.get(name);
-        if( attrList == null )
-            attrList = new ArrayList<Object>();
+        return dereferenced
+                .computeIfAbsent(derefAttrName, k -> new LinkedHashMap<>())
+                .computeIfAbsent(attrName, k -> new DereferencedValues(derefAttrName, attrName));
+    }
 
-        attrList.add(value);
-        dereferenceAttrs.put(name, attrList);
+    /*
+     * Adds values under name, appending when two pairs map to the same name, e.g. differing only in case.
+     */
+    private static void put(Map<String, List<Object>> attrs, String name, List<Object> values)
+    {
+        final List<Object> existing = attrs.putIfAbsent(name, values);
+        if (existing != null) {
+            final List<Object> combined = new ArrayList<>(existing);
+            combined.addAll(values);
+            attrs.put(name, combined);
+        }
     }
 
     /*
-     * Parse the dereference ber response sent from the ldap server.
-     * @param b ber buffer object, initialized from the ldap ber response
-     * @return void
+     * Number of DNs per dereference attribute and of value bytes kept, counted against limits.
      */
-    private void parse_response(BerDecoder b)
+    private static final class Budget
     {
-        /*
-         * The package com.sun.jndi.ldap.Ber, follows the ASN.1 standard for
-         * identifier octets, available here:
-         * http://en.wikipedia.org/wiki/Basic_Encoding_Rules#Identifier_octets
-         *
-         * OpenLDAP is using the following tags though (taken from lber.h):
-         * #define LBER_BOOLEAN		((ber_tag_t) 0x01UL)
-         * #define LBER_INTEGER		((ber_tag_t) 0x02UL)
-         * #define LBER_BITSTRING       ((ber_tag_t) 0x03UL)
-         * #define LBER_OCTETSTRING	((ber_tag_t) 0x04UL)
-         * #define LBER_NULL		((ber_tag_t) 0x05UL)
-         * #define LBER_ENUMERATED	((ber_tag_t) 0x0aUL)
-         * #define LBER_SEQUENCE	((ber_tag_t) 0x30UL)	// constructed
-         * #define LBER_SET		((ber_tag_t) 0x31UL)	// constructed
-         *
-         * The actual difference lies with the sequence and set tags, which
-         * are 16, 17 for the standard and 48, 49 for openldap respectively.
-         * (in decimal representetaion)
-         */
+        private final DereferenceLimits limits;
+        private final Map<String, Integer> dnCounts = new HashMap<>();
+        private long bytes;
 
-        int[] seqlen = new int[1];
-        int attrList_length, attrList_startingPosition;
-        String curDerefAttrName, curDerefAttrVal, attrName, attrVal;
+        private Budget(final DereferenceLimits limits)
+        {
+            this.limits = limits;
+        }
 
-        try
+        /*
+         * Counts a DN dereferenced through derefAttrName against the per attribute cap.
+         * @return whether the DN may be dereferenced
+         */
+        private boolean countDn(final String derefAttrName)
         {
-            b.parseSeq(seqlen);
-            LOGGER.trace("1:\tsequence of length: " + Arrays.toString(seqlen));
-            while( b.bytesLeft() > 0)
-            {
-                b.parseSeq(seqlen);
-                LOGGER.trace("2:\t\tsequence of length: " + Arrays.toString(seqlen));
-                curDerefAttrName = b.parseString(true); //true: decode utf8
-                curDerefAttrVal = b.parseString(true);
-                LOGGER.trace("2:\t\tderefAttribute: " + curDerefAttrName + "=" + curDerefAttrVal);
-
-                /*
-                check and possibly consume tag number for optional,
-                context-specific primitive 0 ([0], check also the relevant draft)
-                */
-                if( b.peekByte() != 160)
-                {
-                    LOGGER.trace("2:\t\tNo results found for previous argument.");
-                    continue;
-                }
-                b.parseByte(); //0xA0U
-                attrList_length = b.parseByte(); //length of the optional following attributeList
-
-                attrList_startingPosition = b.getParsePosition();
-                while( b.getParsePosition() < attrList_startingPosition + attrList_length )
-                {
-                    b.parseSeq(seqlen);
-                    LOGGER.trace("3:\t\t\tsequence of length: " + Arrays.toString(seqlen));
-
-                    attrName = b.parseString(true);
-                    LOGGER.trace("3:\t\t\tattrName: " + attrName);
-
-                    b.parseSeq(seqlen);
-                    LOGGER.trace("3:\t\t\tset of length: " + Arrays.toString(seqlen));
-
-                    while( b.peekByte() == Ber.ASN_SIMPLE_STRING )
-                    {
-                        attrVal = b.parseString(true);
-                        LOGGER.trace("3:\t\t\tattrVal: " + attrVal);
-
-                        add_deref_value(curDerefAttrName+"."+attrName, attrVal, false);
-                        if( is_extended(dereferenceExtended, curDerefAttrName, attrName) )
-                        {
-                            add_deref_value(curDerefAttrName+"."+attrName+".extended",
-                                    curDerefAttrVal+";"+attrVal,true);
-                        }
+            final int count = dnCounts.merge(derefAttrName, 1, Integer::sum);
+            return limits.getMaxValuesPerAttribute() <= 0 || count <= limits.getMaxValuesPerAttribute();
+        }
 
-                        if( b.bytesLeft() == 0 )
-                            break;
-                    }
-                }
+        /*
+         * Counts bytes against the byte cap.
+         * @return whether they fit
+         */
+        private boolean charge(final long length)
+        {
+            if (limits.getMaxDecodedBytes() > 0 && bytes + length > limits.getMaxDecodedBytes()) {
+                return false;
             }
+            bytes += length;
+            return true;
         }
-        catch( Exception ex)
+    }
+
+    /*
+     * One DerefRes read from the control value: the dereferenced DN and the values of its attributes, in order.
+     */
+    private static final class DerefRes
+    {
+        private final String derefAttrName;
+        private final String dn;
+        private final int dnBytes;
+        private final List<String> attrNames = new ArrayList<>();
+        private final List<byte[]> values = new ArrayList<>();
+
+        private DerefRes(final String derefAttrName, final byte[] dn)
         {
-            LOGGER.error("(test) Ber decoding error occured at position: "
-                    +b.getParsePosition()+" .",ex);
+            this.derefAttrName = derefAttrName;
+            this.dn = new String(dn, StandardCharsets.UTF_8);
+            this.dnBytes = dn.length;
+        }
+
+        private void add(final String attrName, final byte[] value)
+        {
+            attrNames.add(attrName);
+            values.add(value);
         }
     }
 
+    /*
+     * Values of one attribute of the dereferenced entries, with the DN each value came from.
+     */
+    private static final class DereferencedValues
+    {
+        private final String derefAttrName;
+        private final String attrName;
+        private final List<Object> values = new ArrayList<>();
+        private final List<String> sources = new ArrayList<>();
 
-    @Override
-    public String getOID() {
-        return null;
-    }
+        private DereferencedValues(String derefAttrName, String attrName)
+        {
+            this.derefAttrName = derefAttrName;
+            this.attrName = attrName;
+        }
 
-    @Override
-    public boolean getCriticality() {
-        return false;
-    }
+        private void add(Object value, String source)
+        {
+            values.add(value);
+            sources.add(source);
+        }
 
+        @Override
+        public String toString()
+        {
+            return attrName + "=" + values.size() + " values";
+        }
+    }
 }
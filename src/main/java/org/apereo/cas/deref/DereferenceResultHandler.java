@@ -5,14 +5,14 @@ import org.ldaptive.LdapAttribute;
 import org.ldaptive.LdapEntry;
 import org.ldaptive.LdapUtils;
 import org.ldaptive.SearchResponse;
+import org.ldaptive.control.ResponseControl;
 import org.ldaptive.handler.AbstractEntryHandler;
 import org.ldaptive.handler.SearchResultHandler;
 
-import javax.naming.ldap.HasControls;
 import java.util.ArrayList;
-import java.util.HashMap;
-
-import static org.ldaptive.SearchResponse.builder;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 
 
 /**
@@ -25,73 +25,147 @@ import static org.ldaptive.SearchResponse.builder;
 @Slf4j
 public class DereferenceResultHandler extends AbstractEntryHandler<SearchResponse> implements SearchResultHandler {
 
-    private HashMap<String, ArrayList<Object>> attrs;
-    private HashMap<String,ArrayList<Object>> derefAttrs;
+    private static final int HASH_CODE_SEED = 857;
+
+    /** Read only after construction; the handler keeps no per-search state and may be shared across threads. */
+    private final DereferenceSpec dereferenceSpec;
+
+    private final DereferenceLimits limits;
 
-    public HashMap<String,ArrayList<Object>> getAttrs() {
-        return attrs;
+    public DereferenceResultHandler() {
+        this(null);
     }
 
-    public HashMap<String,ArrayList<Object>> getDerefAttrs() {
-        return derefAttrs;
+    /**
+     * @param dereferenceSpec compiled dereference specification naming the values, may be null
+     */
+    public DereferenceResultHandler(final DereferenceSpec dereferenceSpec) {
+        this(dereferenceSpec, DereferenceLimits.UNLIMITED);
     }
 
-    private static final int HASH_CODE_SEED = 857;
+    /**
+     * @param dereferenceSpec compiled dereference specification naming the values, may be null
+     * @param limits          caps on the values decoded from the controls
+     */
+    public DereferenceResultHandler(final DereferenceSpec dereferenceSpec, final DereferenceLimits limits) {
+        this.dereferenceSpec = dereferenceSpec;
+        this.limits = limits != null ? limits : DereferenceLimits.UNLIMITED;
+    }
+
+    public DereferenceLimits getLimits() {
+        return limits;
+    }
+
+    /**
+     * Decodes the values carried by the control with the limits of this handler, unless already decoded.
+     *
+     * @param respCtrl dereference control of an entry
+     */
+    public void decode(final DereferenceResponseControl respCtrl) {
+        respCtrl.decode(limits);
+    }
 
 
 
     private SearchResponse dereference(SearchResponse result){
-        LdapEntry mergedEntry = null;
-        if (result != null) {
-            for (LdapEntry entry : result.getEntries()) {
-                if (mergedEntry == null) {
-                    mergedEntry = entry;
+        if (result == null) {
+            return new SearchResponse();
+        }
+        final DereferenceEntryAccumulator accumulator =
+                new DereferenceEntryAccumulator(this, DereferenceMetrics.NOOP, DereferenceRoute.DEREF, true);
+        for (LdapEntry entry : result.getEntries()) {
+            accumulator.apply(entry);
+        }
+        return accumulator.toResponse(result);
+    }
+
+    private SearchResponse dereferenceResponse (SearchResponse searchResponse){
+        if (searchResponse != null && !searchResponse.getEntries().isEmpty()
+                && searchResponse.getEntries().stream()
+                        .noneMatch(e -> e.getControl(DereferenceResponseControl.OID) != null)) {
+            LOGGER.warn("No dereference control was found in the response."
+                    + "Will try to return the normal -not dereferenced- user attributes");
+        }
+        return dereference(searchResponse);
+    }
+
+    /**
+     * Merges the attributes of an entry into another entry.
+     *
+     * @param mergedEntry entry receiving the attributes
+     * @param entry       entry whose attributes are merged
+     */
+    static void merge(final LdapEntry mergedEntry, final LdapEntry entry) {
+        for (LdapAttribute la : entry.getAttributes()) {
+            final LdapAttribute oldAttr = mergedEntry.getAttribute(la.getName());
+            if (oldAttr == null) {
+                mergedEntry.addAttributes(la);
+            } else {
+                if (oldAttr.isBinary()) {
+                    oldAttr.addBinaryValues(la.getBinaryValues());
                 } else {
-                    for (LdapAttribute la : entry.getAttributes()) {
-                        final LdapAttribute oldAttr = mergedEntry.getAttribute(la.getName());
-                        if (oldAttr == null) {
-                            mergedEntry.addAttributes(la);
-                        } else {
-                            if (oldAttr.isBinary()) {
-                                oldAttr.addBinaryValues(la.getBinaryValues());
-                            } else {
-                                oldAttr.addStringValues(la.getStringValues());
-                            }
-                        }
-                    }
+                    oldAttr.addStringValues(la.getStringValues());
                 }
             }
         }
-        return mergedEntry != null ?
-                builder()
-                        .entry(
-                                LdapEntry.builder().dn(mergedEntry.getDn()).attributes(mergedEntry.getAttributes()).build())
-                        .build() :
-                new SearchResponse();
     }
 
-    private SearchResponse dereferenceResponse (SearchResponse searchResponse){
-        derefAttrs = new HashMap<String,ArrayList<Object>>();
-        if( searchResponse instanceof DereferenceResponse) {
-            DereferenceResponseControl respCtrl = null;
-            try {
-                respCtrl = new DereferenceResponseControl(searchResponse);
-            }
-            catch( Exception e) {
-                LOGGER.error("Error creating dereference response control!"
-                        + "Will try to return normal attributes at least.",e);
+    /**
+     * Adds the values carried by the dereference control of a single entry to that entry.
+     *
+     * @param entry search result entry
+     * @return whether the entry carried a dereference control
+     */
+    public boolean dereferenceEntry(final LdapEntry entry) {
+        final ResponseControl ctrl = entry.getControl(DereferenceResponseControl.OID);
+        if (!(ctrl instanceof DereferenceResponseControl)) {
+            return false;
+        }
+        dereferenceEntry(entry, (DereferenceResponseControl) ctrl);
+        return true;
+    }
 
-                return dereference(searchResponse);
+    /**
+     * Adds the values carried by the given control to the entry. Used for values resolved without the server side
+     * control, see {@link DereferenceSecondarySearch}. Dereference attributes whose values were truncated by the
+     * {@link DereferenceLimits} are listed in {@link DereferenceLimits#TRUNCATED_ATTRIBUTE}.
+     *
+     * @param entry   search result entry
+     * @param respCtrl dereferenced values of the entry
+     */
+    public void dereferenceEntry(final LdapEntry entry, final DereferenceResponseControl respCtrl) {
+        decode(respCtrl);
+        for (Map.Entry<String, List<Object>> e : respCtrl.getDereferenceAttrs(dereferenceSpec).entrySet()) {
+            if (!e.getValue().isEmpty() && e.getValue().get(0) instanceof byte[]) {
+                //binary values are added as is, never through a string
+                entry.addAttributes(new LdapAttribute(e.getKey(), e.getValue().toArray(new byte[0][])));
+                continue;
+            }
+            final List<String> values = new ArrayList<>(e.getValue().size());
+            for (Object value : e.getValue()) {
+                values.add(value.toString());
             }
+            entry.addAttributes(new LdapAttribute(e.getKey(), values.toArray(new String[0])));
+        }
+        if (respCtrl.isTruncated()) {
+            flag(entry, DereferenceLimits.TRUNCATED_ATTRIBUTE, respCtrl.getTruncatedAttributes());
+        }
+    }
 
-            derefAttrs = (HashMap<String,ArrayList<Object>>) respCtrl.getDereferenceAttrs();
-            attrs=(HashMap<String,ArrayList<Object>>)respCtrl.getAttrs();
+    /**
+     * Adds values to an attribute of the entry, creating it when missing.
+     *
+     * @param entry  entry receiving the values
+     * @param name   attribute name
+     * @param values values to add
+     */
+    static void flag(final LdapEntry entry, final String name, final Collection<String> values) {
+        final LdapAttribute existing = entry.getAttribute(name);
+        if (existing == null) {
+            entry.addAttributes(new LdapAttribute(name, values.toArray(new String[0])));
         } else {
-            LOGGER.warn("No dereference control was found in the response."
-                    + "Will try to return the normal -not dereferenced- user attributes");
-            return dereference(searchResponse);
+            existing.addStringValues(values);
         }
-        return dereference(searchResponse);
     }
 
     @Override
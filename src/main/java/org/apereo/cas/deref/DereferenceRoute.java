@@ -0,0 +1,16 @@
+package org.apereo.cas.deref;
+
+/**
+ * How the dereference attributes of a query are resolved.
+ */
+public enum DereferenceRoute {
+
+    /** Send the deref control, every server supports it. */
+    DEREF,
+
+    /** Send the deref control and resolve entries returned without a deref response by secondary searches. */
+    DEREF_WITH_FALLBACK,
+
+    /** Do not send the deref control, resolve everything by secondary searches. */
+    SECONDARY
+}
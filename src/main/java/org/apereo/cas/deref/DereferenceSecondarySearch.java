@@ -0,0 +1,230 @@
+package org.apereo.cas.deref;
+
+import lombok.extern.slf4j.Slf4j;
+import org.ldaptive.ConnectionFactory;
+import org.ldaptive.FilterTemplate;
+import org.ldaptive.LdapAttribute;
+import org.ldaptive.LdapEntry;
+import org.ldaptive.SearchOperation;
+import org.ldaptive.SearchRequest;
+import org.ldaptive.SearchResponse;
+import org.ldaptive.SearchScope;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.function.BiConsumer;
+
+/**
+ * Client side replacement of the dereference control for directories without the OpenLDAP deref overlay. The DN
+ * values of every configured dereference attribute are resolved with base object searches returning only the
+ * configured target attributes, and the results are reported through a {@link DereferenceResponseControl} so the
+ * output is the same <code>attr.subattr</code> / <code>.extended</code> layout the server side control produces.
+ *
+ * The searches of one entry run concurrently on the configured executor, at most <code>maxFanOut</code> at a time.
+ * Passing an executor such as <code>Executors.newVirtualThreadPerTaskExecutor()</code> runs them on virtual threads.
+ * The searches never wait on other tasks, but {@link #dereference(Collection)} waits for them, so it must not be
+ * called from a thread of that executor when it is bounded. Values are reported in the order of the DNs, not in
+ * the order the searches complete.
+ */
+@Slf4j
+public class DereferenceSecondarySearch {
+
+    private final ConnectionFactory connectionFactory;
+    private final Map<String, String[]> dereference;
+    private final String[] binaryAttributes;
+    private final Executor executor;
+    private final int maxFanOut;
+    private final DereferenceLimits limits;
+
+    /**
+     * Creates a new secondary search.
+     *
+     * @param connectionFactory connection factory used for the base object searches
+     * @param dereference       compiled dereference specification
+     * @param executor          executor running the base object searches
+     * @param maxFanOut         maximum number of concurrent base object searches per lookup
+     */
+    public DereferenceSecondarySearch(final ConnectionFactory connectionFactory, final DereferenceSpec dereference,
+                                      final Executor executor, final int maxFanOut) {
+        this(connectionFactory, dereference, executor, maxFanOut, DereferenceLimits.UNLIMITED);
+    }
+
+    /**
+     * Creates a new secondary search.
+     *
+     * @param connectionFactory connection factory used for the base object searches
+     * @param dereference       compiled dereference specification
+     * @param executor          executor running the base object searches
+     * @param maxFanOut         maximum number of concurrent base object searches per lookup
+     * @param limits            caps on the values kept per entry
+     */
+    public DereferenceSecondarySearch(final ConnectionFactory connectionFactory, final DereferenceSpec dereference,
+                                      final Executor executor, final int maxFanOut,
+                                      final DereferenceLimits limits) {
+        if (maxFanOut <= 0) {
+            throw new IllegalArgumentException("maxFanOut must be greater than zero");
+        }
+        this.connectionFactory = connectionFactory;
+        //the attrNames as arrays once, every search returns them
+        this.dereference = new LinkedHashMap<>();
+        dereference.getDereference().forEach((k, v) -> this.dereference.put(k, v.toArray(new String[0])));
+        this.binaryAttributes = dereference.getBinaryAttributes();
+        this.executor = executor;
+        this.maxFanOut = maxFanOut;
+        this.limits = limits != null ? limits : DereferenceLimits.UNLIMITED;
+    }
+
+    /**
+     * @return names of the attributes holding the DNs to dereference, these must be returned by the primary search
+     */
+    public Collection<String> getDereferenceAttributeNames() {
+        return dereference.keySet();
+    }
+
+    /**
+     * Resolves the DN values of the configured dereference attributes of the given entries. Blocks until every
+     * base object search completed.
+     *
+     * @param entries primary search result entries
+     * @return dereferenced values of each entry, in the order of the entries
+     */
+    public List<DereferenceResponseControl> dereference(final Collection<LdapEntry> entries) {
+        return dereference(entries, null, null);
+    }
+
+    /**
+     * Resolves the DN values of some of the configured dereference attributes of the given entries. Blocks until
+     * every base object search completed.
+     *
+     * @param entries        primary search result entries
+     * @param derefAttrNames attributes to dereference, null for all configured attributes
+     * @param times          receives, for every attribute dereferenced, the nanoseconds until its last base object
+     *                       search completed, may be null
+     * @return dereferenced values of each entry, in the order of the entries
+     */
+    public List<DereferenceResponseControl> dereference(final Collection<LdapEntry> entries,
+                                                        final Collection<String> derefAttrNames,
+                                                        final BiConsumer<String, Long> times) {
+        final Semaphore permits = new Semaphore(maxFanOut);
+        final List<DereferenceResponseControl> controls = new ArrayList<>(entries.size());
+        final List<Lookup> searches = new ArrayList<>();
+        final Map<String, Long> completed = new ConcurrentHashMap<>();
+        final long start = System.nanoTime();
+        try {
+            for (LdapEntry entry : entries) {
+                final DereferenceResponseControl control = new DereferenceResponseControl(limits);
+                controls.add(control);
+                for (Map.Entry<String, String[]> e : dereference.entrySet()) {
+                    if (derefAttrNames != null && !derefAttrNames.contains(e.getKey())) {
+                        continue;
+                    }
+                    final LdapAttribute dnAttr = entry.getAttribute(e.getKey());
+                    if (dnAttr == null) {
+                        continue;
+                    }
+                    final int max = limits.getMaxValuesPerAttribute();
+                    int count = 0;
+                    for (String dn : dnAttr.getStringValues()) {
+                        if (max > 0 && ++count > max) {
+                            //DNs past the cap are not searched at all
+                            control.truncate(e.getKey());
+                            break;
+                        }
+                        permits.acquire();
+                        CompletableFuture<LdapEntry> target;
+                        try {
+                            target = CompletableFuture
+                                    .supplyAsync(() -> lookup(connectionFactory, dn, e.getValue(), binaryAttributes),
+                                            executor)
+                                    .whenComplete((r, ex) -> {
+                                        completed.merge(e.getKey(), System.nanoTime() - start, Math::max);
+                                        permits.release();
+                                    });
+                        } catch (RejectedExecutionException ex) {
+                            permits.release();
+                            target = CompletableFuture.failedFuture(ex);
+                        }
+                        searches.add(new Lookup(control, e.getKey(), dn, target));
+                    }
+                }
+            }
+            //recorded once all are done, in the order of the DNs rather than the order the searches completed
+            for (Lookup search : searches) {
+                record(search.control, search.derefAttr, search.dn, search.target.join());
+            }
+        } catch (CompletionException ex) {
+            //only a search the executor turned down fails, e.g. once the DAO is destroyed
+            throw new IllegalStateException("Secondary search could not be run", ex.getCause());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while dereferencing entries", ex);
+        }
+        if (times != null) {
+            completed.forEach(times);
+        }
+        return controls;
+    }
+
+    /*
+     * Runs a base object search for dn, returning null if the entry could not be read.
+     */
+    static LdapEntry lookup(final ConnectionFactory connectionFactory, final String dn, final String[] attrs,
+                            final String[] binaryAttributes) {
+        try {
+            final SearchRequest request = new SearchRequest();
+            request.setBaseDn(dn);
+            request.setSearchScope(SearchScope.OBJECT);
+            request.setFilter(new FilterTemplate("(objectClass=*)"));
+            request.setReturnAttributes(attrs);
+            request.setBinaryAttributes(binaryAttributes);
+            final SearchResponse response = new SearchOperation(connectionFactory).execute(request);
+            return response.getEntry();
+        } catch (Exception e) {
+            LOGGER.warn("Secondary search for [{}] failed, its attributes will be missing", dn, e);
+            return null;
+        }
+    }
+
+    /*
+     * Adds the target entry's attributes to the control.
+     */
+    private static void record(final DereferenceResponseControl control, final String derefAttr, final String dn,
+                               final LdapEntry target) {
+        if (target == null) {
+            return;
+        }
+        for (LdapAttribute attr : target.getAttributes()) {
+            //added as received, binary values stay bytes and the others are read as strings, see DereferenceSpec
+            for (byte[] value : attr.getBinaryValues()) {
+                control.addValue(derefAttr, attr.getName(), value, dn);
+            }
+        }
+    }
+
+    /*
+     * Base object search of one DN, reported to the control of its entry once every search is done.
+     */
+    private static final class Lookup {
+        private final DereferenceResponseControl control;
+        private final String derefAttr;
+        private final String dn;
+        private final CompletableFuture<LdapEntry> target;
+
+        private Lookup(final DereferenceResponseControl control, final String derefAttr, final String dn,
+                       final CompletableFuture<LdapEntry> target) {
+            this.control = control;
+            this.derefAttr = derefAttr;
+            this.dn = dn;
+            this.target = target;
+        }
+    }
+}
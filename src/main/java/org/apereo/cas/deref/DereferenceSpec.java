@@ -0,0 +1,397 @@
+package org.apereo.cas.deref;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Compiled, immutable form of the <code>dereference</code> and <code>dereferenceExtended</code> configuration.
+ * The comma separated attribute lists are split once, attribute names are interned, and the
+ * <code>derefAttrName.attrName</code> and <code>derefAttrName.attrName.extended</code> output names are built
+ * once, so the request encoder, the response decoder and the secondary search share the same parsed form and
+ * naming a decoded value is a table lookup.
+ *
+ * Lookups are case-insensitive, as attribute descriptions are. Names are indexed both as configured and in lower
+ * case, so looking up a name in its configured case, as directories usually return it, does not allocate.
+ *
+ * Attributes listed as binary are never converted to strings; their values are kept as bytes.
+ *
+ * An attribute may also be a path of DN valued attributes separated by <code>/</code>, e.g.
+ * <code>manager = departmentNumber/ou</code> or <code>memberOf = memberOf/cn</code> for nested groups. The first
+ * hop is dereferenced like any other attribute; the later hops are resolved by {@link DereferenceHopResolver} and
+ * reported as <code>manager.departmentNumber.ou</code>.
+ */
+@Slf4j
+public final class DereferenceSpec {
+
+    private final Map<String, List<String>> dereference;
+
+    /** derefAttrName to attrName to output names, both as configured and in lower case. */
+    private final Map<String, Map<String, OutputNames>> outputNames;
+
+    private final String[] binaryAttributes;
+
+    private final List<Path> paths;
+
+    private final String canonical;
+
+    private DereferenceSpec(final Map<String, List<String>> dereference,
+                            final Map<String, Map<String, OutputNames>> outputNames,
+                            final String[] binaryAttributes, final List<Path> paths) {
+        this.dereference = Collections.unmodifiableMap(dereference);
+        this.outputNames = outputNames;
+        this.binaryAttributes = binaryAttributes;
+        this.paths = Collections.unmodifiableList(paths);
+
+        final StringBuilder sb = new StringBuilder("{");
+        for (Map.Entry<String, List<String>> e : dereference.entrySet()) {
+            if (sb.length() > 1) {
+                sb.append(';');
+            }
+            sb.append(e.getKey()).append(':');
+            final Map<String, OutputNames> names = outputNames.get(e.getKey());
+            for (int i = 0; i < e.getValue().size(); i++) {
+                if (i > 0) {
+                    sb.append(',');
+                }
+                sb.append(e.getValue().get(i));
+                final OutputNames output = names.get(e.getValue().get(i));
+                if (output.extended != null) {
+                    sb.append("+extended");
+                }
+                if (output.binary) {
+                    sb.append("+binary");
+                }
+                if (output.implicit) {
+                    sb.append("+implicit");
+                }
+            }
+        }
+        for (Path path : paths) {
+            sb.append(';').append(path);
+        }
+        this.canonical = sb.append('}').toString();
+    }
+
+    /**
+     * Compiles the dereference configuration.
+     *
+     * @param dereference         map of derefAttrName to comma separated attrNames
+     * @param dereferenceExtended map of derefAttrName to comma separated attrNames also returned in extended form,
+     *                            may be null
+     * @return compiled specification
+     */
+    public static DereferenceSpec compile(final Map<String, String> dereference,
+                                          final Map<String, String> dereferenceExtended) {
+        return compile(dereference, dereferenceExtended, null);
+    }
+
+    /**
+     * Compiles the dereference configuration.
+     *
+     * @param dereference         map of derefAttrName to comma separated attrNames or attrName paths
+     * @param dereferenceExtended map of derefAttrName to comma separated attrNames also returned in extended form,
+     *                            may be null
+     * @param binaryAttributes    names of the attributes whose values are binary, may be null
+     * @return compiled specification
+     */
+    public static DereferenceSpec compile(final Map<String, String> dereference,
+                                          final Map<String, String> dereferenceExtended,
+                                          final String[] binaryAttributes) {
+        if (dereference == null) {
+            throw new NullPointerException("Null dereference attribute argument");
+        }
+        final Map<String, List<String>> spec = new LinkedHashMap<>();
+        final Map<String, Map<String, OutputNames>> outputNames = new HashMap<>();
+        final Set<String> binary = new HashSet<>();
+        if (binaryAttributes != null) {
+            for (String attr : binaryAttributes) {
+                binary.add(lower(attr.trim()));
+            }
+        }
+        final List<Path> paths = new ArrayList<>();
+        for (Map.Entry<String, String> e : dereference.entrySet()) {
+            final String derefAttr = e.getKey().trim().intern();
+            //the first hop of a path is dereferenced by the control, only for the resolver if not listed itself
+            final Map<String, Boolean> firstHops = new LinkedHashMap<>();
+            for (String item : split(e.getValue())) {
+                if (item.indexOf('/') < 0) {
+                    firstHops.put(item, Boolean.FALSE);
+                    continue;
+                }
+                final String[] hops = item.split("/");
+                for (int i = 0; i < hops.length; i++) {
+                    hops[i] = hops[i].trim().intern();
+                }
+                firstHops.putIfAbsent(hops[0], Boolean.TRUE);
+                paths.add(new Path(derefAttr, hops));
+            }
+            final List<String> attrs = List.copyOf(firstHops.keySet());
+            final Map<String, OutputNames> names = new HashMap<>();
+            for (String attr : attrs) {
+                index(names, attr, new OutputNames((derefAttr + "." + attr).intern(),
+                        binary.contains(lower(attr)), firstHops.get(attr)));
+            }
+            spec.put(derefAttr, attrs);
+            index(outputNames, derefAttr, names);
+        }
+
+        if (dereferenceExtended != null) {
+            for (Map.Entry<String, String> e : dereferenceExtended.entrySet()) {
+                final Map<String, OutputNames> names = outputNames.get(lower(e.getKey().trim()));
+                for (String attr : split(e.getValue())) {
+                    final OutputNames output = names != null ? names.get(lower(attr)) : null;
+                    if (output == null) {
+                        LOGGER.warn("Requested extended attribute: " + attr +
+                                " not among the requested dereferenced attributes: " +
+                                dereference.get(e.getKey()) +
+                                " .It will be ignored");
+                        continue;
+                    }
+                    if (output.binary) {
+                        LOGGER.warn("Requested extended attribute: " + attr +
+                                " is binary and has no extended form. It will be ignored");
+                        continue;
+                    }
+                    output.extended = (output.name + ".extended").intern();
+                }
+            }
+        }
+        final Set<String> binaryTargets = new LinkedHashSet<>();
+        for (List<String> attrs : spec.values()) {
+            for (String attr : attrs) {
+                if (binary.contains(lower(attr))) {
+                    binaryTargets.add(attr);
+                }
+            }
+        }
+        return new DereferenceSpec(spec, outputNames, binaryTargets.toArray(new String[0]), paths);
+    }
+
+    /**
+     * @return unmodifiable map of derefAttrName to the unmodifiable list of attrNames to dereference, in
+     * configuration order
+     */
+    public Map<String, List<String>> getDereference() {
+        return dereference;
+    }
+
+    /**
+     * Returns the output name of a dereferenced attribute.
+     *
+     * @param derefAttrName attribute holding the dereferenced DN
+     * @param attrName      attribute of the dereferenced entry
+     * @return <code>derefAttrName.attrName</code> as configured, or null if the pair is not part of this spec
+     */
+    public String getName(final String derefAttrName, final String attrName) {
+        final OutputNames names = lookup(derefAttrName, attrName);
+        return names != null ? names.name : null;
+    }
+
+    /**
+     * Returns the extended output name of a dereferenced attribute.
+     *
+     * @param derefAttrName attribute holding the dereferenced DN
+     * @param attrName      attribute of the dereferenced entry
+     * @return <code>derefAttrName.attrName.extended</code>, or null if the pair is not returned in extended form
+     */
+    public String getExtendedName(final String derefAttrName, final String attrName) {
+        final OutputNames names = lookup(derefAttrName, attrName);
+        return names != null ? names.extended : null;
+    }
+
+    /**
+     * @param derefAttrName attribute holding the dereferenced DN
+     * @param attrName      attribute of the dereferenced entry
+     * @return whether the values of the attribute are binary
+     */
+    public boolean isBinary(final String derefAttrName, final String attrName) {
+        final OutputNames names = lookup(derefAttrName, attrName);
+        return names != null && names.binary;
+    }
+
+    /**
+     * @param derefAttrName attribute holding the dereferenced DN
+     * @param attrName      attribute of the dereferenced entry
+     * @return whether the attribute is only dereferenced as the first hop of a path and is not reported itself
+     */
+    public boolean isImplicit(final String derefAttrName, final String attrName) {
+        final OutputNames names = lookup(derefAttrName, attrName);
+        return names != null && names.implicit;
+    }
+
+    /**
+     * Returns the part of this spec dereferencing the given attributes only, e.g. to encode a control carrying
+     * some of them. Output names and flags are the same as in this spec.
+     *
+     * @param derefAttrNames attributes holding the dereferenced DNs to keep
+     * @return restricted specification
+     */
+    public DereferenceSpec restrict(final Collection<String> derefAttrNames) {
+        final Set<String> kept = new HashSet<>();
+        for (String derefAttrName : derefAttrNames) {
+            kept.add(lower(derefAttrName));
+        }
+        final Map<String, List<String>> spec = new LinkedHashMap<>();
+        final Map<String, Map<String, OutputNames>> names = new HashMap<>();
+        final Set<String> binaryTargets = new LinkedHashSet<>();
+        for (Map.Entry<String, List<String>> e : dereference.entrySet()) {
+            if (!kept.contains(lower(e.getKey()))) {
+                continue;
+            }
+            spec.put(e.getKey(), e.getValue());
+            index(names, e.getKey(), outputNames.get(e.getKey()));
+            for (String attr : e.getValue()) {
+                if (isBinary(e.getKey(), attr)) {
+                    binaryTargets.add(attr);
+                }
+            }
+        }
+        final List<Path> keptPaths = new ArrayList<>();
+        for (Path path : paths) {
+            if (kept.contains(lower(path.getDerefAttrName()))) {
+                keptPaths.add(path);
+            }
+        }
+        return new DereferenceSpec(spec, names, binaryTargets.toArray(new String[0]), keptPaths);
+    }
+
+    /**
+     * @return paths of more than one hop, in configuration order
+     */
+    public List<Path> getPaths() {
+        return paths;
+    }
+
+    /**
+     * @return names of the dereferenced attributes whose values are binary
+     */
+    public String[] getBinaryAttributes() {
+        return binaryAttributes.clone();
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        return o == this || o instanceof DereferenceSpec && canonical.equals(((DereferenceSpec) o).canonical);
+    }
+
+    @Override
+    public int hashCode() {
+        return canonical.hashCode();
+    }
+
+    /**
+     * @return canonical form of the spec, suitable as a cache key component
+     */
+    @Override
+    public String toString() {
+        return canonical;
+    }
+
+    private OutputNames lookup(final String derefAttrName, final String attrName) {
+        final Map<String, OutputNames> names = find(outputNames, derefAttrName);
+        return names != null ? find(names, attrName) : null;
+    }
+
+    /*
+     * Names in their configured case are found without folding them; only other cases pay for a lower case copy.
+     */
+    private static <V> V find(final Map<String, V> map, final String name) {
+        final V value = map.get(name);
+        return value != null ? value : map.get(lower(name));
+    }
+
+    private static <V> void index(final Map<String, V> map, final String name, final V value) {
+        map.put(name, value);
+        map.put(lower(name), value);
+    }
+
+    private static String[] split(final String attrs) {
+        final String[] split = attrs.split(",");
+        for (int i = 0; i < split.length; i++) {
+            split[i] = split[i].trim().intern();
+        }
+        return split;
+    }
+
+    private static String lower(final String name) {
+        return name.toLowerCase(Locale.ROOT);
+    }
+
+    private static final class OutputNames {
+        private final String name;
+        private final boolean binary;
+        private final boolean implicit;
+        /** Only written while compiling. */
+        private String extended;
+
+        private OutputNames(final String name, final boolean binary, final boolean implicit) {
+            this.name = name;
+            this.binary = binary;
+            this.implicit = implicit;
+        }
+    }
+
+    /**
+     * Path of DN valued attributes followed from a dereferenced entry, e.g. <code>departmentNumber/ou</code>
+     * under <code>manager</code>.
+     */
+    public static final class Path {
+        private final String derefAttrName;
+        private final String[] hops;
+        private final String[] names;
+
+        private Path(final String derefAttrName, final String[] hops) {
+            this.derefAttrName = derefAttrName;
+            this.hops = hops;
+            this.names = new String[hops.length];
+            String name = derefAttrName;
+            for (int i = 0; i < hops.length; i++) {
+                name = name + "." + hops[i];
+                names[i] = name.intern();
+            }
+        }
+
+        public String getDerefAttrName() {
+            return derefAttrName;
+        }
+
+        /**
+         * @return number of hops after the dereferenced attribute, at least two
+         */
+        public int getLength() {
+            return hops.length;
+        }
+
+        /**
+         * @param hop hop index, the first hop is 0
+         * @return attribute followed at the given hop
+         */
+        public String getHop(final int hop) {
+            return hops[hop];
+        }
+
+        /**
+         * @param hop hop index, the first hop is 0
+         * @return output name of the values reached at the given hop, e.g. <code>manager.departmentNumber</code>
+         */
+        public String getName(final int hop) {
+            return names[hop];
+        }
+
+        @Override
+        public String toString() {
+            return derefAttrName + ":" + String.join("/", hops);
+        }
+    }
+}
@@ -0,0 +1,383 @@
+package org.apereo.cas.deref;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Chooses, for every attribute of the <code>dereference</code> configuration, whether it is sent in the deref
+ * control or resolved client side by secondary searches. A deref spec following e.g. <code>member</code> of very
+ * large groups can be much slower on the server than narrow base object searches, while small specs are far
+ * faster with the control.
+ *
+ * Moving averages of the latency and of the number of values are kept for every attribute and both ways:
+ * <ul>
+ *     <li>through the control, the search latency above the latency of the same search without the unpinned
+ *     attributes, shared between the attributes sent in proportion to the values each returned</li>
+ *     <li>through secondary searches, the time until the last base object search of the attribute completed</li>
+ * </ul>
+ * The choice is re-evaluated periodically and switches when the other way is faster by the given margin. A small
+ * fraction of queries resolves one attribute the other way, or every attribute not pinned by secondary searches,
+ * so the averages of both ways stay current. Exploration runs on live lookups, so an attribute which recently
+ * returned more values than the exploration cap, e.g. <code>member</code> of a group of thousands, is never moved
+ * to secondary searches to measure it: it stays in the control, also in the search measured without the other
+ * attributes, and is not charged any of the latency above it.
+ *
+ * Attributes can be pinned to one way, they are then never switched nor explored.
+ */
+@Slf4j
+public class DereferenceStrategy {
+
+    /** How an attribute is resolved. */
+    public enum Mode {
+        /** Sent in the deref control. */
+        DEREF,
+
+        /** Resolved by secondary searches. */
+        SECONDARY
+    }
+
+    /** Weight of a new sample in the moving averages. */
+    private static final double ALPHA = 0.2;
+
+    /** Samples needed each way before an attribute is switched. */
+    private static final int MIN_SAMPLES = 5;
+
+    private final Map<String, Stats> stats = new LinkedHashMap<>();
+    private final Map<String, Mode> pinned = new LinkedHashMap<>();
+    private final List<String> unpinned = new ArrayList<>();
+    private final long intervalNanos;
+    private final double explorationRate;
+    private final double margin;
+    private final int maxExploredValues;
+
+    private final Stats baseline = new Stats();
+    private final AtomicLong nextEvaluation;
+    private final LongAdder explored = new LongAdder();
+    private final LongAdder switches = new LongAdder();
+    private volatile Set<String> secondary;
+
+    /**
+     * Creates a new strategy, attributes not pinned start in the deref control.
+     *
+     * @param derefAttrNames  attributes holding the dereferenced DNs
+     * @param pins            attributes pinned to one way, by name ignoring case, may be null
+     * @param interval        interval between two evaluations
+     * @param explorationRate fraction of queries resolving one attribute the other way, e.g. 0.01
+     * @param margin          fraction by which the other way must be faster to switch, e.g. 0.2
+     */
+    public DereferenceStrategy(final Collection<String> derefAttrNames, final Map<String, Mode> pins,
+                               final Duration interval, final double explorationRate, final double margin) {
+        this(derefAttrNames, pins, interval, explorationRate, margin, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Creates a new strategy, attributes not pinned start in the deref control.
+     *
+     * @param derefAttrNames    attributes holding the dereferenced DNs
+     * @param pins              attributes pinned to one way, by name ignoring case, may be null
+     * @param interval          interval between two evaluations
+     * @param explorationRate   fraction of queries resolving one attribute the other way, e.g. 0.01
+     * @param margin            fraction by which the other way must be faster to switch, e.g. 0.2
+     * @param maxExploredValues mean number of values above which an attribute is not explored by secondary searches
+     */
+    public DereferenceStrategy(final Collection<String> derefAttrNames, final Map<String, Mode> pins,
+                               final Duration interval, final double explorationRate, final double margin,
+                               final int maxExploredValues) {
+        if (maxExploredValues < 0) {
+            throw new IllegalArgumentException("Invalid maximum of explored values " + maxExploredValues);
+        }
+        if (explorationRate < 0 || explorationRate > 1) {
+            throw new IllegalArgumentException("Invalid exploration rate " + explorationRate);
+        }
+        if (margin < 0 || margin >= 1) {
+            throw new IllegalArgumentException("Invalid margin " + margin);
+        }
+        final Map<String, Mode> lowerPins = new LinkedHashMap<>();
+        if (pins != null) {
+            pins.forEach((name, mode) -> lowerPins.put(name.trim().toLowerCase(Locale.ROOT), mode));
+        }
+        final Set<String> initial = new LinkedHashSet<>();
+        for (String name : derefAttrNames) {
+            stats.put(name, new Stats());
+            final Mode mode = lowerPins.remove(name.toLowerCase(Locale.ROOT));
+            if (mode == null) {
+                unpinned.add(name);
+                continue;
+            }
+            pinned.put(name, mode);
+            if (mode == Mode.SECONDARY) {
+                initial.add(name);
+            }
+        }
+        if (!lowerPins.isEmpty()) {
+            LOGGER.warn("Pinned attributes {} are not dereferenced, they will be ignored", lowerPins.keySet());
+        }
+        this.intervalNanos = interval.toNanos();
+        this.explorationRate = explorationRate;
+        this.margin = margin;
+        this.maxExploredValues = maxExploredValues;
+        this.nextEvaluation = new AtomicLong(System.nanoTime() + intervalNanos);
+        this.secondary = Collections.unmodifiableSet(initial);
+    }
+
+    /**
+     * Returns the attributes a new query resolves by secondary searches, re-evaluating the choice when due.
+     * Occasionally one attribute is resolved the other way to measure it.
+     *
+     * @return attributes resolved by secondary searches, the others are sent in the deref control
+     */
+    public Set<String> select() {
+        final long now = System.nanoTime();
+        final long next = nextEvaluation.get();
+        if (now - next >= 0 && nextEvaluation.compareAndSet(next, now + intervalNanos)) {
+            evaluate();
+        }
+        final Set<String> current = secondary;
+        if (unpinned.isEmpty() || explorationRate == 0
+                || ThreadLocalRandom.current().nextDouble() >= explorationRate) {
+            return current;
+        }
+        final Set<String> exploring = new HashSet<>(current);
+        final int pick = ThreadLocalRandom.current().nextInt(unpinned.size() + 1);
+        final boolean noBaseline;
+        synchronized (baseline) {
+            noBaseline = baseline.derefSamples == 0;
+        }
+        if (pick == unpinned.size() || noBaseline) {
+            //the search without the explored attributes in the control, the latency they are measured against
+            for (String name : unpinned) {
+                if (isExplorable(name)) {
+                    exploring.add(name);
+                }
+            }
+        } else {
+            final String name = unpinned.get(pick);
+            if (!exploring.remove(name)) {
+                if (!isExplorable(name)) {
+                    return current;
+                }
+                exploring.add(name);
+            }
+        }
+        if (exploring.equals(current)) {
+            return current;
+        }
+        explored.increment();
+        return Collections.unmodifiableSet(exploring);
+    }
+
+    /*
+     * Whether the attribute returned few enough values lately to be resolved by secondary searches to measure it.
+     */
+    private boolean isExplorable(final String name) {
+        final Stats s = stats.get(name);
+        synchronized (s) {
+            return s.values <= maxExploredValues;
+        }
+    }
+
+    /**
+     * @return attributes currently resolved by secondary searches, without exploration
+     */
+    public Set<String> getSecondary() {
+        return secondary;
+    }
+
+    /**
+     * Records the latency of a primary search.
+     *
+     * @param secondaryNames attributes the query resolved by secondary searches
+     * @param nanos          search latency
+     * @param valueCounts    values returned in the deref control by attribute
+     */
+    public void recordSearch(final Set<String> secondaryNames, final long nanos,
+                             final Map<String, Integer> valueCounts) {
+        final List<String> sent = new ArrayList<>();
+        for (String name : unpinned) {
+            if (secondaryNames.contains(name)) {
+                continue;
+            }
+            if (isExplorable(name)) {
+                sent.add(name);
+                continue;
+            }
+            //part of the baseline, only its number of values is followed so it is explored again once it shrinks
+            final Stats s = stats.get(name);
+            synchronized (s) {
+                s.values = average(s.values, valueCounts.getOrDefault(name, 0), s.valueSamples++);
+            }
+        }
+        final double base;
+        synchronized (baseline) {
+            if (sent.isEmpty()) {
+                baseline.derefNanos = average(baseline.derefNanos, nanos, baseline.derefSamples++);
+                return;
+            }
+            base = baseline.derefSamples > 0 ? baseline.derefNanos : 0;
+        }
+        final double excess = Math.max(0, nanos - base);
+        long total = 0;
+        for (String name : sent) {
+            total += valueCounts.getOrDefault(name, 0) + 1;
+        }
+        for (String name : sent) {
+            final int values = valueCounts.getOrDefault(name, 0);
+            final Stats s = stats.get(name);
+            synchronized (s) {
+                s.derefNanos = average(s.derefNanos, excess * (values + 1) / total, s.derefSamples);
+                s.derefValues = average(s.derefValues, values, s.derefSamples++);
+                s.values = average(s.values, values, s.valueSamples++);
+            }
+        }
+    }
+
+    /**
+     * Records the secondary searches of one attribute.
+     *
+     * @param name   attribute holding the dereferenced DNs
+     * @param nanos  time until its last base object search completed
+     * @param values values returned
+     */
+    public void recordSecondary(final String name, final long nanos, final int values) {
+        final Stats s = stats.get(name);
+        if (s == null) {
+            return;
+        }
+        synchronized (s) {
+            s.secondaryNanos = average(s.secondaryNanos, nanos, s.secondarySamples);
+            s.secondaryValues = average(s.secondaryValues, values, s.secondarySamples++);
+            s.values = average(s.values, values, s.valueSamples++);
+        }
+    }
+
+    /**
+     * Switches every attribute not pinned whose other way is faster by the margin. Evaluations run one at a time,
+     * so none of them overwrites the switches of another.
+     */
+    public synchronized void evaluate() {
+        final Set<String> next = new LinkedHashSet<>(secondary);
+        for (String name : unpinned) {
+            final Stats s = stats.get(name);
+            synchronized (s) {
+                if (s.derefSamples < MIN_SAMPLES || s.secondarySamples < MIN_SAMPLES) {
+                    continue;
+                }
+                final boolean isSecondary = next.contains(name);
+                if (!isSecondary && s.secondaryNanos < s.derefNanos * (1 - margin)) {
+                    next.add(name);
+                } else if (isSecondary && s.derefNanos < s.secondaryNanos * (1 - margin)) {
+                    next.remove(name);
+                } else {
+                    continue;
+                }
+                switches.increment();
+                LOGGER.info("Dereferencing [{}] by {} from now on: {}", name,
+                        isSecondary ? Mode.DEREF : Mode.SECONDARY, s);
+            }
+        }
+        secondary = Collections.unmodifiableSet(next);
+    }
+
+    /**
+     * @return current way of every attribute
+     */
+    public Map<String, Mode> getDecisions() {
+        final Set<String> current = secondary;
+        final Map<String, Mode> decisions = new LinkedHashMap<>();
+        for (String name : stats.keySet()) {
+            decisions.put(name, current.contains(name) ? Mode.SECONDARY : Mode.DEREF);
+        }
+        return decisions;
+    }
+
+    /**
+     * @return attributes pinned to one way
+     */
+    public Map<String, Mode> getPinned() {
+        return Collections.unmodifiableMap(pinned);
+    }
+
+    /**
+     * @param name attribute holding the dereferenced DNs
+     * @return mean latency through the control in nanoseconds, or NaN before the first sample
+     */
+    public double getDerefLatency(final String name) {
+        final Stats s = stats.get(name);
+        if (s == null) {
+            return Double.NaN;
+        }
+        synchronized (s) {
+            return s.derefSamples > 0 ? s.derefNanos : Double.NaN;
+        }
+    }
+
+    /**
+     * @param name attribute holding the dereferenced DNs
+     * @return mean latency through secondary searches in nanoseconds, or NaN before the first sample
+     */
+    public double getSecondaryLatency(final String name) {
+        final Stats s = stats.get(name);
+        if (s == null) {
+            return Double.NaN;
+        }
+        synchronized (s) {
+            return s.secondarySamples > 0 ? s.secondaryNanos : Double.NaN;
+        }
+    }
+
+    /**
+     * @return number of queries that resolved an attribute the other way to measure it
+     */
+    public long getExploredCount() {
+        return explored.sum();
+    }
+
+    /**
+     * @return number of times an attribute was switched
+     */
+    public long getSwitchCount() {
+        return switches.sum();
+    }
+
+    private static double average(final double current, final double sample, final long samples) {
+        return samples == 0 ? sample : current + ALPHA * (sample - current);
+    }
+
+    @Override
+    public String toString() {
+        return new StringBuilder("[").append(getClass().getName()).append("@").append(hashCode())
+                .append("::decisions=").append(getDecisions())
+                .append(", pinned=").append(pinned.keySet()).append("]").toString();
+    }
+
+    private static final class Stats {
+        private double derefNanos;
+        private double derefValues;
+        private long derefSamples;
+        private double secondaryNanos;
+        private double secondaryValues;
+        private long secondarySamples;
+        private double values;
+        private long valueSamples;
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "deref %.1f ms for %.0f values, secondary %.1f ms for %.0f values",
+                    derefNanos / 1e6, derefValues, secondaryNanos / 1e6, secondaryValues);
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package org.apereo.cas.deref;
+
+import lombok.extern.slf4j.Slf4j;
+import org.ldaptive.ConnectionConfig;
+import org.ldaptive.ConnectionFactory;
+import org.ldaptive.DefaultConnectionFactory;
+import org.ldaptive.FilterTemplate;
+import org.ldaptive.LdapAttribute;
+import org.ldaptive.LdapEntry;
+import org.ldaptive.SearchOperation;
+import org.ldaptive.SearchRequest;
+import org.ldaptive.SearchScope;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads <code>supportedControl</code> from the RootDSE of every server of a connection configuration and keeps the
+ * result up to date in the background, so queries can be routed to the deref control or to secondary searches
+ * without probing on the hot path.
+ *
+ * Servers are probed one by one, since a connection factory may spread its connections over several replicas and
+ * those need not run the same version. When only some servers support the control, queries send it and fall back
+ * to secondary searches for entries that come back without a deref response. Support is known per server, the
+ * route is global: a query does not know which server will answer it.
+ *
+ * Each server is probed through the same connection factory every time, either one of the DAO, e.g. the pool of a
+ * replica, or one the probe opens once and closes when stopped.
+ */
+@Slf4j
+public class DereferenceSupportProbe {
+
+    /** Connection factory per LDAP URL. */
+    private final Map<String, ConnectionFactory> servers;
+    /** Whether the probe opened the connection factories and closes them. */
+    private final boolean owned;
+    private final Duration refreshInterval;
+
+    /** Last known support per LDAP URL; servers that never answered are absent. */
+    private final Map<String, Boolean> support = new ConcurrentHashMap<>();
+
+    private volatile DereferenceRoute route = DereferenceRoute.DEREF_WITH_FALLBACK;
+
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * Creates a new probe opening a connection factory per server, closed when the probe is stopped.
+     *
+     * @param connectionConfig connection configuration whose LDAP URLs are probed
+     * @param refreshInterval  interval between background probes, zero disables refreshing
+     */
+    public DereferenceSupportProbe(final ConnectionConfig connectionConfig, final Duration refreshInterval) {
+        this.servers = new LinkedHashMap<>();
+        for (String url : connectionConfig.getLdapUrl().trim().split("\\s+")) {
+            final ConnectionConfig config = ConnectionConfig.copy(connectionConfig);
+            config.setLdapUrl(url);
+            servers.put(url, new DefaultConnectionFactory(config));
+        }
+        this.owned = true;
+        this.refreshInterval = refreshInterval;
+    }
+
+    /**
+     * Creates a new probe of the given servers, whose connection factories are left open when it is stopped.
+     *
+     * @param servers         connection factory per LDAP URL, e.g. the pools of the replicas of a DAO
+     * @param refreshInterval interval between background probes, zero disables refreshing
+     */
+    public DereferenceSupportProbe(final Map<String, ? extends ConnectionFactory> servers,
+                                   final Duration refreshInterval) {
+        this.servers = new LinkedHashMap<>(servers);
+        this.owned = false;
+        this.refreshInterval = refreshInterval;
+    }
+
+    /**
+     * Probes every server once and schedules the background refresh.
+     */
+    public synchronized void start() {
+        probe();
+        if (scheduler == null && !refreshInterval.isZero() && !refreshInterval.isNegative()) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                final Thread t = new Thread(r, "deref-support-probe");
+                t.setDaemon(true);
+                return t;
+            });
+            scheduler.scheduleWithFixedDelay(
+                    this::probe, refreshInterval.toMillis(), refreshInterval.toMillis(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Stops the background refresh and closes the connection factories the probe opened.
+     */
+    public synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+        if (owned) {
+            servers.values().forEach(ConnectionFactory::close);
+        }
+    }
+
+    /**
+     * @return route to use for new queries according to the last probe
+     */
+    public DereferenceRoute getRoute() {
+        return route;
+    }
+
+    /**
+     * @return last known deref support per LDAP URL
+     */
+    public Map<String, Boolean> getSupport() {
+        return Collections.unmodifiableMap(new LinkedHashMap<>(support));
+    }
+
+    /**
+     * @param url LDAP URL of a server
+     * @return last known deref support of the server, null if it never answered
+     */
+    public Boolean isSupported(final String url) {
+        return support.get(url);
+    }
+
+    /**
+     * Probes every server and updates the route. Servers that cannot be reached keep their last known state.
+     */
+    public void probe() {
+        for (Map.Entry<String, ConnectionFactory> server : servers.entrySet()) {
+            final String url = server.getKey();
+            try {
+                support.put(url, supportsDeref(server.getValue()));
+            } catch (Exception e) {
+                LOGGER.warn("Could not read supportedControl from [{}], keeping last known state", url, e);
+            }
+        }
+
+        final DereferenceRoute previous = route;
+        if (support.isEmpty()) {
+            route = DereferenceRoute.DEREF_WITH_FALLBACK;
+        } else if (!support.containsValue(Boolean.FALSE)) {
+            route = DereferenceRoute.DEREF;
+        } else if (!support.containsValue(Boolean.TRUE)) {
+            route = DereferenceRoute.SECONDARY;
+        } else {
+            route = DereferenceRoute.DEREF_WITH_FALLBACK;
+        }
+        if (previous != route) {
+            LOGGER.info("Dereference support {}, routing queries to {}", support, route);
+        }
+    }
+
+    private static boolean supportsDeref(final ConnectionFactory factory) throws Exception {
+        final SearchRequest request = new SearchRequest();
+        request.setBaseDn("");
+        request.setSearchScope(SearchScope.OBJECT);
+        request.setFilter(new FilterTemplate("(objectClass=*)"));
+        request.setReturnAttributes("supportedControl");
+        final LdapEntry rootDse = new SearchOperation(factory).execute(request).getEntry();
+        final LdapAttribute controls = rootDse != null ? rootDse.getAttribute("supportedControl") : null;
+        return controls != null && controls.getStringValues().contains(DereferenceControl.OID);
+    }
+}
@@ -0,0 +1,203 @@
+package org.apereo.cas.deref;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link DereferenceMetrics} backed by a Micrometer {@link MeterRegistry}. Meters are registered once at
+ * construction time:
+ * <ul>
+ *     <li><code>deref.query.phase</code> timer, tagged with the phase</li>
+ *     <li><code>deref.control.returned</code> and <code>deref.control.missing</code> counters</li>
+ *     <li><code>deref.query.values</code> summary of dereferenced values per query</li>
+ *     <li><code>deref.decode.failures</code> and <code>deref.search.failures</code> counters</li>
+ *     <li><code>deref.query.truncated</code> counter of controls and results cut by the limits</li>
+ *     <li><code>deref.pool.wait</code> timer of the time spent waiting for a pooled connection</li>
+ *     <li><code>deref.hedge.sent</code> and <code>deref.hedge.won</code> counters</li>
+ *     <li><code>deref.query.degraded</code> counter of lookups served stale or without dereferenced values</li>
+ * </ul>
+ * The gauges <code>deref.pool.active</code>, <code>deref.pool.available</code>, <code>deref.pool.waiting</code>,
+ * <code>deref.pool.utilization</code> and the <code>deref.pool.exhausted</code> counter are registered when the
+ * DAO hands over its connection pool, the <code>deref.hedge.delay</code> gauge when it hands over its hedger. The
+ * <code>deref.strategy.secondary</code> gauge, 1 while an attribute is resolved by secondary searches, and the
+ * <code>deref.strategy.latency</code> gauge of each way, both tagged with the attribute, are registered when it
+ * hands over its adaptive strategy. The <code>deref.breaker.state</code> gauge, 0 closed, 1 open and 2 half
+ * open, and the <code>deref.breaker.rejected</code> and <code>deref.breaker.opened</code> counters, tagged with
+ * the server, are registered for the circuit breaker of every server. The <code>deref.intern.size</code> gauge and
+ * the <code>deref.intern.hits</code> and <code>deref.intern.misses</code> counters are registered when the DAO
+ * hands over its pool of DNs and values.
+ *
+ * Every meter is tagged with the <code>dao</code> it measures. A registry keeps only the first meter of a given
+ * name and tags, so DAOs sharing a registry must each get an instance with a name of their own, or the meters of
+ * all but the first are silently dropped.
+ */
+public class MicrometerDereferenceMetrics implements DereferenceMetrics {
+
+    private final Map<Phase, Timer> phases = new EnumMap<>(Phase.class);
+    private final Counter controlReturned;
+    private final Counter controlMissing;
+    private final DistributionSummary values;
+    private final Counter decodeFailures;
+    private final Counter searchFailures;
+    private final Counter truncated;
+    private final Timer connectionWait;
+    private final Counter hedgesSent;
+    private final Counter hedgesWon;
+    private final Counter degraded;
+    private final MeterRegistry registry;
+    private final Tags tags;
+
+    /**
+     * Creates metrics for the only DAO of the registry, tagged <code>dao=default</code>.
+     *
+     * @param registry registry the meters are registered with
+     */
+    public MicrometerDereferenceMetrics(final MeterRegistry registry) {
+        this(registry, "default");
+    }
+
+    /**
+     * Creates metrics for one of the DAOs sharing the registry.
+     *
+     * @param registry registry the meters are registered with
+     * @param name     name of the DAO, the value of the <code>dao</code> tag of every meter
+     */
+    public MicrometerDereferenceMetrics(final MeterRegistry registry, final String name) {
+        this.registry = registry;
+        this.tags = Tags.of("dao", name);
+        for (Phase phase : Phase.values()) {
+            phases.put(phase, Timer.builder("deref.query.phase")
+                    .tags(tags).tag("phase", phase.name().toLowerCase(Locale.ROOT))
+                    .register(registry));
+        }
+        this.controlReturned = Counter.builder("deref.control.returned").tags(tags).register(registry);
+        this.controlMissing = Counter.builder("deref.control.missing").tags(tags).register(registry);
+        this.values = DistributionSummary.builder("deref.query.values").tags(tags).register(registry);
+        this.decodeFailures = Counter.builder("deref.decode.failures").tags(tags).register(registry);
+        this.searchFailures = Counter.builder("deref.search.failures").tags(tags).register(registry);
+        this.truncated = Counter.builder("deref.query.truncated").tags(tags).register(registry);
+        this.connectionWait = Timer.builder("deref.pool.wait").tags(tags).register(registry);
+        this.hedgesSent = Counter.builder("deref.hedge.sent").tags(tags).register(registry);
+        this.hedgesWon = Counter.builder("deref.hedge.won").tags(tags).register(registry);
+        this.degraded = Counter.builder("deref.query.degraded").tags(tags).register(registry);
+    }
+
+    @Override
+    public void record(final Phase phase, final long nanos) {
+        phases.get(phase).record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void controlReturned() {
+        controlReturned.increment();
+    }
+
+    @Override
+    public void controlMissing() {
+        controlMissing.increment();
+    }
+
+    @Override
+    public void dereferencedValues(final int count) {
+        values.record(count);
+    }
+
+    @Override
+    public void decodeFailure() {
+        decodeFailures.increment();
+    }
+
+    @Override
+    public void truncated() {
+        truncated.increment();
+    }
+
+    @Override
+    public void searchFailure() {
+        searchFailures.increment();
+    }
+
+    @Override
+    public void connectionWait(final long nanos) {
+        connectionWait.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void connectionPool(final DereferenceConnectionPool pool) {
+        //also tagged with the pool name, by default the LDAP URL the pool connects to
+        Gauge.builder("deref.pool.active", pool, DereferenceConnectionPool::getActiveCount)
+                .tags(tags).tag("pool", pool.getName()).register(registry);
+        Gauge.builder("deref.pool.available", pool, DereferenceConnectionPool::getAvailableCount)
+                .tags(tags).tag("pool", pool.getName()).register(registry);
+        Gauge.builder("deref.pool.waiting", pool, DereferenceConnectionPool::getWaitingCount)
+                .tags(tags).tag("pool", pool.getName()).register(registry);
+        Gauge.builder("deref.pool.utilization", pool, DereferenceConnectionPool::getUtilization)
+                .tags(tags).tag("pool", pool.getName()).register(registry);
+        FunctionCounter.builder("deref.pool.exhausted", pool, DereferenceConnectionPool::getExhaustedCount)
+                .tags(tags).tag("pool", pool.getName()).register(registry);
+    }
+
+    @Override
+    public void hedgeSent() {
+        hedgesSent.increment();
+    }
+
+    @Override
+    public void hedgeWon() {
+        hedgesWon.increment();
+    }
+
+    @Override
+    public void hedger(final DereferenceHedger hedger) {
+        Gauge.builder("deref.hedge.delay", hedger, h -> h.getDelay().toNanos() / 1e6)
+                .tags(tags).baseUnit("milliseconds").register(registry);
+    }
+
+    @Override
+    public void strategy(final DereferenceStrategy strategy) {
+        for (String name : strategy.getDecisions().keySet()) {
+            Gauge.builder("deref.strategy.secondary", strategy, s -> s.getSecondary().contains(name) ? 1 : 0)
+                    .tags(tags).tag("attribute", name).register(registry);
+            Gauge.builder("deref.strategy.latency", strategy, s -> s.getDerefLatency(name) / 1e6)
+                    .tags(tags).tag("attribute", name).tag("mode", "deref").baseUnit("milliseconds")
+                    .register(registry);
+            Gauge.builder("deref.strategy.latency", strategy, s -> s.getSecondaryLatency(name) / 1e6)
+                    .tags(tags).tag("attribute", name).tag("mode", "secondary").baseUnit("milliseconds")
+                    .register(registry);
+        }
+    }
+
+    @Override
+    public void interner(final DereferenceInterner interner) {
+        Gauge.builder("deref.intern.size", interner, DereferenceInterner::size).tags(tags).register(registry);
+        FunctionCounter.builder("deref.intern.hits", interner, DereferenceInterner::getHitCount)
+                .tags(tags).register(registry);
+        FunctionCounter.builder("deref.intern.misses", interner, DereferenceInterner::getMissCount)
+                .tags(tags).register(registry);
+    }
+
+    @Override
+    public void degraded() {
+        degraded.increment();
+    }
+
+    @Override
+    public void circuitBreaker(final DereferenceCircuitBreaker breaker) {
+        Gauge.builder("deref.breaker.state", breaker, b -> b.getState().ordinal())
+                .tags(tags).tag("server", breaker.getName()).register(registry);
+        FunctionCounter.builder("deref.breaker.rejected", breaker, DereferenceCircuitBreaker::getRejectedCount)
+                .tags(tags).tag("server", breaker.getName()).register(registry);
+        FunctionCounter.builder("deref.breaker.opened", breaker, DereferenceCircuitBreaker::getOpenedCount)
+                .tags(tags).tag("server", breaker.getName()).register(registry);
+    }
+}
@@ -0,0 +1,157 @@
+package org.apereo.cas.deref;
+
+import org.apereo.services.persondir.IPersonAttributes;
+import org.apereo.services.persondir.support.NamedPersonImpl;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Time to live, grace period and size bound of the person attribute cache. A time to live of one nanosecond has
+ * passed by the next call, so expiry is tested without waiting.
+ */
+class DereferenceAttributeCacheTest {
+
+    private static final Duration LONG = Duration.ofHours(1);
+    private static final Duration EXPIRED = Duration.ofNanos(1);
+
+    @Test
+    void returnsCachedPeopleUntilTheyExpire() {
+        final DereferenceAttributeCache cache = new DereferenceAttributeCache(10, LONG, LONG);
+        final List<IPersonAttributes> people = List.of(person("alice"));
+        cache.put("alice", people);
+
+        assertEquals(people, cache.get("alice"));
+        assertNull(cache.get("bob"));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    void expiresPeopleAfterTheirTimeToLive() {
+        final DereferenceAttributeCache cache = new DereferenceAttributeCache(10, EXPIRED, LONG);
+        cache.put("alice", List.of(person("alice")));
+
+        assertNull(cache.get("alice"));
+        assertEquals(0, cache.size());
+        assertEquals(1, cache.getExpirationCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    void cachesNobodyWithItsOwnTimeToLive() {
+        final DereferenceAttributeCache cache = new DereferenceAttributeCache(10, EXPIRED, LONG);
+        cache.put("nobody", Collections.emptyList());
+
+        assertTrue(cache.get("nobody").isEmpty());
+    }
+
+    @Test
+    void doesNotCacheNobodyWithoutNegativeTimeToLive() {
+        final DereferenceAttributeCache cache = new DereferenceAttributeCache(10, LONG, Duration.ZERO);
+        cache.put("nobody", Collections.emptyList());
+
+        assertNull(cache.get("nobody"));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    void keepsExpiredPeopleForTheGracePeriod() {
+        final DereferenceAttributeCache cache = new DereferenceAttributeCache(10, EXPIRED, LONG, LONG);
+        final List<IPersonAttributes> people = List.of(person("alice"));
+        cache.put("alice", people);
+
+        assertNull(cache.get("alice"));
+        assertEquals(people, cache.getStale("alice"));
+        assertEquals(1, cache.size());
+        assertEquals(0, cache.getExpirationCount());
+    }
+
+    @Test
+    void dropsExpiredPeopleAfterTheGracePeriod() {
+        final DereferenceAttributeCache cache = new DereferenceAttributeCache(10, EXPIRED, LONG, EXPIRED);
+        cache.put("alice", List.of(person("alice")));
+
+        assertNull(cache.getStale("alice"));
+        assertNull(cache.get("alice"));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    void evictsOnceFull() {
+        final DereferenceAttributeCache cache = new DereferenceAttributeCache(1, LONG, LONG);
+        cache.put("alice", List.of(person("alice")));
+        cache.put("bob", List.of(person("bob")));
+
+        assertNull(cache.get("alice"));
+        assertEquals("bob", cache.get("bob").get(0).getName());
+        assertEquals(1, cache.getEvictionCount());
+    }
+
+    @Test
+    void staysWithinItsSize() {
+        final DereferenceAttributeCache cache = new DereferenceAttributeCache(20, LONG, LONG);
+        for (int i = 0; i < 200; i++) {
+            cache.put("user" + i, List.of(person("user" + i)));
+        }
+
+        assertTrue(cache.size() <= 20);
+        assertEquals(200 - cache.size(), cache.getEvictionCount());
+    }
+
+    @Test
+    void replacesPeopleOfTheSameKey() {
+        final DereferenceAttributeCache cache = new DereferenceAttributeCache(10, LONG, LONG);
+        cache.put("alice", List.of(person("alice")));
+        final List<IPersonAttributes> renamed = List.of(person("alice2"));
+        cache.put("alice", renamed);
+
+        assertEquals(renamed, cache.get("alice"));
+        assertEquals(1, cache.size());
+        assertEquals(0, cache.getEvictionCount());
+    }
+
+    @Test
+    void isNotChangedThroughTheCallersList() {
+        final DereferenceAttributeCache cache = new DereferenceAttributeCache(10, LONG, LONG);
+        final IPersonAttributes alice = person("alice");
+        final List<IPersonAttributes> people = new ArrayList<>(List.of(alice));
+        cache.put("alice", people);
+        people.clear();
+
+        final List<IPersonAttributes> cached = cache.get("alice");
+        assertEquals(1, cached.size());
+        assertSame(alice, cached.get(0));
+        assertThrows(UnsupportedOperationException.class, () -> cached.add(person("bob")));
+    }
+
+    @Test
+    void clearsEveryEntry() {
+        final DereferenceAttributeCache cache = new DereferenceAttributeCache(10, LONG, LONG);
+        cache.put("alice", List.of(person("alice")));
+        cache.put("bob", List.of(person("bob")));
+        cache.clear();
+
+        assertEquals(0, cache.size());
+        assertNull(cache.get("alice"));
+    }
+
+    @Test
+    void needsAPositiveSize() {
+        assertThrows(IllegalArgumentException.class, () -> new DereferenceAttributeCache(0, LONG, LONG));
+    }
+
+    private static IPersonAttributes person(final String name) {
+        return new NamedPersonImpl(name, Map.of("uid", List.<Object>of(name)));
+    }
+}
@@ -0,0 +1,130 @@
+package org.apereo.cas.deref;
+
+import org.junit.jupiter.api.Test;
+import org.ldaptive.DefaultConnectionFactory;
+
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * State transitions of the circuit breaker of a server. No search is sent, outcomes are reported by the test.
+ */
+class DereferenceCircuitBreakerTest {
+
+    private static final Duration NEVER = Duration.ofHours(1);
+
+    /** Long enough for the calls of a test to run within it, short enough to wait for. */
+    private static final Duration SHORT = Duration.ofMillis(200);
+
+    @Test
+    void staysClosedBelowTheThreshold() {
+        final DereferenceCircuitBreaker breaker = breaker(3, NEVER);
+        breaker.recordFailure();
+        breaker.recordFailure();
+        breaker.recordSuccess();
+        breaker.recordFailure();
+        breaker.recordFailure();
+
+        assertEquals(DereferenceCircuitBreaker.State.CLOSED, breaker.getState());
+        assertTrue(breaker.allowRequest());
+        assertEquals(0, breaker.getOpenedCount());
+    }
+
+    @Test
+    void opensAfterConsecutiveFailures() {
+        final DereferenceCircuitBreaker breaker = breaker(3, NEVER);
+        for (int i = 0; i < 3; i++) {
+            breaker.recordFailure();
+        }
+
+        assertEquals(DereferenceCircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.allowRequest());
+        assertFalse(breaker.allowRequest());
+        assertFalse(breaker.isAvailable());
+        assertEquals(2, breaker.getRejectedCount());
+        assertEquals(1, breaker.getOpenedCount());
+    }
+
+    @Test
+    void ignoresFailuresWhileOpen() {
+        final DereferenceCircuitBreaker breaker = breaker(1, NEVER);
+        breaker.recordFailure();
+        breaker.recordFailure();
+
+        assertEquals(DereferenceCircuitBreaker.State.OPEN, breaker.getState());
+        assertEquals(1, breaker.getOpenedCount());
+    }
+
+    @Test
+    void letsOneProbeThroughOnceTheOpenDurationElapsed() throws InterruptedException {
+        final DereferenceCircuitBreaker breaker = breaker(1, SHORT);
+        breaker.recordFailure();
+        assertFalse(breaker.allowRequest());
+
+        Thread.sleep(SHORT.toMillis() + 50);
+        assertTrue(breaker.isAvailable());
+        assertEquals(DereferenceCircuitBreaker.State.OPEN, breaker.getState());
+
+        assertTrue(breaker.allowRequest());
+        assertEquals(DereferenceCircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertFalse(breaker.allowRequest());
+    }
+
+    @Test
+    void closesOnASuccessfulProbe() throws InterruptedException {
+        final DereferenceCircuitBreaker breaker = breaker(1, SHORT);
+        breaker.recordFailure();
+        Thread.sleep(SHORT.toMillis() + 50);
+        assertTrue(breaker.allowRequest());
+
+        breaker.recordSuccess();
+
+        assertEquals(DereferenceCircuitBreaker.State.CLOSED, breaker.getState());
+        assertTrue(breaker.allowRequest());
+        assertTrue(breaker.allowRequest());
+    }
+
+    @Test
+    void opensAgainOnAFailedProbe() throws InterruptedException {
+        final DereferenceCircuitBreaker breaker = breaker(3, SHORT);
+        for (int i = 0; i < 3; i++) {
+            breaker.recordFailure();
+        }
+        Thread.sleep(SHORT.toMillis() + 50);
+        assertTrue(breaker.allowRequest());
+
+        //a single failure is enough while probing
+        breaker.recordFailure();
+
+        assertEquals(DereferenceCircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.allowRequest());
+        assertEquals(2, breaker.getOpenedCount());
+    }
+
+    @Test
+    void replacesAProbeWhoseOutcomeIsNeverReported() throws InterruptedException {
+        final DereferenceCircuitBreaker breaker = breaker(1, SHORT);
+        breaker.recordFailure();
+        Thread.sleep(SHORT.toMillis() + 50);
+        assertTrue(breaker.allowRequest());
+
+        Thread.sleep(SHORT.toMillis() + 50);
+
+        assertTrue(breaker.allowRequest());
+        assertEquals(DereferenceCircuitBreaker.State.HALF_OPEN, breaker.getState());
+    }
+
+    @Test
+    void needsAPositiveThreshold() {
+        assertThrows(IllegalArgumentException.class, () -> breaker(0, NEVER));
+    }
+
+    private static DereferenceCircuitBreaker breaker(final int failureThreshold, final Duration openDuration) {
+        return new DereferenceCircuitBreaker("ldap://localhost:389",
+                new DefaultConnectionFactory("ldap://localhost:389"), failureThreshold, openDuration);
+    }
+}
@@ -0,0 +1,161 @@
+package org.apereo.cas.deref;
+
+import org.junit.jupiter.api.Test;
+import org.ldaptive.LdapAttribute;
+import org.ldaptive.LdapEntry;
+import org.ldaptive.ResultCode;
+import org.ldaptive.SearchResponse;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Order of the entries folded by the accumulator: the merged entry is the first entry received with the others
+ * merged into it in order of arrival, whichever entries waited for secondary searches and in whatever order they
+ * were completed.
+ */
+class DereferenceEntryAccumulatorTest {
+
+    private final DereferenceResultHandler handler = new DereferenceResultHandler(
+            DereferenceSpec.compile(Collections.singletonMap("member", "cn"), null));
+
+    @Test
+    void mergesIntoTheFirstEntryInOrderOfArrival() {
+        final DereferenceEntryAccumulator accumulator = accumulator(DereferenceRoute.DEREF, true);
+        accumulator.apply(entry("uid=alice", "a", "group-a"));
+        accumulator.apply(entry("uid=bob", "b", "group-b"));
+        accumulator.apply(entry("uid=carol", "c", "group-c"));
+
+        final LdapEntry merged = accumulator.getMergedEntry();
+        assertEquals("uid=alice", merged.getDn());
+        assertEquals(List.of("a", "b", "c"), values(merged, "cn"));
+        assertEquals(List.of("group-a", "group-b", "group-c"), values(merged, "member.cn"));
+        assertEquals(3, accumulator.getEntryCount());
+        assertEquals(3, accumulator.getValueCount());
+    }
+
+    @Test
+    void holdsLaterEntriesUntilAnEarlierOneIsDereferenced() {
+        final DereferenceEntryAccumulator accumulator = accumulator(DereferenceRoute.DEREF_WITH_FALLBACK, true);
+        final LdapEntry alice = entry("uid=alice", "a", null);
+        accumulator.apply(alice);
+        accumulator.apply(entry("uid=bob", "b", "group-b"));
+
+        assertEquals(List.of(alice), accumulator.getPending());
+        assertNull(accumulator.getMergedEntry());
+
+        accumulator.complete(alice, control("uid=alice", "group-a"));
+
+        final LdapEntry merged = accumulator.getMergedEntry();
+        assertEquals("uid=alice", merged.getDn());
+        assertEquals(List.of("a", "b"), values(merged, "cn"));
+        assertEquals(List.of("group-a", "group-b"), values(merged, "member.cn"));
+    }
+
+    @Test
+    void keepsTheOrderOfArrivalWhateverTheOrderOfCompletion() {
+        final DereferenceEntryAccumulator accumulator = new DereferenceEntryAccumulator(handler,
+                DereferenceMetrics.NOOP, DereferenceRoute.DEREF, true, true, Set.of("member"));
+        final LdapEntry alice = entry("uid=alice", "a", null);
+        final LdapEntry bob = entry("uid=bob", "b", null);
+        final LdapEntry carol = entry("uid=carol", "c", null);
+        accumulator.apply(alice);
+        accumulator.apply(bob);
+        accumulator.apply(carol);
+        assertEquals(List.of(alice, bob, carol), accumulator.getPartial());
+
+        accumulator.complete(carol, control("uid=carol", "group-c"));
+        accumulator.complete(bob, control("uid=bob", "group-b"));
+        assertNull(accumulator.getMergedEntry());
+        accumulator.complete(alice, control("uid=alice", "group-a"));
+
+        final LdapEntry merged = accumulator.getMergedEntry();
+        assertEquals("uid=alice", merged.getDn());
+        assertEquals(List.of("a", "b", "c"), values(merged, "cn"));
+        assertEquals(List.of("group-a", "group-b", "group-c"), values(merged, "member.cn"));
+    }
+
+    @Test
+    void keepsEntriesApartInOrderOfArrival() {
+        final DereferenceEntryAccumulator accumulator = accumulator(DereferenceRoute.DEREF_WITH_FALLBACK, false);
+        final LdapEntry alice = entry("uid=alice", "a", null);
+        accumulator.apply(alice);
+        accumulator.apply(entry("uid=bob", "b", "group-b"));
+        accumulator.complete(alice, control("uid=alice", "group-a"));
+
+        final List<LdapEntry> entries = accumulator.getEntries();
+        assertNull(accumulator.getMergedEntry());
+        assertEquals(2, entries.size());
+        assertEquals("uid=alice", entries.get(0).getDn());
+        assertEquals(List.of("group-a"), values(entries.get(0), "member.cn"));
+        assertEquals("uid=bob", entries.get(1).getDn());
+        assertEquals(List.of("group-b"), values(entries.get(1), "member.cn"));
+
+        final SearchResponse response = accumulator.toResponse(
+                SearchResponse.builder().resultCode(ResultCode.SUCCESS).build());
+        assertEquals(2, response.getEntries().size());
+    }
+
+    @Test
+    void dropsEntriesPastTheMaximumAndFlagsTheirNumber() {
+        final DereferenceEntryAccumulator accumulator = new DereferenceEntryAccumulator(handler,
+                DereferenceMetrics.NOOP, DereferenceRoute.DEREF, true, true, Collections.emptySet(), 2);
+        accumulator.apply(entry("uid=alice", "a", "group-a"));
+        accumulator.apply(entry("uid=bob", "b", "group-b"));
+        accumulator.apply(entry("uid=carol", "c", "group-c"));
+        accumulator.apply(entry("uid=dave", "d", "group-d"));
+
+        assertEquals(2, accumulator.getDroppedEntryCount());
+        assertEquals(4, accumulator.getEntryCount());
+        final SearchResponse response = accumulator.toResponse(
+                SearchResponse.builder().resultCode(ResultCode.SUCCESS).build());
+        final LdapEntry merged = response.getEntry();
+        assertEquals(List.of("a", "b"), values(merged, "cn"));
+        assertEquals("2", merged.getAttribute(DereferenceLimits.TRUNCATED_ENTRIES_ATTRIBUTE).getStringValue());
+    }
+
+    @Test
+    void answersNobodyWithoutEntries() {
+        final DereferenceEntryAccumulator accumulator = accumulator(DereferenceRoute.DEREF, true);
+
+        assertNull(accumulator.getMergedEntry());
+        assertTrue(accumulator.getEntries().isEmpty());
+        assertTrue(accumulator.toResponse(SearchResponse.builder().resultCode(ResultCode.SUCCESS).build())
+                .getEntries().isEmpty());
+    }
+
+    private DereferenceEntryAccumulator accumulator(final DereferenceRoute route, final boolean merge) {
+        return new DereferenceEntryAccumulator(handler, DereferenceMetrics.NOOP, route, true, merge);
+    }
+
+    /*
+     * Entry with a cn value and, unless group is null, a deref response dereferencing member to that group.
+     */
+    private static LdapEntry entry(final String dn, final String cn, final String group) {
+        final LdapEntry entry = new LdapEntry();
+        entry.setDn(dn);
+        entry.addAttributes(new LdapAttribute("cn", cn));
+        if (group != null) {
+            entry.addControls(control(dn, group));
+        }
+        return entry;
+    }
+
+    private static DereferenceResponseControl control(final String dn, final String group) {
+        final DereferenceResponseControl control = new DereferenceResponseControl(DereferenceLimits.UNLIMITED);
+        control.addValue("member", "cn", group.getBytes(StandardCharsets.UTF_8), "cn=" + group + "," + dn);
+        return control;
+    }
+
+    private static List<String> values(final LdapEntry entry, final String name) {
+        final LdapAttribute attribute = entry.getAttribute(name);
+        return attribute != null ? new ArrayList<>(attribute.getStringValues()) : List.of();
+    }
+}
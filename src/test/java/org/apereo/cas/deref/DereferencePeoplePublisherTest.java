@@ -0,0 +1,231 @@
+package org.apereo.cas.deref;
+
+import org.apereo.services.persondir.IPersonAttributes;
+import org.apereo.services.persondir.support.NamedPersonImpl;
+import org.junit.jupiter.api.Test;
+import org.ldaptive.LdapEntry;
+import org.ldaptive.LdapException;
+import org.ldaptive.ResultCode;
+import org.ldaptive.SearchOperation;
+import org.ldaptive.SearchOperationHandle;
+import org.ldaptive.SearchRequest;
+import org.ldaptive.SearchResponse;
+import org.ldaptive.handler.LdapEntryHandler;
+import org.ldaptive.handler.ResultHandler;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Flow;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Signals of the people publisher without paging: demand, cancellation and the order of the terminal signal. The
+ * search is faked and entries are handed to the publisher by the test; subscribers are signalled on the calling
+ * thread.
+ */
+class DereferencePeoplePublisherTest {
+
+    @Test
+    void startsTheSearchOnTheFirstRequest() {
+        final FakeSearch search = new FakeSearch();
+        final RecordingSubscriber subscriber = subscribe(search, person -> person);
+
+        assertFalse(search.sent);
+        subscriber.subscription.request(1);
+        assertTrue(search.sent);
+    }
+
+    @Test
+    void neverSignalsMoreThanRequested() {
+        final FakeSearch search = new FakeSearch();
+        final RecordingSubscriber subscriber = subscribe(search, person -> person);
+        subscriber.subscription.request(1);
+
+        search.entry("alice");
+        search.entry("bob");
+        search.entry("carol");
+        assertEquals(List.of("next:alice"), subscriber.signals);
+
+        subscriber.subscription.request(2);
+        assertEquals(List.of("next:alice", "next:bob", "next:carol"), subscriber.signals);
+    }
+
+    @Test
+    void completesOnceEveryEntryIsSignalled() {
+        final FakeSearch search = new FakeSearch();
+        final RecordingSubscriber subscriber = subscribe(search, person -> person);
+        subscriber.subscription.request(1);
+
+        search.entry("alice");
+        search.entry("bob");
+        search.complete();
+        assertEquals(List.of("next:alice"), subscriber.signals);
+
+        subscriber.subscription.request(1);
+        assertEquals(List.of("next:alice", "next:bob", "complete"), subscriber.signals);
+    }
+
+    @Test
+    void signalsAFailedSearchAfterTheEntriesReceived() {
+        final FakeSearch search = new FakeSearch();
+        final RecordingSubscriber subscriber = subscribe(search, person -> person);
+        subscriber.subscription.request(1);
+
+        search.entry("alice");
+        search.entry("bob");
+        search.fail(new LdapException(ResultCode.UNAVAILABLE, "server down"));
+        assertEquals(List.of("next:alice"), subscriber.signals);
+
+        subscriber.subscription.request(Long.MAX_VALUE);
+        assertEquals(List.of("next:alice", "next:bob", "error:LdapException"), subscriber.signals);
+    }
+
+    @Test
+    void signalsNothingOnceCancelled() {
+        final FakeSearch search = new FakeSearch();
+        final RecordingSubscriber subscriber = subscribe(search, person -> person);
+        subscriber.subscription.request(Long.MAX_VALUE);
+        search.entry("alice");
+
+        subscriber.subscription.cancel();
+        search.entry("bob");
+        search.complete();
+
+        assertEquals(List.of("next:alice"), subscriber.signals);
+    }
+
+    @Test
+    void signalsAnErrorOnANonPositiveRequest() {
+        final FakeSearch search = new FakeSearch();
+        final RecordingSubscriber subscriber = subscribe(search, person -> person);
+        subscriber.subscription.request(1);
+        search.entry("alice");
+
+        subscriber.subscription.request(0);
+        search.entry("bob");
+        search.complete();
+
+        assertEquals(List.of("next:alice", "error:IllegalArgumentException"), subscriber.signals);
+    }
+
+    @Test
+    void signalsAnErrorWhenAnEntryCannotBeConverted() {
+        final FakeSearch search = new FakeSearch();
+        final RecordingSubscriber subscriber = subscribe(search, person -> {
+            if ("bob".equals(person.getName())) {
+                throw new IllegalStateException("bad entry");
+            }
+            return person;
+        });
+        subscriber.subscription.request(Long.MAX_VALUE);
+
+        search.entry("alice");
+        search.entry("bob");
+        search.entry("carol");
+        search.complete();
+
+        assertEquals(List.of("next:alice", "error:IllegalStateException"), subscriber.signals);
+    }
+
+    @Test
+    void signalsAnErrorWhenTheSearchCannotBeSent() {
+        final FakeSearch search = new FakeSearch();
+        search.failure = new LdapException(ResultCode.CONNECT_ERROR, "no connection");
+        final RecordingSubscriber subscriber = subscribe(search, person -> person);
+
+        subscriber.subscription.request(1);
+
+        assertEquals(List.of("error:LdapException"), subscriber.signals);
+    }
+
+    /*
+     * Subscribes to a publisher of the fake search, converting entries named by their DN and signalling on the
+     * calling thread.
+     */
+    private static RecordingSubscriber subscribe(final FakeSearch search,
+                                                 final Function<IPersonAttributes, IPersonAttributes> check) {
+        final DereferencePeoplePublisher publisher = new DereferencePeoplePublisher(
+                handler -> {
+                    search.setEntryHandlers(handler);
+                    return search;
+                },
+                () -> SearchRequest.builder().dn("dc=example,dc=org").filter("(objectClass=person)").build(),
+                null,
+                entry -> check.apply(new NamedPersonImpl(entry.getDn(), Map.of())),
+                Runnable::run);
+        final RecordingSubscriber subscriber = new RecordingSubscriber();
+        publisher.subscribe(subscriber);
+        return subscriber;
+    }
+
+    /**
+     * Search handing the entries, result and failure given by the test to the handlers set by the publisher.
+     */
+    private static final class FakeSearch extends SearchOperation {
+
+        private boolean sent;
+
+        private LdapException failure;
+
+        @Override
+        public SearchOperationHandle send(final SearchRequest request) throws LdapException {
+            if (failure != null) {
+                throw failure;
+            }
+            sent = true;
+            //the publisher only abandons the handle, there is nothing to abandon
+            return null;
+        }
+
+        private void entry(final String dn) {
+            final LdapEntry entry = new LdapEntry();
+            entry.setDn(dn);
+            for (LdapEntryHandler handler : getEntryHandlers()) {
+                handler.apply(entry);
+            }
+        }
+
+        private void complete() {
+            final SearchResponse response = SearchResponse.builder().resultCode(ResultCode.SUCCESS).build();
+            for (ResultHandler handler : getResultHandlers()) {
+                handler.accept(response);
+            }
+        }
+
+        private void fail(final LdapException e) {
+            getExceptionHandler().accept(e);
+        }
+    }
+
+    private static final class RecordingSubscriber implements Flow.Subscriber<IPersonAttributes> {
+
+        private final List<String> signals = new ArrayList<>();
+
+        private Flow.Subscription subscription;
+
+        @Override
+        public void onSubscribe(final Flow.Subscription subscription) {
+            this.subscription = subscription;
+        }
+
+        @Override
+        public void onNext(final IPersonAttributes item) {
+            signals.add("next:" + item.getName());
+        }
+
+        @Override
+        public void onError(final Throwable throwable) {
+            signals.add("error:" + throwable.getClass().getSimpleName());
+        }
+
+        @Override
+        public void onComplete() {
+            signals.add("complete");
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package org.apereo.cas.deref;
+
+import org.apereo.services.persondir.IPersonAttributes;
+import org.junit.jupiter.api.Test;
+import org.ldaptive.LdapAttribute;
+import org.ldaptive.LdapEntry;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Base64;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Binary values of the person view: copied on every read, serializable, and naming the person in Base64.
+ */
+class DereferencePersonAttributesTest {
+
+    private static final byte[] GUID = {0x12, 0x34, (byte) 0xab, (byte) 0xcd, 0, (byte) 0xff};
+
+    @Test
+    void returnsACopyOfBinaryValuesOnEveryRead() {
+        final DereferencePersonAttributes person = DereferencePersonAttributes.named("uid", entry());
+
+        final byte[] read = (byte[]) person.getAttributeValue("objectGUID");
+        assertArrayEquals(GUID, read);
+        read[0] = 0;
+
+        assertArrayEquals(GUID, (byte[]) person.getAttributeValue("objectGUID"));
+        assertArrayEquals(GUID, (byte[]) person.getAttributes().get("OBJECTGUID").get(0));
+    }
+
+    @Test
+    void namesThePersonByABinaryAttributeInBase64() {
+        final DereferencePersonAttributes person = DereferencePersonAttributes.named("objectGUID", entry());
+
+        assertEquals(Base64.getEncoder().encodeToString(GUID), person.getName());
+    }
+
+    @Test
+    void equalViewsHashAlike() {
+        final LdapEntry entry = entry();
+        final DereferencePersonAttributes person = DereferencePersonAttributes.named("uid", entry);
+        final DereferencePersonAttributes same = DereferencePersonAttributes.named("uid", entry());
+
+        assertEquals(person, same);
+        assertEquals(person.hashCode(), same.hashCode());
+    }
+
+    @Test
+    void serializesBinaryValuesAsByteArrays() throws Exception {
+        final IPersonAttributes read = serialize(DereferencePersonAttributes.named("uid", entry()));
+
+        assertEquals("alice", read.getName());
+        assertEquals("alice@example.org", read.getAttributeValue("mail"));
+        assertArrayEquals(GUID, (byte[]) read.getAttributeValue("objectGUID"));
+    }
+
+    @Test
+    void serializesTheBase64NameOfABinaryUserName() throws Exception {
+        final IPersonAttributes read = serialize(DereferencePersonAttributes.named("objectGUID", entry()));
+
+        assertEquals(Base64.getEncoder().encodeToString(GUID), read.getName());
+    }
+
+    private static IPersonAttributes serialize(final IPersonAttributes person) throws Exception {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(person);
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            return (IPersonAttributes) in.readObject();
+        }
+    }
+
+    private static LdapEntry entry() {
+        final LdapEntry entry = new LdapEntry();
+        entry.setDn("uid=alice,ou=people,dc=example,dc=org");
+        entry.addAttributes(new LdapAttribute("uid", "alice"));
+        entry.addAttributes(new LdapAttribute("mail", "alice@example.org"));
+        entry.addAttributes(new LdapAttribute("objectGUID", GUID));
+        return entry;
+    }
+}
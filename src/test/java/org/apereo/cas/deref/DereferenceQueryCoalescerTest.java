@@ -0,0 +1,229 @@
+package org.apereo.cas.deref;
+
+import org.apereo.services.persondir.IPersonAttributes;
+import org.apereo.services.persondir.support.NamedPersonImpl;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.ldaptive.SearchRequest;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Leaders and waiters of coalesced lookups, blocking and asynchronous: waiters share the outcome of the leader,
+ * failures included, and search on their own once they waited long enough or the leader was cancelled.
+ */
+class DereferenceQueryCoalescerTest {
+
+    private static final long WAIT_SECONDS = 5;
+
+    private final ExecutorService threads = Executors.newCachedThreadPool();
+
+    @AfterEach
+    void shutdown() {
+        threads.shutdownNow();
+    }
+
+    @Test
+    void waitersShareThePeopleOfTheLeader() throws Exception {
+        final DereferenceQueryCoalescer coalescer = new DereferenceQueryCoalescer(Duration.ofSeconds(WAIT_SECONDS));
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger searches = new AtomicInteger();
+        final List<IPersonAttributes> people = List.of(person("alice"));
+
+        final Future<List<IPersonAttributes>> leader = threads.submit(() -> coalescer.execute(query(null), q -> {
+            searches.incrementAndGet();
+            await(release);
+            return people;
+        }));
+        awaitLeader(coalescer);
+        final Future<List<IPersonAttributes>> waiter = threads.submit(() -> coalescer.execute(query(null), q -> {
+            searches.incrementAndGet();
+            return Collections.emptyList();
+        }));
+        awaitJoins(coalescer, 1);
+        release.countDown();
+
+        assertSame(people, leader.get(WAIT_SECONDS, TimeUnit.SECONDS));
+        final List<IPersonAttributes> shared = waiter.get(WAIT_SECONDS, TimeUnit.SECONDS);
+        assertEquals(people, shared);
+        assertThrows(UnsupportedOperationException.class, () -> shared.add(person("bob")));
+        assertEquals(1, searches.get());
+        assertEquals(0, coalescer.getInFlightCount());
+    }
+
+    @Test
+    void waitersGetTheFailureOfTheLeader() throws Exception {
+        final DereferenceQueryCoalescer coalescer = new DereferenceQueryCoalescer(Duration.ofSeconds(WAIT_SECONDS));
+        final CountDownLatch release = new CountDownLatch(1);
+        final IllegalStateException failure = new IllegalStateException("conversion failed");
+
+        final Future<List<IPersonAttributes>> leader = threads.submit(() -> coalescer.execute(query(null), q -> {
+            await(release);
+            throw failure;
+        }));
+        awaitLeader(coalescer);
+        final Future<List<IPersonAttributes>> waiter = threads.submit(
+                () -> coalescer.execute(query(null), q -> List.of(person("own"))));
+        awaitJoins(coalescer, 1);
+        release.countDown();
+
+        assertSame(failure, assertThrows(ExecutionException.class,
+                () -> leader.get(WAIT_SECONDS, TimeUnit.SECONDS)).getCause());
+        assertSame(failure, assertThrows(ExecutionException.class,
+                () -> waiter.get(WAIT_SECONDS, TimeUnit.SECONDS)).getCause());
+        assertEquals(0, coalescer.getInFlightCount());
+    }
+
+    @Test
+    void waiterSearchesOnItsOwnOnceTheWaitTimesOut() throws Exception {
+        final DereferenceQueryCoalescer coalescer = new DereferenceQueryCoalescer(Duration.ofMillis(50));
+        final CountDownLatch release = new CountDownLatch(1);
+        threads.submit(() -> coalescer.execute(query(null), q -> {
+            await(release);
+            return List.of(person("alice"));
+        }));
+        awaitLeader(coalescer);
+
+        try {
+            final List<IPersonAttributes> own = coalescer.execute(query(null), q -> List.of(person("own")));
+            assertEquals("own", own.get(0).getName());
+            assertEquals(1, coalescer.getTimeoutCount());
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test
+    void waiterSearchesOnItsOwnByItsDeadline() throws Exception {
+        final DereferenceQueryCoalescer coalescer = new DereferenceQueryCoalescer(Duration.ofSeconds(WAIT_SECONDS));
+        final CountDownLatch release = new CountDownLatch(1);
+        threads.submit(() -> coalescer.execute(query(null), q -> {
+            await(release);
+            return List.of(person("alice"));
+        }));
+        awaitLeader(coalescer);
+
+        try {
+            final long start = System.nanoTime();
+            final List<IPersonAttributes> own = coalescer.execute(query(Duration.ofMillis(50)),
+                    q -> List.of(person("own")));
+            assertEquals("own", own.get(0).getName());
+            assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(WAIT_SECONDS));
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test
+    void asynchronousWaitersGetTheFailureOfTheLeader() throws Exception {
+        final DereferenceQueryCoalescer coalescer = new DereferenceQueryCoalescer(Duration.ofSeconds(WAIT_SECONDS));
+        final CompletableFuture<List<IPersonAttributes>> search = new CompletableFuture<>();
+        final IllegalStateException failure = new IllegalStateException("search failed");
+
+        final CompletableFuture<List<IPersonAttributes>> leader = coalescer.executeAsync(query(null), q -> search);
+        final CompletableFuture<List<IPersonAttributes>> waiter = coalescer.executeAsync(query(null),
+                q -> CompletableFuture.completedFuture(List.of(person("own"))));
+        assertEquals(1, coalescer.getJoinCount());
+        search.completeExceptionally(failure);
+
+        assertSame(failure, assertThrows(ExecutionException.class,
+                () -> leader.get(WAIT_SECONDS, TimeUnit.SECONDS)).getCause());
+        assertSame(failure, assertThrows(ExecutionException.class,
+                () -> waiter.get(WAIT_SECONDS, TimeUnit.SECONDS)).getCause());
+        assertEquals(0, coalescer.getInFlightCount());
+    }
+
+    @Test
+    void asynchronousWaiterSearchesOnItsOwnOnceTheWaitTimesOut() throws Exception {
+        final DereferenceQueryCoalescer coalescer = new DereferenceQueryCoalescer(Duration.ofMillis(50));
+        final CompletableFuture<List<IPersonAttributes>> search = new CompletableFuture<>();
+        coalescer.executeAsync(query(null), q -> search);
+
+        final CompletableFuture<List<IPersonAttributes>> waiter = coalescer.executeAsync(query(null),
+                q -> CompletableFuture.completedFuture(List.of(person("own"))));
+
+        assertEquals("own", waiter.get(WAIT_SECONDS, TimeUnit.SECONDS).get(0).getName());
+        assertEquals(1, coalescer.getTimeoutCount());
+        //the leader is still in flight for the waiters to come
+        assertEquals(1, coalescer.getInFlightCount());
+        search.complete(List.of(person("alice")));
+        assertEquals(0, coalescer.getInFlightCount());
+    }
+
+    @Test
+    void asynchronousWaiterSearchesOnItsOwnWhenTheLeaderIsCancelled() throws Exception {
+        final DereferenceQueryCoalescer coalescer = new DereferenceQueryCoalescer(Duration.ofSeconds(WAIT_SECONDS));
+        final CompletableFuture<List<IPersonAttributes>> leader = coalescer.executeAsync(query(null),
+                q -> new CompletableFuture<>());
+        final CompletableFuture<List<IPersonAttributes>> waiter = coalescer.executeAsync(query(null),
+                q -> CompletableFuture.completedFuture(List.of(person("own"))));
+
+        leader.cancel(true);
+
+        assertEquals("own", waiter.get(WAIT_SECONDS, TimeUnit.SECONDS).get(0).getName());
+        assertEquals(0, coalescer.getTimeoutCount());
+        assertEquals(0, coalescer.getInFlightCount());
+    }
+
+    @Test
+    void leaderThrowingRightAwayLeavesNothingInFlight() {
+        final DereferenceQueryCoalescer coalescer = new DereferenceQueryCoalescer(Duration.ofSeconds(WAIT_SECONDS));
+
+        assertThrows(IllegalStateException.class, () -> coalescer.executeAsync(query(null), q -> {
+            throw new IllegalStateException("executor shut down");
+        }));
+        assertEquals(0, coalescer.getInFlightCount());
+    }
+
+    private static DereferenceQuery query(final Duration timeout) {
+        final SearchRequest request = SearchRequest.builder()
+                .dn("dc=example,dc=org").filter("(uid=alice)").build();
+        return new DereferenceQuery("(uid=alice)", "alice", null, DereferenceRoute.DEREF, request,
+                Collections.emptySet(), timeout);
+    }
+
+    private static IPersonAttributes person(final String name) {
+        return new NamedPersonImpl(name, Map.of("uid", List.<Object>of(name)));
+    }
+
+    private static void await(final CountDownLatch latch) {
+        try {
+            latch.await(WAIT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void awaitLeader(final DereferenceQueryCoalescer coalescer) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(WAIT_SECONDS);
+        while (coalescer.getInFlightCount() == 0 && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(1, coalescer.getInFlightCount());
+    }
+
+    private static void awaitJoins(final DereferenceQueryCoalescer coalescer, final long joins)
+            throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(WAIT_SECONDS);
+        while (coalescer.getJoinCount() < joins && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(joins, coalescer.getJoinCount());
+    }
+}
@@ -0,0 +1,216 @@
+package org.apereo.cas.deref;
+
+import org.junit.jupiter.api.Test;
+import org.ldaptive.asn1.ConstructedDEREncoder;
+import org.ldaptive.asn1.ContextDERTag;
+import org.ldaptive.asn1.DEREncoder;
+import org.ldaptive.asn1.DefaultDERBuffer;
+import org.ldaptive.asn1.OctetStringType;
+import org.ldaptive.asn1.UniversalDERTag;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Decoding of the deref response control value: well formed values, values cut short or malformed, and the caps
+ * of {@link DereferenceLimits}.
+ */
+class DereferenceResponseControlTest {
+
+    private static final String ALICE = "uid=alice,ou=people,dc=example,dc=org";
+    private static final String BOB = "uid=bob,ou=people,dc=example,dc=org";
+    private static final String CAROL = "uid=carol,ou=people,dc=example,dc=org";
+
+    @Test
+    void decodesEveryResultInOrder() {
+        final DereferenceResponseControl control = decode(response(
+                result("member", ALICE, attribute("cn", "Alice"), attribute("mail", "alice@example.org")),
+                result("member", BOB, attribute("cn", "Bob")),
+                result("manager", CAROL, attribute("cn", "Carol"))), DereferenceLimits.UNLIMITED);
+
+        assertFalse(control.isDecodeFailed());
+        assertFalse(control.isTruncated());
+        assertEquals(4, control.getValueCount());
+        final Map<String, List<Object>> attrs = control.getDereferenceAttrs(null);
+        assertEquals(List.of("Alice", "Bob"), attrs.get("member.cn"));
+        assertEquals(List.of("alice@example.org"), attrs.get("member.mail"));
+        assertEquals(List.of("Carol"), attrs.get("manager.cn"));
+        assertEquals(Map.of("member", 3, "manager", 1), control.getValueCounts());
+    }
+
+    @Test
+    void namesValuesThroughTheSpec() {
+        final Map<String, String> dereference = new LinkedHashMap<>();
+        dereference.put("member", "cn,jpegPhoto");
+        final DereferenceSpec spec = DereferenceSpec.compile(dereference,
+                Collections.singletonMap("member", "cn"), new String[] {"jpegPhoto"});
+        final byte[] photo = {(byte) 0xff, (byte) 0xd8, 0, 1};
+
+        final DereferenceResponseControl control = decode(response(
+                result("member", ALICE, attribute("cn", "Alice"), attribute("jpegPhoto", photo))),
+                DereferenceLimits.UNLIMITED);
+
+        final Map<String, List<Object>> attrs = control.getDereferenceAttrs(spec);
+        assertEquals(List.of("Alice"), attrs.get("member.cn"));
+        assertEquals(List.of(ALICE + ";Alice"), attrs.get("member.cn.extended"));
+        assertArrayEquals(photo, (byte[]) attrs.get("member.jpegPhoto").get(0));
+        assertNull(attrs.get("member.jpegPhoto.extended"));
+        assertThrows(UnsupportedOperationException.class, () -> attrs.put("member.sn", List.of()));
+    }
+
+    @Test
+    void readsLongFormLengths() {
+        final char[] chars = new char[1000];
+        Arrays.fill(chars, 'x');
+        final String description = new String(chars);
+
+        final DereferenceResponseControl control = decode(response(
+                result("member", ALICE, attribute("description", description)),
+                result("member", BOB, attribute("cn", "Bob"))), DereferenceLimits.UNLIMITED);
+
+        assertFalse(control.isDecodeFailed());
+        assertEquals(List.of(description), control.getDereferenceAttrs(null).get("member.description"));
+        assertEquals(List.of("Bob"), control.getDereferenceAttrs(null).get("member.cn"));
+    }
+
+    @Test
+    void keepsResultsWithoutAttributes() {
+        final DereferenceResponseControl control = decode(response(
+                result("member", ALICE),
+                result("member", BOB, attribute("cn", "Bob"))), DereferenceLimits.UNLIMITED);
+
+        assertFalse(control.isDecodeFailed());
+        assertEquals(List.of("Bob"), control.getDereferenceAttrs(null).get("member.cn"));
+    }
+
+    @Test
+    void keepsTheValuesBeforeATruncatedValue() {
+        final byte[] full = response(
+                result("member", ALICE, attribute("cn", "Alice")),
+                result("member", BOB, attribute("cn", "Bob")));
+
+        final DereferenceResponseControl control = decode(Arrays.copyOf(full, full.length - 2),
+                DereferenceLimits.UNLIMITED);
+
+        assertTrue(control.isDecodeFailed());
+        assertEquals(List.of("Alice"), control.getDereferenceAttrs(null).get("member.cn"));
+    }
+
+    @Test
+    void failsOnAnUnexpectedTag() {
+        final byte[] value = response(result("member", ALICE, attribute("cn", "Alice")));
+        //a set where the sequence of results is expected
+        value[0] = 0x31;
+
+        final DereferenceResponseControl control = decode(value, DereferenceLimits.UNLIMITED);
+
+        assertTrue(control.isDecodeFailed());
+        assertEquals(0, control.getValueCount());
+        assertTrue(control.getDereferenceAttrs(null).isEmpty());
+    }
+
+    @Test
+    void failsOnAnEmptyValue() {
+        final DereferenceResponseControl control = decode(new byte[0], DereferenceLimits.UNLIMITED);
+
+        assertTrue(control.isDecodeFailed());
+        assertTrue(control.getDereferenceAttrs(null).isEmpty());
+    }
+
+    @Test
+    void capsTheDnsPerAttribute() {
+        final DereferenceResponseControl control = decode(response(
+                result("member", ALICE, attribute("cn", "Alice")),
+                result("member", BOB, attribute("cn", "Bob")),
+                result("member", CAROL, attribute("cn", "Carol")),
+                result("manager", CAROL, attribute("cn", "Carol"))), new DereferenceLimits(2, 0, 0));
+
+        assertEquals(List.of("Alice", "Bob"), control.getDereferenceAttrs(null).get("member.cn"));
+        assertEquals(List.of("Carol"), control.getDereferenceAttrs(null).get("manager.cn"));
+        assertEquals(Set.of("member"), control.getTruncatedAttributes());
+        assertFalse(control.isDecodeFailed());
+    }
+
+    @Test
+    void capsTheDecodedBytes() {
+        //the first result fits, DN and value, the second does not
+        final long first = ALICE.getBytes(StandardCharsets.UTF_8).length + "Alice".length();
+        final DereferenceResponseControl control = decode(response(
+                result("member", ALICE, attribute("cn", "Alice")),
+                result("manager", BOB, attribute("cn", "Bob"))), new DereferenceLimits(0, first, 0));
+
+        assertEquals(List.of("Alice"), control.getDereferenceAttrs(null).get("member.cn"));
+        assertNull(control.getDereferenceAttrs(null).get("manager.cn"));
+        assertEquals(Set.of("manager"), control.getTruncatedAttributes());
+        assertEquals(1, control.getValueCount());
+    }
+
+    @Test
+    void decodesWithTheFirstLimitsOnly() {
+        final DereferenceResponseControl control = new DereferenceResponseControl();
+        control.decode(new DefaultDERBuffer(response(
+                result("member", ALICE, attribute("cn", "Alice")),
+                result("member", BOB, attribute("cn", "Bob")))));
+        assertFalse(control.isDecoded());
+
+        control.decode(DereferenceLimits.UNLIMITED);
+        control.decode(new DereferenceLimits(1, 0, 0));
+
+        assertEquals(DereferenceLimits.UNLIMITED, control.getLimits());
+        assertEquals(List.of("Alice", "Bob"), control.getDereferenceAttrs(null).get("member.cn"));
+    }
+
+    @Test
+    void equalOnceDecodedWithTheSameValues() {
+        final byte[] value = response(result("member", ALICE, attribute("cn", "Alice")));
+        final DereferenceResponseControl undecoded = new DereferenceResponseControl();
+        undecoded.decode(new DefaultDERBuffer(value));
+
+        assertEquals(decode(value, DereferenceLimits.UNLIMITED), decode(value, DereferenceLimits.UNLIMITED));
+        assertEquals(decode(value, DereferenceLimits.UNLIMITED).hashCode(),
+                decode(value, DereferenceLimits.UNLIMITED).hashCode());
+        assertFalse(undecoded.equals(decode(value, DereferenceLimits.UNLIMITED)));
+    }
+
+    private static DereferenceResponseControl decode(final byte[] value, final DereferenceLimits limits) {
+        final DereferenceResponseControl control = new DereferenceResponseControl();
+        control.decode(new DefaultDERBuffer(value));
+        control.decode(limits);
+        return control;
+    }
+
+    private static byte[] response(final DEREncoder... results) {
+        return new ConstructedDEREncoder(UniversalDERTag.SEQ, results).encode();
+    }
+
+    private static DEREncoder result(final String derefAttrName, final String dn, final DEREncoder... attributes) {
+        if (attributes.length == 0) {
+            return new ConstructedDEREncoder(UniversalDERTag.SEQ,
+                    new OctetStringType(derefAttrName), new OctetStringType(dn));
+        }
+        return new ConstructedDEREncoder(UniversalDERTag.SEQ,
+                new OctetStringType(derefAttrName), new OctetStringType(dn),
+                new ConstructedDEREncoder(new ContextDERTag(0, true), attributes));
+    }
+
+    private static DEREncoder attribute(final String name, final String value) {
+        return attribute(name, value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static DEREncoder attribute(final String name, final byte[] value) {
+        return new ConstructedDEREncoder(UniversalDERTag.SEQ, new OctetStringType(name),
+                new ConstructedDEREncoder(UniversalDERTag.SET, new OctetStringType(value)));
+    }
+}